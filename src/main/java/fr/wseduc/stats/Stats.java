@@ -27,7 +27,9 @@ import java.util.Base64;
 import java.util.Map;
 
 import fr.wseduc.webutils.collections.SharedDataHelper;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.pgclient.PgConnectOptions;
 import io.vertx.pgclient.PgPool;
@@ -46,15 +48,33 @@ import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 
 import fr.wseduc.cron.CronTrigger;
+import fr.wseduc.stats.aggregation.DailyAggregationProcessing;
+import fr.wseduc.stats.aggregation.engine.AggregationReadPolicy;
+import fr.wseduc.stats.aggregation.engine.IntradayAggregator;
+import fr.wseduc.stats.aggregation.engine.PgStatsSink;
+import fr.wseduc.stats.aggregation.engine.ShardAggregationVerticle;
 import fr.wseduc.stats.controllers.JobsController;
 import fr.wseduc.stats.controllers.StatsController;
+import fr.wseduc.stats.cron.AggregationLease;
+import fr.wseduc.stats.cron.CatchUpAggregationTask;
 import fr.wseduc.stats.cron.CronAggregationTask;
+import fr.wseduc.stats.cron.LateEventReconciliationTask;
 import fr.wseduc.stats.filters.WorkflowFilter;
 import fr.wseduc.stats.services.DefaultJobsServiceImpl;
+import fr.wseduc.stats.services.DefaultRecalculationServiceImpl;
+import fr.wseduc.stats.services.DefaultStructureServiceImpl;
+import fr.wseduc.stats.services.LiveActivityGauge;
 import fr.wseduc.stats.services.MockStatsService;
+import fr.wseduc.stats.services.MongoIndexManager;
+import fr.wseduc.stats.services.MongoToPgStatsMigrator;
 import fr.wseduc.stats.services.PGStatsService;
+import fr.wseduc.stats.services.PGStructureService;
 import fr.wseduc.stats.services.StatsService;
 import fr.wseduc.stats.services.StatsServiceMongoImpl;
+import fr.wseduc.stats.services.StructureHierarchy;
+import fr.wseduc.stats.services.StructureMetrics;
+import fr.wseduc.stats.services.StructureService;
+import fr.wseduc.stats.utils.ResponseCache;
 
 import com.opendigitaleducation.repository.SyncRepository;
 
@@ -80,9 +100,89 @@ public class Stats extends BaseServer {
 		// Day delta, default : processes yesterday events
 		int dayDelta = config.getInteger("dayDelta", -1);
 
+		// Lease taken on the aggregated day, so that a single node aggregates it
+		final long aggregationLeaseTtl = config.getLong("aggregation-lease-ttl", 300L);
+		final AggregationLease aggregationLease = aggregationLeaseTtl > 0 ?
+				new AggregationLease(vertx, aggregationLeaseTtl * 1000L) : null;
+
+		// Read preference and read budget of the aggregation pipelines on the traces
+		AggregationReadPolicy.configure(vertx, config);
+		if (DailyAggregationProcessing.SKETCH_UNIQUE_VISITORS.equals(config.getString("unique-visitors-mode")) &&
+				!DailyAggregationProcessing.FUSED_ENGINE.equals(config.getString("aggregation-engine"))) {
+			logger.warn("unique-visitors-mode sketch is ignored without aggregation-engine fused : period unique visitors are counted exactly");
+		}
+		if (config.getString("aggregation-read-preference") != null && config.getString("aggregation-mongo-uri") == null) {
+			logger.warn("aggregation-read-preference is ignored without aggregation-mongo-uri : the persistor runs the trace reads on the primary");
+		}
+
+		// Indexes of the stats reads and of the aggregation reads, reported when missing and only created if enabled
+		final MongoIndexManager indexManager = new MongoIndexManager(config.getDouble("index-explain-sample-rate", 0.01),
+				config.getBoolean("mongo-indexes", false));
+		indexManager.ensureIndexes();
+
+		// Workers of the structure shards of the fused aggregation, other clustered nodes may also run some
+		final int shardWorkers = config.getInteger("aggregation-shard-workers", config.getInteger("aggregation-shards", 0));
+		if (shardWorkers > 0) {
+			vertx.deployVerticle(ShardAggregationVerticle.class.getName(),
+					new DeploymentOptions().setWorker(true).setInstances(shardWorkers), ar -> {
+				if (ar.failed()) {
+					logger.error("Error deploying aggregation shard workers", ar.cause());
+				}
+			});
+		}
+
+		// Traces received on the event bus : provisional stats of the current day and live activity gauge
+		final String intradayAddress = config.getString("intraday-events-address");
+		LiveActivityGauge liveActivityGauge = null;
+		if (intradayAddress != null && !intradayAddress.trim().isEmpty()) {
+			final long intradayFlushInterval = config.getLong("intraday-flush-interval", 60L);
+			final IntradayAggregator intradayAggregator = intradayFlushInterval > 0 ?
+					new IntradayAggregator(vertx, intradayFlushInterval * 1000L, config.getInteger("aggregation-batch-size", 2000)) : null;
+			final LiveActivityGauge gauge = config.getBoolean("live-gauge", false) ? new LiveActivityGauge(vertx) : null;
+			if (intradayAggregator != null) {
+				intradayAggregator.start();
+			}
+			// Traces are sent point-to-point so the intraday stats count each one once,
+			// the receiving node publishes them again so that the gauge of every node sees all of them
+			final String gaugeAddress = intradayAddress + ".live";
+			if (gauge != null) {
+				gauge.start();
+				vertx.eventBus().<JsonObject>consumer(gaugeAddress, message -> gauge.add(message.body()));
+			}
+			vertx.eventBus().<JsonObject>consumer(intradayAddress, message -> {
+				if (intradayAggregator != null) {
+					intradayAggregator.count(message.body());
+				}
+				if (gauge != null) {
+					vertx.eventBus().publish(gaugeAddress, message.body());
+				}
+			});
+			liveActivityGauge = gauge;
+		}
+
 		if (aggregationCron != null && !aggregationCron.trim().isEmpty()) {
 			try {
-				new CronTrigger(vertx, aggregationCron).schedule(new CronAggregationTask(dayDelta));
+				final CronAggregationTask cronAggregationTask = new CronAggregationTask(dayDelta);
+				cronAggregationTask.setAggregationLease(aggregationLease);
+				new CronTrigger(vertx, aggregationCron).schedule(cronAggregationTask);
+				// Off-peak backfill of the days missing from the ledger
+				final String catchUpCron = config.getString("aggregation-catchup-cron");
+				if (catchUpCron != null && !catchUpCron.trim().isEmpty() && aggregationLease != null) {
+					new CronTrigger(vertx, catchUpCron).schedule(new CatchUpAggregationTask(cronAggregationTask, aggregationLease,
+							dayDelta, config.getInteger("aggregation-catchup-days", 7), config.getInteger("aggregation-catchup-max-days", 1)));
+				}
+				// Recomputation of the groups of the aggregated days which received late traces
+				final String reconciliationCron = config.getString("reconciliation-cron");
+				final String insertionField = config.getString("reconciliation-insertion-field");
+				if (reconciliationCron != null && !reconciliationCron.trim().isEmpty() && insertionField == null) {
+					logger.error("reconciliation-cron is ignored without reconciliation-insertion-field (trace insertion date field, or _id for ObjectIds)");
+				} else if (reconciliationCron != null && !reconciliationCron.trim().isEmpty()) {
+					new CronTrigger(vertx, reconciliationCron).schedule(new LateEventReconciliationTask(aggregationLease, dayDelta,
+							config.getInteger("reconciliation-days", 7), insertionField,
+							config.getInteger("aggregation-batch-size", 2000),
+							DailyAggregationProcessing.SKETCH_UNIQUE_VISITORS.equals(config.getString("unique-visitors-mode")),
+							DailyAggregationProcessing.FUSED_ENGINE.equals(config.getString("aggregation-engine")) ? null : cronAggregationTask));
+				}
 			} catch (ParseException e) {
 				logger.fatal(e.getMessage(), e);
 				vertx.close();
@@ -105,6 +205,7 @@ public class Stats extends BaseServer {
 		final JsonObject readPGConfig = config.getJsonObject("read-pg-config");
 		final JsonObject pgConfig = config.getJsonObject("pg-config");
 		final boolean oldStats = config.getBoolean("mongo-stats-service", false);
+		PgPool repositoryPgPool = null;
 		if (pgConfig != null && !pgConfig.isEmpty() && !oldStats) {
 			final PgConnectOptions connectOptions = new PgConnectOptions().setPort(pgConfig.getInteger("port", 5432))
 					.setHost(pgConfig.getString("host")).setDatabase(pgConfig.getString("database"))
@@ -115,6 +216,7 @@ public class Stats extends BaseServer {
 			}
 			PoolOptions poolOptions = new PoolOptions().setMaxSize(pgConfig.getInteger("pool-size", 5));
 			PgPool pgPool = PgPool.pool(vertx, connectOptions, poolOptions);
+			repositoryPgPool = pgPool;
 
 			// SyncRepository with neo4j config
 			final String neo4jConfig = (String) statsConfigMap.get("neo4jConfig");
@@ -132,6 +234,14 @@ public class Stats extends BaseServer {
 			final DefaultJobsServiceImpl jobsService = new DefaultJobsServiceImpl(vertx, platformId, config.getJsonObject("api-allowed-values"));
 			jobsService.setPgPool(pgPool);
 			jobsService.setSyncRepository(syncRepository);
+			jobsService.setImportSizes(config.getInteger("stats-import-chunk-size", 1000),
+					config.getLong("stats-import-transaction-size", 0L));
+			if (config.getBoolean("aggregation-pg-sink", false)) {
+				PgStatsSink.configure(pgPool, platformId, jobsService.getAllowedTables(), config.getInteger("aggregation-batch-size", 2000));
+			}
+			jobsService.setMongoStatsMigrator(new MongoToPgStatsMigrator(vertx, pgPool, platformId, jobsService.getAllowedTables(),
+					config.getInteger("stats-migration-batch-size", 1000), config.getInteger("stats-migration-parallelism", 2),
+					config.getLong("stats-migration-rows-per-second", 0L)));
 			final JobsController jobsController = new JobsController();
 			jobsController.setJobsService(jobsService);
 			addController(jobsController);
@@ -148,6 +258,7 @@ public class Stats extends BaseServer {
 			}
 			PoolOptions poolOptions = new PoolOptions().setMaxSize(readPGConfig.getInteger("pool-size", 5));
 			PgPool pgPool = PgPool.pool(vertx, connectOptions, poolOptions);
+			repositoryPgPool = pgPool;
 			statsService = new PGStatsService(platformId, config.getJsonObject("api-allowed-values"));
 			((PGStatsService) statsService).setReadPgPool(pgPool);
 		} else if (eventStoreConfig != null && eventStoreConfig.getJsonObject("postgresql-slave") != null && !oldStats) {
@@ -167,11 +278,82 @@ public class Stats extends BaseServer {
 			statsService = new PGStatsService(platformId, config.getJsonObject("api-allowed-values"));
 			((PGStatsService) statsService).setReadPgPool(pgPool);
         } else {
-			statsService = new StatsServiceMongoImpl(COLLECTIONS.stats.name());
+			final StatsServiceMongoImpl statsServiceMongo = new StatsServiceMongoImpl(COLLECTIONS.stats.name());
+			statsServiceMongo.setIndexManager(indexManager);
+			statsService = statsServiceMongo;
 		}
 
+		final DefaultStructureServiceImpl defaultStructureService = new DefaultStructureServiceImpl();
+		final String structureHierarchyCron = config.getString("structure-hierarchy-cron");
+		if (structureHierarchyCron != null && !structureHierarchyCron.trim().isEmpty()) {
+			final StructureHierarchy structureHierarchy = new StructureHierarchy();
+			final Handler<Long> loadHierarchy = event -> structureHierarchy.load(ar -> {
+				if (ar.failed()) {
+					logger.error("Error loading structure hierarchy", ar.cause());
+				}
+			});
+			try {
+				new CronTrigger(vertx, structureHierarchyCron).schedule(loadHierarchy);
+			} catch (ParseException e) {
+				logger.fatal(e.getMessage(), e);
+				vertx.close();
+				return Future.failedFuture(e);
+			}
+			loadHierarchy.handle(null);
+			vertx.eventBus().consumer(DefaultJobsServiceImpl.REPOSITORY_SYNCED_ADDRESS, message -> loadHierarchy.handle(null));
+			defaultStructureService.setStructureHierarchy(structureHierarchy);
+		}
+		final String structureMetricsCron = config.getString("structure-metrics-cron");
+		if (structureMetricsCron != null && !structureMetricsCron.trim().isEmpty()) {
+			final StructureMetrics structureMetrics = new StructureMetrics();
+			final Handler<Long> computeMetrics = event -> structureMetrics.compute(ar -> {
+				if (ar.failed()) {
+					logger.error("Error computing structure metrics", ar.cause());
+				}
+			});
+			try {
+				new CronTrigger(vertx, structureMetricsCron).schedule(computeMetrics);
+			} catch (ParseException e) {
+				logger.fatal(e.getMessage(), e);
+				vertx.close();
+				return Future.failedFuture(e);
+			}
+			computeMetrics.handle(null);
+			vertx.eventBus().consumer(DefaultJobsServiceImpl.REPOSITORY_SYNCED_ADDRESS, message -> computeMetrics.handle(null));
+			defaultStructureService.setStructureMetrics(structureMetrics);
+		}
+
+		final StructureService structureService;
+		if ("pg".equals(config.getString("structure-service")) && repositoryPgPool != null) {
+			structureService = new PGStructureService(defaultStructureService);
+			((PGStructureService) structureService).setReadPgPool(repositoryPgPool);
+		} else {
+			structureService = defaultStructureService;
+		}
+
+		final DefaultRecalculationServiceImpl recalculationService = new DefaultRecalculationServiceImpl(vertx,
+				config.getInteger("recalculation-concurrency", 1), config.getLong("recalculation-day-duration-target", 120000L));
+		recalculationService.setAggregationLease(aggregationLease);
+		recalculationService.resume(ar -> {
+			if (ar.failed()) {
+				logger.error("Error resuming recalculation jobs", ar.cause());
+			}
+		});
+
 		final StatsController statsController = new StatsController(COLLECTIONS.stats.name());
 		statsController.setStatsService(statsService);
+		statsController.setRecalculationService(recalculationService);
+		statsController.setAggregationLease(aggregationLease);
+		statsController.setLiveActivityGauge(liveActivityGauge);
+		statsController.setIndexManager(indexManager);
+		statsController.setStructureService(structureService);
+		final long structuresCacheTtl = config.getLong("structures-cache-ttl", 0L);
+		if (structuresCacheTtl > 0) {
+			final ResponseCache structuresCache = new ResponseCache(structuresCacheTtl * 1000L,
+					config.getInteger("structures-cache-max-size", 10000));
+			vertx.eventBus().consumer(DefaultJobsServiceImpl.REPOSITORY_SYNCED_ADDRESS, message -> structuresCache.invalidateAll());
+			statsController.setStructuresCache(structuresCache);
+		}
 		final EventStore eventStore = EventStoreFactory.getFactory().getEventStore(Stats.class.getSimpleName());
 		final EventHelper eventHelper =  new EventHelper(eventStore);
 		statsController.setEventHelper(eventHelper);
@@ -25,10 +25,11 @@ package fr.wseduc.stats.aggregation;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.bson.conversions.Bson;
 import org.entcore.common.aggregation.AggregationTools;
-import org.entcore.common.aggregation.AggregationTools.HandlerChainer;
 import org.entcore.common.aggregation.MongoConstants.COLLECTIONS;
 import org.entcore.common.aggregation.filters.IndicatorFilter;
 import org.entcore.common.aggregation.filters.mongo.DateFilter;
@@ -36,7 +37,10 @@ import org.entcore.common.aggregation.groups.IndicatorGroup;
 import org.entcore.common.aggregation.indicators.Indicator;
 import org.entcore.common.aggregation.indicators.mongo.IndicatorMongoImpl;
 import org.entcore.common.aggregation.processing.AggregationProcessing;
+import org.entcore.common.utils.Config;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
 
@@ -44,6 +48,16 @@ import static org.entcore.common.aggregation.MongoConstants.*;
 import fr.wseduc.mongodb.MongoDb;
 import fr.wseduc.mongodb.MongoQueryBuilder;
 import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+import fr.wseduc.stats.aggregation.engine.AggregationReadPolicy;
+import fr.wseduc.stats.aggregation.engine.AggregationRunHistory;
+import fr.wseduc.stats.aggregation.engine.EventsHighWaterMark;
+import fr.wseduc.stats.aggregation.engine.FusedAggregationEngine;
+import fr.wseduc.stats.aggregation.engine.HourPeakAggregation;
+import fr.wseduc.stats.aggregation.engine.IndicatorScheduler;
+import fr.wseduc.stats.aggregation.engine.PgStatsSink;
+import fr.wseduc.stats.aggregation.engine.ShardedAggregation;
+import fr.wseduc.stats.aggregation.engine.StatsStaging;
+import fr.wseduc.stats.aggregation.engine.UniqueVisitorSketches;
 import static com.mongodb.client.model.Filters.*;
 
 /**
@@ -51,13 +65,20 @@ import static com.mongodb.client.model.Filters.*;
  */
 public class DailyAggregationProcessing extends AggregationProcessing{
 
+	public static final String FUSED_ENGINE = "fused";
+	public static final String SKETCH_UNIQUE_VISITORS = "sketch";
+	public static final String STAGING_OUTPUT = "staging";
+	private static final int DEFAULT_BATCH_SIZE = 2000;
+
 	private final MongoDb mongo = MongoDb.getInstance();
+	/** Traces read by the default indicators, charged to the aggregation read budget. */
+	private final Map<Indicator, JsonObject> readMatches = new HashMap<>();
 
 	/**
 	 * Cleanup if stats documents already exist.
 	 * @param day : Day to clean up.
 	 */
-	public void cleanUp(Date day, final Handler<Void> next){
+	public void cleanUp(final Date day, final Handler<Void> next){
 		Calendar calendarDay = Calendar.getInstance();
 		calendarDay.setTime(day);
 		Date lowerDay = AggregationTools.setToMidnight(calendarDay);
@@ -65,24 +86,37 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 		Date higherDay = AggregationTools.setToMidnight(calendarDay);
 
 		Bson statsFilter = and(gte(STATS_FIELD_DATE, MongoDb.formatDate(lowerDay)), lt(STATS_FIELD_DATE, MongoDb.formatDate(higherDay)));
-		mongo.delete(COLLECTIONS.stats.name(), MongoQueryBuilder.build(statsFilter), new Handler<Message<JsonObject>>() {
-			public void handle(Message<JsonObject> event) {
-				next.handle(null);
-			}
+		final JsonObject statsQuery = MongoQueryBuilder.build(statsFilter);
+		//Deletes run on the primary, the documents they remove are charged to the read budget
+		AggregationReadPolicy.get().charge(mongo, COLLECTIONS.stats.name(), statsQuery, v -> {
+			mongo.delete(COLLECTIONS.stats.name(), statsQuery, new Handler<Message<JsonObject>>() {
+				public void handle(Message<JsonObject> event) {
+					cleanUpSketches(day, next);
+				}
+			});
 		});
 	}
 
-	private IndicatorMongoImpl createHourPeakIndicator(final Date day, int hour){
-		IndicatorMongoImpl hourPeakIndicator = new IndicatorMongoImpl(TRACE_TYPE_CONNEXION);
+	/**
+	 * Cleanup if unique visitors sketches already exist.
+	 * @param day : Day to clean up.
+	 */
+	public void cleanUpSketches(Date day, final Handler<Void> next){
 		Calendar calendarDay = Calendar.getInstance();
 		calendarDay.setTime(day);
-		final Date lowerHour = AggregationTools.setHourTo(calendarDay, hour);
-		final Date higherHour = AggregationTools.setHourTo(calendarDay, hour+1);
-
-		hourPeakIndicator.setWriteKey(TRACE_TYPE_CONNEXION+"_H"+hour);
-		hourPeakIndicator.addFilter(new DateFilter(lowerHour, higherHour));
+		Date lowerDay = AggregationTools.setToMidnight(calendarDay);
+		calendarDay.add(Calendar.DATE, 1);
+		Date higherDay = AggregationTools.setToMidnight(calendarDay);
 
-		return hourPeakIndicator;
+		Bson sketchesFilter = and(gte(STATS_FIELD_DATE, MongoDb.formatDate(lowerDay)), lt(STATS_FIELD_DATE, MongoDb.formatDate(higherDay)));
+		final JsonObject sketchesQuery = MongoQueryBuilder.build(sketchesFilter);
+		AggregationReadPolicy.get().charge(mongo, UniqueVisitorSketches.SKETCHES_COLLECTION, sketchesQuery, v -> {
+			mongo.delete(UniqueVisitorSketches.SKETCHES_COLLECTION, sketchesQuery, new Handler<Message<JsonObject>>() {
+				public void handle(Message<JsonObject> event) {
+					next.handle(null);
+				}
+			});
+		});
 	}
 
 	private void addDayFilter(Indicator i, Date day){
@@ -95,6 +129,16 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 		IndicatorFilter dayFilter = new DateFilter(lowerDay, higherDay);
 
 		i.addFilter(dayFilter);
+		addReadMatch(i, lowerDay, higherDay);
+	}
+
+	/**
+	 * Traces of the indicator type in the range of its date filter.
+	 */
+	private void addReadMatch(Indicator i, Date lowerDay, Date higherDay){
+		readMatches.put(i, new JsonObject()
+			.put(TRACE_FIELD_DATE, new JsonObject().put("$gte", lowerDay.getTime()).put("$lt", higherDay.getTime()))
+			.put(TRACE_FIELD_TYPE, i.getKey()));
 	}
 
 	private void addDefaultDayIndicators(Date day){
@@ -104,11 +148,7 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 
 		//Connexions
 		IndicatorMongoImpl connexionIndicator = new IndicatorMongoImpl(TRACE_TYPE_CONNEXION);
-		//Connexion hour peaks
-		IndicatorMongoImpl[] hourPeakIndicators = new IndicatorMongoImpl[24];
-		for(int i = 0; i < 24; i++){
-			hourPeakIndicators[i] = createHourPeakIndicator(day, i);
-		}
+		//Connexion hour peaks are computed apart by HourPeakAggregation
 
 		//Account creation, deletion & activation
 		IndicatorMongoImpl userCreationIndicator = new IndicatorMongoImpl(TRACE_TYPE_CREATE_USER);
@@ -133,22 +173,36 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 			addDayFilter(indicator, day);
 			indicators.add(indicator);
 		}
+	}
 
-		//For hour peaks, skip adding the day filter
-		for(IndicatorMongoImpl i : hourPeakIndicators){
-			indicators.add(i);
-		}
+	public static Date nextDay(Date day){
+		Calendar calendarDay = Calendar.getInstance();
+		calendarDay.setTime(day);
+		calendarDay.add(Calendar.DATE, 1);
+		return AggregationTools.setToMidnight(calendarDay);
 	}
 
-	private void addDefaultWeekIndicators(Date day){
+	public static Date weekStart(Date day){
 		Calendar calendarDay = Calendar.getInstance();
 		calendarDay.setTime(day);
 		calendarDay.add(Calendar.DATE, 1);
-		Date higherDay = AggregationTools.setToMidnight(calendarDay);
+		AggregationTools.setToMidnight(calendarDay);
 		if(calendarDay.get(Calendar.DAY_OF_WEEK) < calendarDay.getFirstDayOfWeek())
 			calendarDay.add(Calendar.WEEK_OF_YEAR, -1);
 		calendarDay.set(Calendar.DAY_OF_WEEK, calendarDay.getFirstDayOfWeek());
-		Date lowerDay = AggregationTools.setToMidnight(calendarDay);
+		return AggregationTools.setToMidnight(calendarDay);
+	}
+
+	public static Date monthStart(Date day){
+		Calendar calendarDay = Calendar.getInstance();
+		calendarDay.setTime(day);
+		calendarDay.set(Calendar.DATE, 1);
+		return AggregationTools.setToMidnight(calendarDay);
+	}
+
+	private void addDefaultWeekIndicators(Date day){
+		Date higherDay = nextDay(day);
+		Date lowerDay = weekStart(day);
 
 		ArrayList<IndicatorMongoImpl> weekIndicators = new ArrayList<>();
 
@@ -167,18 +221,14 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 
 		for(Indicator indicator: weekIndicators){
 			indicator.addFilter(weeklyFilter);
+			addReadMatch(indicator, lowerDay, higherDay);
 			indicators.add(indicator);
 		}
 	}
 
 	private void addDefaultMonthlyIndicators(Date day){
-		Calendar calendarDay = Calendar.getInstance();
-		calendarDay.setTime(day);
-		calendarDay.add(Calendar.DATE, 1);
-		Date higherDay = AggregationTools.setToMidnight(calendarDay);
-		calendarDay.add(Calendar.DATE, -1);
-		calendarDay.set(Calendar.DATE, 1);
-		Date lowerDay = AggregationTools.setToMidnight(calendarDay);
+		Date higherDay = nextDay(day);
+		Date lowerDay = monthStart(day);
 
 		ArrayList<IndicatorMongoImpl> monthlyIndicators = new ArrayList<>();
 
@@ -198,6 +248,7 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 
 		for(Indicator indicator: monthlyIndicators){
 			indicator.addFilter(monthlyFilter);
+			addReadMatch(indicator, lowerDay, higherDay);
 			indicators.add(indicator);
 		}
 	}
@@ -227,22 +278,249 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 
 		for(Indicator indicator: septemberIndicators){
 			indicator.addFilter(septemberFilter);
+			addReadMatch(indicator, september, higherDay);
 			indicators.add(indicator);
 		}
 	}
 
-	private HandlerChainer<Indicator, JsonObject> chainIndicators(){
-		HandlerChainer<Indicator, JsonObject> chainer = new HandlerChainer<Indicator, JsonObject>(){
-			protected void executeItem(Indicator indicator, Handler<JsonObject> nextCallback) {
-				indicator.aggregate(nextCallback);
+	private void addDefaultGroups(){
+		///// Default groups :
+		//Profile
+		IndicatorGroup profileGroup = new IndicatorGroup(TRACE_FIELD_PROFILE);
+		//Structure + Structure/Profile + Structure/Classes + Structure/Classes/Profile
+		IndicatorGroup structureGroup = new IndicatorGroup(TRACE_FIELD_STRUCTURES).setArray(true)
+			.addChild(new IndicatorGroup(TRACE_FIELD_CLASSES).setArray(true).addChild(TRACE_FIELD_PROFILE))
+			.addChild(new IndicatorGroup(TRACE_FIELD_PROFILE));
+
+		//Adding groups
+		for(Indicator indic : indicators){
+			indic.addGroup(profileGroup)
+				 .addGroup(structureGroup);
+		}
+	}
+
+	private JsonObject config(){
+		final JsonObject conf = Config.getConf();
+		return conf != null ? conf : new JsonObject();
+	}
+
+	private int batchSize(){
+		return config().getInteger("aggregation-batch-size", DEFAULT_BATCH_SIZE);
+	}
+
+	private boolean stagedOutput(){
+		return FUSED_ENGINE.equals(config().getString("aggregation-engine")) &&
+				STAGING_OUTPUT.equals(config().getString("aggregation-output"));
+	}
+
+	/**
+	 * Daily indicators, hour peaks and service access are computed by the fused engine in a single pass over the day traces,
+	 * remaining indicators (week, month and september periods) are still run by the scheduler.
+	 * In sketch mode, week and month unique visitors are merged from the daily sketches when every day of the period has one.
+	 * In staging output mode, the engine documents and the week and month unique visitors are written to a staging collection
+	 * and published once complete, the remaining period indicators are then run against the published documents.
+	 */
+	private void processFused(final Date day, final Date recordingDate, final Handler<JsonObject> callBack){
+		final boolean sketches = SKETCH_UNIQUE_VISITORS.equals(config().getString("unique-visitors-mode"));
+		final StatsStaging staging = stagedOutput() ? StatsStaging.create(day) : null;
+		final String statsCollection = staging != null ? staging.getCollection() : COLLECTIONS.stats.name();
+		executeFused(day, recordingDate, sketches, statsCollection, new Handler<JsonObject>() {
+			public void handle(final JsonObject fusedResult) {
+				if (staging != null && !"ok".equals(fusedResult.getString("status"))) {
+					staging.discard(discarded -> callBack.handle(fusedResult));
+					return;
+				}
+				final Handler<JsonObject> published = new Handler<JsonObject>() {
+					public void handle(JsonObject periods) {
+						if (staging != null && !"ok".equals(periods.getString("status"))) {
+							staging.discard(discarded -> callBack.handle(periods));
+							return;
+						}
+						publish(staging, day, fusedResult, recordingDate, callBack);
+					}
+				};
+				if (!sketches) {
+					periodVisitors(staging, day, recordingDate, true, true, published);
+					return;
+				}
+				final UniqueVisitorSketches uniqueVisitors = new UniqueVisitorSketches(batchSize(), statsCollection);
+				final String key = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY;
+				uniqueVisitors.aggregatePeriod(weekStart(day), nextDay(day), recordingDate, key + "_WEEK", week -> {
+					uniqueVisitors.aggregatePeriod(monthStart(day), nextDay(day), recordingDate, key + "_MONTH", month -> {
+						periodVisitors(staging, day, recordingDate, week.failed() || !week.result(),
+								month.failed() || !month.result(), published);
+					});
+				});
+			}
+		});
+	}
+
+	/**
+	 * Week and month unique visitors not merged from the sketches : staged runs count them into the staging collection
+	 * so that they are published with the day documents, other runs add the scheduler indicators run after the day.
+	 * @param next : Called with {status}.
+	 */
+	private void periodVisitors(final StatsStaging staging, final Date day, final Date recordingDate,
+			final boolean week, final boolean month, final Handler<JsonObject> next){
+		if (staging == null) {
+			if (week) {
+				addDefaultWeekIndicators(day);
+			}
+			if (month) {
+				addDefaultMonthlyIndicators(day);
+			}
+			next.handle(new JsonObject().put("status", "ok"));
+			return;
+		}
+		final String key = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY;
+		final Handler<JsonObject> monthly = new Handler<JsonObject>() {
+			public void handle(JsonObject weekly) {
+				if (!month || !"ok".equals(weekly.getString("status"))) {
+					next.handle(weekly);
+					return;
+				}
+				new FusedAggregationEngine(day, recordingDate, batchSize()).setStatsCollection(staging.getCollection())
+					.executePeriodVisitors(monthStart(day), key + "_MONTH", next);
 			}
 		};
+		if (week) {
+			new FusedAggregationEngine(day, recordingDate, batchSize()).setStatsCollection(staging.getCollection())
+				.executePeriodVisitors(weekStart(day), key + "_WEEK", monthly);
+		} else {
+			monthly.handle(new JsonObject().put("status", "ok"));
+		}
+	}
+
+	/**
+	 * Runs the fused engine in this context, or split by structure shards (aggregation-shards)
+	 * on the shard worker verticles when set.
+	 */
+	private void executeFused(Date day, Date recordingDate, boolean sketches, String statsCollection, Handler<JsonObject> handler){
+		final int shards = config().getInteger("aggregation-shards", 0);
+		final Context context = Vertx.currentContext();
+		if (shards > 0 && context != null) {
+			new ShardedAggregation(context.owner(), day, recordingDate, batchSize(), shards,
+					config().getLong("aggregation-shard-timeout", 3600L) * 1000L)
+				.setWriteSketches(sketches).setStatsCollection(statsCollection).execute(handler);
+		} else {
+			new FusedAggregationEngine(day, recordingDate, batchSize())
+				.setWriteSketches(sketches).setStatsCollection(statsCollection).execute(handler);
+		}
+	}
+
+	private void publish(StatsStaging staging, final Date day, final JsonObject fusedResult, final Date recordingDate,
+			final Handler<JsonObject> callBack){
+		if (staging == null) {
+			executePeriodIndicators(day, recordingDate, fusedResult, callBack);
+			return;
+		}
+		staging.publish(recordingDate, nextDay(day), published -> {
+			if (published.failed()) {
+				callBack.handle(new JsonObject().put("status", "error").put("message", published.cause().getMessage()));
+				return;
+			}
+			executePeriodIndicators(day, recordingDate, fusedResult, callBack);
+		});
+	}
+
+	private void executePeriodIndicators(Date day, Date recordingDate, final JsonObject fusedResult, final Handler<JsonObject> callBack){
+		addDefaultSeptemberIndicators(day);
 
-		for(Indicator indicator: indicators){
-			chainer.chainItem(indicator);
+		addDefaultGroups();
+
+		for(Indicator i : indicators){
+			i.setWriteDate(recordingDate);
 		}
 
-		return chainer;
+		executeIndicators(new Handler<JsonObject>() {
+			public void handle(JsonObject chainResult) {
+				callBack.handle(fusedResult.put("indicators", chainResult.getJsonArray("indicators")));
+			}
+		});
+	}
+
+	/**
+	 * Runs the indicators, concurrently up to aggregation-parallelism (1 by default, as a chain would),
+	 * each one failing after aggregation-indicator-timeout seconds if set.
+	 */
+	private void executeIndicators(Handler<JsonObject> callBack){
+		final Context context = Vertx.currentContext();
+		new IndicatorScheduler(context != null ? context.owner() : null,
+				config().getInteger("aggregation-parallelism", 1),
+				config().getLong("aggregation-indicator-timeout", 0L) * 1000L)
+			.setReadMatches(readMatches)
+			.setCountScanned(config().getBoolean("aggregation-run-history", false))
+			.execute(indicators, callBack);
+	}
+
+	/**
+	 * Once the day is aggregated, marks the traces inserted before the start of the processing as aggregated,
+	 * traces of the day inserted later are late ones.
+	 */
+	private Handler<JsonObject> marked(Date day, final Handler<JsonObject> callBack){
+		Calendar dayCalendar = Calendar.getInstance();
+		dayCalendar.setTime(day);
+		final Date recordingDate = AggregationTools.setToMidnight(dayCalendar);
+		final long start = System.currentTimeMillis();
+		return new Handler<JsonObject>() {
+			public void handle(final JsonObject result) {
+				if (result == null || "error".equals(result.getString("status"))) {
+					callBack.handle(result);
+					return;
+				}
+				new EventsHighWaterMark().mark(recordingDate, start, v -> callBack.handle(result));
+			}
+		};
+	}
+
+	/**
+	 * Once the day is aggregated, writes its stats to the PostgreSQL tables if the sink is configured.
+	 * A failed write fails the day, so that it is aggregated and written again.
+	 */
+	private Handler<JsonObject> exported(Date day, final Handler<JsonObject> callBack){
+		final PgStatsSink sink = PgStatsSink.get();
+		if (sink == null) {
+			return callBack;
+		}
+		Calendar dayCalendar = Calendar.getInstance();
+		dayCalendar.setTime(day);
+		final Date recordingDate = AggregationTools.setToMidnight(dayCalendar);
+		return new Handler<JsonObject>() {
+			public void handle(final JsonObject result) {
+				if (result == null || "error".equals(result.getString("status"))) {
+					callBack.handle(result);
+					return;
+				}
+				sink.write(recordingDate, written -> {
+					if (written.succeeded()) {
+						result.put("pgRows", written.result());
+					} else {
+						result.put("status", "error").put("message", "pg.sink.error : " + written.cause().getMessage());
+					}
+					callBack.handle(result);
+				});
+			}
+		};
+	}
+
+	/**
+	 * Records the run in the aggregation history before calling back, if aggregation-run-history is set.
+	 */
+	private Handler<JsonObject> recorded(Date day, final Handler<JsonObject> callBack){
+		if (!config().getBoolean("aggregation-run-history", false)) {
+			return callBack;
+		}
+		Calendar dayCalendar = Calendar.getInstance();
+		dayCalendar.setTime(day);
+		final Date recordingDate = AggregationTools.setToMidnight(dayCalendar);
+		final String implementation = getClass().getName();
+		final long start = System.currentTimeMillis();
+		return new Handler<JsonObject>() {
+			public void handle(final JsonObject result) {
+				final JsonObject run = result != null ? result : new JsonObject().put("status", "error").put("message", "no.result");
+				new AggregationRunHistory().record(recordingDate, implementation, start, run, v -> callBack.handle(result));
+			}
+		};
 	}
 
 	/**
@@ -259,34 +537,28 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 	 * @param callBack : Handler called when processing is over.
 	 */
 	@Override
-	public void process(final Date day, final Handler<JsonObject> callBack){
-		//Clean up stats from the day if they already exist.
-		cleanUp(day, new Handler<Void>() {
+	public void process(final Date day, final Handler<JsonObject> processed){
+		final Handler<JsonObject> callBack = exported(day, recorded(day, marked(day, processed)));
+		//Aggregation of the day, run once stats from the day are cleaned up.
+		final Handler<Void> aggregate = new Handler<Void>() {
 			public void handle(Void v) {
 				//Sets recording date to midnight at "day" parameter time
 				Calendar dayCalendar = Calendar.getInstance();
 				dayCalendar.setTime(day);
 				Date recordingDate = AggregationTools.setToMidnight(dayCalendar);
 
+				if (FUSED_ENGINE.equals(config().getString("aggregation-engine"))) {
+					processFused(day, recordingDate, callBack);
+					return;
+				}
+
 				//Adding default indicators
 				addDefaultDayIndicators(day);
 				addDefaultWeekIndicators(day);
 				addDefaultMonthlyIndicators(day);
 				addDefaultSeptemberIndicators(day);
 
-				///// Default groups :
-				//Profile
-				IndicatorGroup profileGroup = new IndicatorGroup(TRACE_FIELD_PROFILE);
-				//Structure + Structure/Profile + Structure/Classes + Structure/Classes/Profile
-				IndicatorGroup structureGroup = new IndicatorGroup(TRACE_FIELD_STRUCTURES).setArray(true)
-					.addChild(new IndicatorGroup(TRACE_FIELD_CLASSES).setArray(true).addChild(TRACE_FIELD_PROFILE))
-					.addChild(new IndicatorGroup(TRACE_FIELD_PROFILE));
-
-				//Adding groups
-				for(Indicator indic : indicators){
-					indic.addGroup(profileGroup)
-						 .addGroup(structureGroup);
-				}
+				addDefaultGroups();
 
 				///// Special treatment for the service access Indicator : indicator has to be also grouped by module name :
 				IndicatorMongoImpl serviceAccessIndicator = new IndicatorMongoImpl(TRACE_TYPE_SVC_ACCESS);
@@ -326,10 +598,30 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 					i.setWriteDate(recordingDate);
 				}
 
-				////// Chaining Indicators and executing the process.
-				chainIndicators().executeChain(callBack);
+				////// Executing the indicators, then hour peaks in a single grouped pass.
+				final Date writeDate = recordingDate;
+				executeIndicators(new Handler<JsonObject>() {
+					public void handle(final JsonObject chainResult) {
+						new HourPeakAggregation(day, writeDate, batchSize()).execute(new Handler<JsonObject>() {
+							public void handle(JsonObject hourPeaksResult) {
+								//The day is not aggregated if its hour peaks failed
+								if ("error".equals(hourPeaksResult.getString("status")) &&
+										(chainResult == null || !"error".equals(chainResult.getString("status")))) {
+									callBack.handle(hourPeaksResult);
+								} else {
+									callBack.handle(chainResult);
+								}
+							}
+						});
+					}
+				});
 			}
-		});
+		};
+		//Staged output replaces the stats of the day once complete, they are not cleaned up beforehand.
+		if(stagedOutput())
+			cleanUpSketches(day, aggregate);
+		else
+			cleanUp(day, aggregate);
 	}
 
 	/**
@@ -337,8 +629,8 @@ public class DailyAggregationProcessing extends AggregationProcessing{
 	 * @param callBack : Handler called when processing is over.
 	 */
 	public void processBlank(Handler<JsonObject> callBack){
-		// Chaining Indicators
-		chainIndicators().executeChain(callBack);
+		// Executing Indicators
+		executeIndicators(callBack);
 	}
 
 }
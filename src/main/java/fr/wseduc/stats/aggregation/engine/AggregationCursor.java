@@ -0,0 +1,281 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.AggregateOptions;
+import io.vertx.ext.mongo.MongoClient;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Streams the results of an aggregation pipeline batch by batch (aggregate + getMore commands),
+ * so large result sets never have to fit in a single event bus message.
+ */
+public class AggregationCursor {
+
+	private final MongoDb mongo;
+	private final String collection;
+	private final JsonArray pipeline;
+	private final int batchSize;
+	private boolean traceRead = false;
+
+	public AggregationCursor(MongoDb mongo, String collection, JsonArray pipeline, int batchSize) {
+		this.mongo = mongo;
+		this.collection = collection;
+		this.pipeline = pipeline;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Marks the pipeline as a read of the traces : it follows the {@link AggregationReadPolicy}
+	 * (read client or persistor address, pipeline slots and documents budget).
+	 * When the documents are budgeted, a pipeline whose first $match bounds the trace date is run window by window,
+	 * each window being charged with the traces it matches before it runs : the batches of every window go to the
+	 * same handler, so the rows must be combinable (summed counts, sets of visitors).
+	 * Pipelines reading freshly written documents or writing ($merge, $out) must stay on the primary.
+	 */
+	public AggregationCursor readTraces() {
+		this.traceRead = true;
+		return this;
+	}
+
+	/**
+	 * Runs the pipeline.
+	 * @param batchHandler : Called for each batch of documents, the next batch is requested once it returns.
+	 * @param endHandler : Called with the total number of documents read, or with the first error.
+	 */
+	public void stream(final Handler<JsonArray> batchHandler, Handler<AsyncResult<Long>> endHandler) {
+		stream((batch, next) -> {
+			batchHandler.handle(batch);
+			next.handle(null);
+		}, endHandler);
+	}
+
+	/**
+	 * Batch handler controlling the flow : the next batch is requested once next is called.
+	 */
+	public interface BatchHandler {
+		void handle(JsonArray batch, Handler<Void> next);
+	}
+
+	/**
+	 * Runs the pipeline, requesting the next batch only when the handler asks for it.
+	 * @param endHandler : Called once next is called for the last batch, or with the first error.
+	 */
+	public void stream(BatchHandler batchHandler, Handler<AsyncResult<Long>> endHandler) {
+		if (!traceRead) {
+			send(command(pipeline), replyHandler("firstBatch", 0L, batchHandler, endHandler));
+			return;
+		}
+		final AggregationReadPolicy policy = AggregationReadPolicy.get();
+		policy.acquirePipeline(v -> {
+			final Handler<AsyncResult<Long>> released = ar -> {
+				policy.releasePipeline();
+				endHandler.handle(ar);
+			};
+			streamWindows(windows(policy), 0, 0L, batchHandler, released);
+		});
+	}
+
+	private JsonObject command(JsonArray pipeline) {
+		return new JsonObject()
+				.put("aggregate", collection)
+				.put("pipeline", pipeline)
+				.put("allowDiskUse", true)
+				.put("cursor", new JsonObject().put("batchSize", batchSize));
+	}
+
+	private static JsonObject firstMatch(JsonArray pipeline) {
+		final JsonObject stage = pipeline.isEmpty() ? null : pipeline.getJsonObject(0);
+		return stage != null ? stage.getJsonObject("$match") : null;
+	}
+
+	/**
+	 * The pipeline itself, or one copy per time window if the documents are budgeted
+	 * and its first $match bounds the trace date ($gte and $lt in ms).
+	 */
+	private List<JsonArray> windows(AggregationReadPolicy policy) {
+		final JsonObject match = firstMatch(pipeline);
+		final JsonObject date = match != null && match.getValue(TRACE_FIELD_DATE) instanceof JsonObject ?
+				match.getJsonObject(TRACE_FIELD_DATE) : null;
+		if (!policy.isBudgeted() || date == null ||
+				!(date.getValue("$gte") instanceof Number) || !(date.getValue("$lt") instanceof Number)) {
+			return Collections.singletonList(pipeline);
+		}
+		final long from = date.getLong("$gte");
+		final long to = date.getLong("$lt");
+		final List<JsonArray> windows = new ArrayList<>();
+		for (long lower = from; lower < to; lower += policy.getWindow()) {
+			final JsonArray window = pipeline.copy();
+			window.getJsonObject(0).getJsonObject("$match").put(TRACE_FIELD_DATE, date.copy()
+					.put("$gte", lower).put("$lt", Math.min(to, lower + policy.getWindow())));
+			windows.add(window);
+		}
+		return windows.isEmpty() ? Collections.singletonList(pipeline) : windows;
+	}
+
+	/**
+	 * Charges each window with the documents its $match selects, then streams it, one window after the other.
+	 */
+	private void streamWindows(List<JsonArray> windows, int index, long total, BatchHandler batchHandler,
+			Handler<AsyncResult<Long>> endHandler) {
+		if (index >= windows.size()) {
+			endHandler.handle(Future.succeededFuture(total));
+			return;
+		}
+		final JsonArray window = windows.get(index);
+		final JsonObject match = firstMatch(window);
+		final AggregationReadPolicy policy = AggregationReadPolicy.get();
+		policy.charge(mongo, collection, match != null ? match : new JsonObject(), v -> {
+			final Handler<AsyncResult<Long>> next = ar -> {
+				if (ar.failed()) {
+					endHandler.handle(ar);
+				} else {
+					streamWindows(windows, index + 1, total + ar.result(), batchHandler, endHandler);
+				}
+			};
+			if (policy.getReadClient() != null) {
+				streamReadClient(policy.getReadClient(), window, batchHandler, next);
+			} else {
+				send(command(window), replyHandler("firstBatch", 0L, batchHandler, next));
+			}
+		});
+	}
+
+	/**
+	 * Runs the pipeline through the read client : the driver cursor applies the client read preference
+	 * and sends the getMores to the server the aggregate ran on. The stream is paused while a batch is handled.
+	 */
+	private void streamReadClient(MongoClient client, JsonArray pipeline, BatchHandler batchHandler,
+			Handler<AsyncResult<Long>> endHandler) {
+		final ReadStream<JsonObject> documents = client.aggregateWithOptions(collection, pipeline,
+				new AggregateOptions().setBatchSize(batchSize).setAllowDiskUse(true));
+		final JsonArray[] batch = {new JsonArray()};
+		final long[] read = {0L};
+		final boolean[] over = {false};
+		final Handler<AsyncResult<Long>> end = ar -> {
+			if (!over[0]) {
+				over[0] = true;
+				endHandler.handle(ar);
+			}
+		};
+		documents.exceptionHandler(e -> end.handle(Future.failedFuture(e)));
+		documents.endHandler(v -> {
+			final JsonArray last = batch[0];
+			batch[0] = new JsonArray();
+			read[0] += last.size();
+			try {
+				batchHandler.handle(last, next -> end.handle(Future.succeededFuture(read[0])));
+			} catch (RuntimeException e) {
+				end.handle(Future.failedFuture(e));
+			}
+		});
+		documents.handler(document -> {
+			batch[0].add(document);
+			if (batch[0].size() < batchSize || over[0]) {
+				return;
+			}
+			documents.pause();
+			final JsonArray full = batch[0];
+			batch[0] = new JsonArray();
+			read[0] += full.size();
+			try {
+				batchHandler.handle(full, next -> documents.resume());
+			} catch (RuntimeException e) {
+				end.handle(Future.failedFuture(e));
+			}
+		});
+	}
+
+	private void send(JsonObject command, Handler<JsonObject> handler) {
+		final AggregationReadPolicy policy = AggregationReadPolicy.get();
+		if (!traceRead || policy.getAddress() == null) {
+			mongo.command(command.encode(), message -> handler.handle(message.body()));
+			return;
+		}
+		final JsonObject action = new JsonObject()
+				.put("action", "command")
+				.put("command", command.encode());
+		policy.getVertx().eventBus().<JsonObject>request(policy.getAddress(), action, ar -> {
+			if (ar.succeeded()) {
+				handler.handle(ar.result().body());
+			} else {
+				handler.handle(new JsonObject().put("status", "error").put("message", ar.cause().getMessage()));
+			}
+		});
+	}
+
+	private Handler<JsonObject> replyHandler(final String batchField, final long total,
+			final BatchHandler batchHandler, final Handler<AsyncResult<Long>> endHandler) {
+		return body -> {
+			final JsonObject result = body.getJsonObject("result");
+			if (!"ok".equals(body.getString("status")) || result == null || result.getJsonObject("cursor") == null) {
+				endHandler.handle(Future.failedFuture(body.getString("message", "aggregation.cursor.error")));
+				return;
+			}
+			final JsonObject cursor = result.getJsonObject("cursor");
+			final JsonArray batch = cursor.getJsonArray(batchField, new JsonArray());
+			final long read = total + batch.size();
+			final long cursorId = cursorId(cursor.getValue("id"));
+			try {
+				batchHandler.handle(batch, next -> {
+					if (cursorId == 0L) {
+						endHandler.handle(Future.succeededFuture(read));
+						return;
+					}
+					final JsonObject getMore = new JsonObject()
+							.put("getMore", new JsonObject().put("$numberLong", Long.toString(cursorId)))
+							.put("collection", collection)
+							.put("batchSize", batchSize);
+					send(getMore, replyHandler("nextBatch", read, batchHandler, endHandler));
+				});
+			} catch (RuntimeException e) {
+				endHandler.handle(Future.failedFuture(e));
+			}
+		};
+	}
+
+	private static long cursorId(Object id) {
+		if (id instanceof Number) {
+			return ((Number) id).longValue();
+		} else if (id instanceof JsonObject) {
+			return Long.parseLong(((JsonObject) id).getString("$numberLong", "0"));
+		} else if (id instanceof String) {
+			return Long.parseLong((String) id);
+		}
+		return 0L;
+	}
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.mongo.MongoClient;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Where and how fast the aggregation reads the traces.
+ * Trace reads may go through a Mongo client having a read preference (the persistor command action runs every
+ * command on the primary, $readPreference being ignored outside of a mongos), or be sent to a dedicated persistor
+ * address (e.g. directly connected to a secondary).
+ * The number of concurrent trace pipelines is bounded and the documents they match are paced by a token bucket :
+ * before a pipeline (or a time window of it) runs, the documents its $match selects are counted and taken from the bucket.
+ */
+public final class AggregationReadPolicy {
+
+	private static final Logger log = LoggerFactory.getLogger(AggregationReadPolicy.class);
+
+	private static volatile AggregationReadPolicy instance = new AggregationReadPolicy(null, new JsonObject());
+
+	private final Vertx vertx;
+	private final String address;
+	private final JsonObject readPreference;
+	private final MongoClient readClient;
+	private final int maxPipelines;
+	private final double documentsPerSecond;
+	private final long window;
+	private final Deque<Handler<Void>> waiting = new ArrayDeque<>();
+	private int pipelines = 0;
+	private double tokens = 0.0;
+	private long refilledAt = System.currentTimeMillis();
+
+	private AggregationReadPolicy(Vertx vertx, JsonObject config) {
+		this.vertx = vertx;
+		this.address = config.getString("aggregation-mongo-address");
+		final String mode = config.getString("aggregation-read-preference");
+		if (mode != null && !mode.trim().isEmpty()) {
+			readPreference = new JsonObject().put("mode", mode);
+			final Integer maxStaleness = config.getInteger("aggregation-max-staleness");
+			if (maxStaleness != null) {
+				readPreference.put("maxStalenessSeconds", maxStaleness);
+			}
+		} else {
+			readPreference = null;
+		}
+		final String uri = config.getString("aggregation-mongo-uri");
+		if (vertx != null && uri != null && !uri.trim().isEmpty()) {
+			String connectionString = uri;
+			if (readPreference != null && readPreference.containsKey("maxStalenessSeconds")) {
+				connectionString += (uri.contains("?") ? "&" : "?") + "maxStalenessSeconds=" +
+						readPreference.getInteger("maxStalenessSeconds");
+			}
+			final JsonObject clientConfig = new JsonObject().put("connection_string", connectionString);
+			if (readPreference != null) {
+				clientConfig.put("readPreference", readPreference.getString("mode"));
+			}
+			this.readClient = MongoClient.createShared(vertx, clientConfig, "stats-aggregation-reads");
+		} else {
+			this.readClient = null;
+		}
+		this.maxPipelines = vertx != null ? config.getInteger("aggregation-max-pipelines", 0) : 0;
+		this.documentsPerSecond = vertx != null ? config.getDouble("aggregation-documents-per-second", 0.0) : 0.0;
+		this.window = Math.max(60L, config.getLong("aggregation-read-window", 3600L)) * 1000L;
+		this.tokens = documentsPerSecond;
+	}
+
+	public static AggregationReadPolicy get() {
+		return instance;
+	}
+
+	public static void configure(Vertx vertx, JsonObject config) {
+		final AggregationReadPolicy previous = instance;
+		instance = new AggregationReadPolicy(vertx, config);
+		if (previous.readClient != null) {
+			previous.readClient.close();
+		}
+	}
+
+	/**
+	 * @return The persistor address trace reads are sent to, null for the default one.
+	 */
+	public String getAddress() {
+		return vertx != null ? address : null;
+	}
+
+	public Vertx getVertx() {
+		return vertx;
+	}
+
+	/**
+	 * @return The read preference of the trace reads client, null if none.
+	 */
+	public JsonObject getReadPreference() {
+		return readPreference;
+	}
+
+	/**
+	 * @return The client the trace reads go through (its read preference applying to the aggregate and its getMores),
+	 * null to send them to the persistor.
+	 */
+	public MongoClient getReadClient() {
+		return readClient;
+	}
+
+	/**
+	 * Calls the handler once a pipeline slot is free.
+	 */
+	public synchronized void acquirePipeline(Handler<Void> handler) {
+		if (maxPipelines <= 0 || pipelines < maxPipelines) {
+			pipelines++;
+			handler.handle(null);
+		} else {
+			waiting.add(handler);
+		}
+	}
+
+	public void releasePipeline() {
+		final Handler<Void> next;
+		synchronized (this) {
+			next = waiting.poll();
+			if (next == null) {
+				pipelines = Math.max(0, pipelines - 1);
+			}
+		}
+		if (next != null) {
+			next.handle(null);
+		}
+	}
+
+	/**
+	 * @return Whether the documents read are budgeted.
+	 */
+	public boolean isBudgeted() {
+		return documentsPerSecond > 0;
+	}
+
+	/**
+	 * @return Length in ms of the time windows a budgeted trace pipeline is split into.
+	 */
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Counts the documents selected by the match and takes them from the bucket before calling the handler.
+	 * A failed count is logged and charges nothing.
+	 */
+	public void charge(MongoDb mongo, String collection, JsonObject match, Handler<Void> handler) {
+		if (!isBudgeted()) {
+			handler.handle(null);
+			return;
+		}
+		count(mongo, collection, match, documents -> consume(documents != null ? documents : 0L, handler));
+	}
+
+	/**
+	 * Counts the documents selected by the match the way the trace reads go (read client, persistor address
+	 * or default persistor).
+	 * @param handler : Called with the count, null if it failed (the error is logged).
+	 */
+	public void count(MongoDb mongo, String collection, JsonObject match, Handler<Long> handler) {
+		if (readClient != null) {
+			readClient.count(collection, match, ar -> {
+				if (ar.failed()) {
+					log.error("[Aggregation][ReadPolicy] Error counting " + collection + " documents", ar.cause());
+				}
+				handler.handle(ar.succeeded() ? ar.result() : null);
+			});
+		} else if (address != null) {
+			final JsonObject action = new JsonObject().put("action", "count").put("collection", collection).put("matcher", match);
+			vertx.eventBus().<JsonObject>request(address, action, ar -> handler.handle(counted(collection,
+					ar.succeeded() ? ar.result().body() : new JsonObject().put("message", ar.cause().getMessage()))));
+		} else {
+			mongo.count(collection, match, message -> handler.handle(counted(collection, message.body())));
+		}
+	}
+
+	private static Long counted(String collection, JsonObject reply) {
+		if (!"ok".equals(reply.getString("status"))) {
+			log.error("[Aggregation][ReadPolicy] Error counting " + collection + " documents : " + reply.getString("message"));
+			return null;
+		}
+		return reply.getLong("count", 0L);
+	}
+
+	/**
+	 * Takes the documents from the bucket, the handler is delayed while the bucket is in debt.
+	 */
+	public void consume(long documents, Handler<Void> handler) {
+		if (documentsPerSecond <= 0) {
+			handler.handle(null);
+			return;
+		}
+		final long delay;
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			tokens = Math.min(documentsPerSecond, tokens + (now - refilledAt) * documentsPerSecond / 1000.0);
+			refilledAt = now;
+			tokens -= documents;
+			delay = tokens < 0 ? (long) Math.ceil(-tokens * 1000.0 / documentsPerSecond) : 0L;
+		}
+		if (delay > 0) {
+			vertx.setTimer(delay, t -> handler.handle(null));
+		} else {
+			handler.handle(null);
+		}
+	}
+
+}
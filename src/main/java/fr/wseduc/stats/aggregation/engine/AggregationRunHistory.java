@@ -0,0 +1,267 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Persists a record of every aggregation run with per indicator figures :
+ * duration, traces scanned, documents written, documents per grouping and counted events (value of the global document).
+ * Written documents are summarized from the stats of the day in a single pipeline, after the run.
+ * Scanned traces are the ones matched by each scheduled indicator, counted before it runs. The fused engine computes
+ * every indicator in a single pass : its duration and scanned traces (every trace of the day) are only recorded
+ * for the whole engine.
+ */
+public class AggregationRunHistory {
+
+	private static final Logger log = LoggerFactory.getLogger(AggregationRunHistory.class);
+
+	public static final String RUNS_COLLECTION = "stats_aggregation_runs";
+	/** Maximum number of runs read at once, by a listing or to compute the metrics. */
+	public static final int MAX_RUNS = 1000;
+	private static final String GLOBAL = "global";
+
+	private final MongoDb mongo = MongoDb.getInstance();
+
+	/**
+	 * Records the run, never fails : the aggregation result is passed on whatever happens.
+	 * @param day : Aggregated day (recording date of the stats).
+	 * @param implementation : Name of the aggregation processing.
+	 * @param start : Start of the run in ms.
+	 * @param result : Aggregation result, with the scheduler indicators reports if any.
+	 */
+	public void record(final Date day, final String implementation, final long start, final JsonObject result,
+			final Handler<Void> next) {
+		final long duration = System.currentTimeMillis() - start;
+		summarize(day, summary -> {
+			final Map<String, JsonObject> indicators = new LinkedHashMap<>();
+			for (Object o : result.getJsonArray("indicators", new JsonArray())) {
+				if (!(o instanceof JsonObject)) continue;
+				final JsonObject report = (JsonObject) o;
+				final JsonObject indicator = new JsonObject().put("key", report.getString("key"))
+						.put("status", report.getString("status")).put("duration", report.getLong("duration"));
+				if (report.getValue("scanned") instanceof Number) {
+					indicator.put("scanned", report.getLong("scanned"));
+				}
+				if (report.getString("message") != null) {
+					indicator.put("message", report.getString("message"));
+				}
+				indicators.put(report.getString("key"), indicator);
+			}
+			if (summary.succeeded()) {
+				for (Map.Entry<String, JsonObject> written : summary.result().entrySet()) {
+					indicators.computeIfAbsent(written.getKey(), k -> new JsonObject().put("key", k).put("status", "ok"))
+							.mergeIn(written.getValue());
+				}
+			} else {
+				log.error("[Aggregation][History] Error summarizing stats of " + day, summary.cause());
+			}
+			final JsonObject run = new JsonObject()
+					.put("_id", UUID.randomUUID().toString())
+					.put("day", new SimpleDateFormat("yyyy-MM-dd").format(day))
+					.put("implementation", implementation)
+					.put("started", start)
+					.put("duration", duration)
+					.put("status", result.getString("status", "ok"))
+					.put("indicators", new JsonArray(new ArrayList<>(indicators.values())));
+			if (result.getString("message") != null) {
+				run.put("message", result.getString("message"));
+			}
+			if (!result.containsKey("rows")) {
+				save(day, implementation, duration, indicators.size(), run, next);
+				return;
+			}
+			final JsonObject engine = new JsonObject().put("rows", result.getLong("rows"))
+					.put("documents", result.getInteger("documents")).put("duration", result.getLong("duration"));
+			run.put("engine", engine);
+			final Calendar nextDay = Calendar.getInstance();
+			nextDay.setTime(day);
+			nextDay.add(Calendar.DATE, 1);
+			final JsonObject dayTraces = new JsonObject().put(TRACE_FIELD_DATE, new JsonObject()
+					.put("$gte", day.getTime()).put("$lt", nextDay.getTimeInMillis()));
+			AggregationReadPolicy.get().count(mongo, COLLECTIONS.events.name(), dayTraces, scanned -> {
+				if (scanned != null) {
+					engine.put("scanned", scanned);
+				}
+				save(day, implementation, duration, indicators.size(), run, next);
+			});
+		});
+	}
+
+	private void save(Date day, String implementation, long duration, int indicators, JsonObject run, Handler<Void> next) {
+		log.info("[Aggregation][History] " + implementation + " " + run.getString("day") + " took [" + duration +
+				"] ms, " + indicators + " indicators");
+		mongo.save(RUNS_COLLECTION, run, saved -> {
+			if (!"ok".equals(saved.body().getString("status"))) {
+				log.error("[Aggregation][History] Error saving run of " + day + " : " + saved.body().getString("message"));
+			}
+			next.handle(null);
+		});
+	}
+
+	/**
+	 * Per indicator key : {documents, groups : {grouping : documents}, events}.
+	 */
+	private void summarize(Date day, Handler<AsyncResult<Map<String, JsonObject>>> handler) {
+		final JsonArray pipeline = new JsonArray()
+				.add(new JsonObject().put("$match", new JsonObject().put(STATS_FIELD_DATE, MongoDb.formatDate(day))))
+				.add(new JsonObject().put("$project", new JsonObject()
+						.put(STATS_FIELD_GROUPBY, 1)
+						.put("kv", new JsonObject().put("$objectToArray", "$$ROOT"))))
+				.add(new JsonObject().put("$unwind", "$kv"))
+				.add(new JsonObject().put("$match", new JsonObject().put("kv.k", new JsonObject().put("$regex", "^[A-Z]"))))
+				.add(new JsonObject().put("$group", new JsonObject()
+						.put("_id", new JsonObject().put("key", "$kv.k").put("groupedBy", "$" + STATS_FIELD_GROUPBY))
+						.put("documents", new JsonObject().put("$sum", 1))
+						.put("total", new JsonObject().put("$sum", "$kv.v"))));
+		final Map<String, JsonObject> summary = new LinkedHashMap<>();
+		new AggregationCursor(mongo, COLLECTIONS.stats.name(), pipeline, 1000).stream(batch -> {
+			for (Object o : batch) {
+				if (!(o instanceof JsonObject)) continue;
+				final JsonObject row = (JsonObject) o;
+				final JsonObject id = row.getJsonObject("_id", new JsonObject());
+				final Object groupedBy = id.getValue("groupedBy");
+				final String grouping = groupedBy instanceof String ? (String) groupedBy : GLOBAL;
+				final long documents = row.getLong("documents", 0L);
+				final JsonObject indicator = summary.computeIfAbsent(id.getString("key"),
+						k -> new JsonObject().put("documents", 0L).put("groups", new JsonObject()));
+				indicator.put("documents", indicator.getLong("documents") + documents);
+				indicator.getJsonObject("groups").put(grouping, documents);
+				if (GLOBAL.equals(grouping) && row.getValue("total") instanceof Number) {
+					indicator.put("events", ((Number) row.getValue("total")).longValue());
+				}
+			}
+		}, read -> {
+			if (read.succeeded()) {
+				handler.handle(Future.succeededFuture(summary));
+			} else {
+				handler.handle(Future.failedFuture(read.cause()));
+			}
+		});
+	}
+
+	/**
+	 * @param since : Lower bound of the run start in ms.
+	 * @param before : Exclusive upper bound of the run start in ms, to page through the runs, null for none.
+	 * @param limit : Maximum number of runs, capped to MAX_RUNS.
+	 * @param handler : Called with the runs, most recent first.
+	 */
+	public void list(long since, Long before, int limit, Handler<AsyncResult<JsonArray>> handler) {
+		final JsonObject started = new JsonObject().put("$gte", since);
+		if (before != null) {
+			started.put("$lt", before);
+		}
+		final JsonObject query = new JsonObject().put("started", started);
+		final int max = Math.min(Math.max(limit, 1), MAX_RUNS);
+		mongo.find(RUNS_COLLECTION, query, new JsonObject().put("started", -1), null, 0, max, max, message -> {
+			if ("ok".equals(message.body().getString("status"))) {
+				handler.handle(Future.succeededFuture(message.body().getJsonArray("results", new JsonArray())));
+			} else {
+				handler.handle(Future.failedFuture(message.body().getString("message")));
+			}
+		});
+	}
+
+	/**
+	 * Per indicator metrics of the runs since the given date : last and mean duration, documents and events,
+	 * with the ratio of the last value to the mean of the previous ones to spot regressions.
+	 * Only the MAX_RUNS most recent runs are read.
+	 * @param handler : Called with {key : {runs, errors, duration, scanned, documents, events}}.
+	 */
+	public void metrics(long since, Handler<AsyncResult<JsonObject>> handler) {
+		list(since, null, MAX_RUNS, listed -> {
+			if (listed.failed()) {
+				handler.handle(Future.failedFuture(listed.cause()));
+				return;
+			}
+			final Map<String, Map<String, long[]>> figures = new LinkedHashMap<>();
+			final Map<String, long[]> runs = new LinkedHashMap<>();
+			//Runs are sorted most recent first : the first value seen is the last one.
+			for (Object r : listed.result()) {
+				if (!(r instanceof JsonObject)) continue;
+				for (Object o : ((JsonObject) r).getJsonArray("indicators", new JsonArray())) {
+					if (!(o instanceof JsonObject)) continue;
+					final JsonObject indicator = (JsonObject) o;
+					final String key = indicator.getString("key");
+					final long[] counts = runs.computeIfAbsent(key, k -> new long[2]);
+					counts[0]++;
+					if (!"ok".equals(indicator.getString("status"))) {
+						counts[1]++;
+					}
+					final Map<String, long[]> values = figures.computeIfAbsent(key, k -> new LinkedHashMap<>());
+					for (String figure : new String[] {"duration", "scanned", "documents", "events"}) {
+						if (indicator.getValue(figure) instanceof Number) {
+							final long value = ((Number) indicator.getValue(figure)).longValue();
+							final long[] stat = values.get(figure);
+							if (stat == null) {
+								//last, sum of the previous ones, number of previous ones
+								values.put(figure, new long[] {value, 0L, 0L});
+							} else {
+								stat[1] += value;
+								stat[2]++;
+							}
+						}
+					}
+				}
+			}
+			final JsonObject metrics = new JsonObject();
+			for (Map.Entry<String, Map<String, long[]>> entry : figures.entrySet()) {
+				final long[] counts = runs.get(entry.getKey());
+				final JsonObject metric = new JsonObject().put("runs", counts[0]).put("errors", counts[1]);
+				for (Map.Entry<String, long[]> figure : entry.getValue().entrySet()) {
+					final long[] stat = figure.getValue();
+					final JsonObject value = new JsonObject().put("last", stat[0]);
+					if (stat[2] > 0) {
+						final double mean = (double) stat[1] / stat[2];
+						value.put("mean", mean);
+						if (mean > 0) {
+							value.put("ratio", stat[0] / mean);
+						}
+					}
+					metric.put(figure.getKey(), value);
+				}
+				metrics.put(entry.getKey(), metric);
+			}
+			handler.handle(Future.succeededFuture(metrics));
+		});
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Per aggregated day, the insertion date before which every trace of the day was taken into account.
+ * Traces of the day inserted after it are late : their groups have to be recomputed.
+ */
+public class EventsHighWaterMark {
+
+	public static final String COLLECTION = "stats_high_water_marks";
+
+	private final MongoDb mongo = MongoDb.getInstance();
+
+	public static String key(Date day) {
+		return new SimpleDateFormat("yyyy-MM-dd").format(day);
+	}
+
+	/**
+	 * @param insertedBefore : Traces inserted before this date (ms) were aggregated.
+	 */
+	public void mark(Date day, long insertedBefore, Handler<AsyncResult<Void>> handler) {
+		final JsonObject mark = new JsonObject()
+				.put("_id", key(day))
+				.put("insertedBefore", insertedBefore)
+				.put("modified", System.currentTimeMillis());
+		mongo.save(COLLECTION, mark, message -> {
+			if ("ok".equals(message.body().getString("status"))) {
+				handler.handle(Future.succeededFuture());
+			} else {
+				handler.handle(Future.failedFuture(message.body().getString("message")));
+			}
+		});
+	}
+
+	/**
+	 * @param handler : Called with the marks by day key, days never marked are missing.
+	 */
+	public void load(List<Date> days, Handler<AsyncResult<Map<String, JsonObject>>> handler) {
+		final JsonArray keys = new JsonArray();
+		for (Date day : days) {
+			keys.add(key(day));
+		}
+		mongo.find(COLLECTION, new JsonObject().put("_id", new JsonObject().put("$in", keys)), message -> {
+			if (!"ok".equals(message.body().getString("status"))) {
+				handler.handle(Future.failedFuture(message.body().getString("message")));
+				return;
+			}
+			final Map<String, JsonObject> marks = new HashMap<>();
+			for (Object o : message.body().getJsonArray("results", new JsonArray())) {
+				if (o instanceof JsonObject) {
+					marks.put(((JsonObject) o).getString("_id"), (JsonObject) o);
+				}
+			}
+			handler.handle(Future.succeededFuture(marks));
+		});
+	}
+
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.entcore.common.aggregation.AggregationTools;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+
+/**
+ * Computes every daily indicator (connexions, hour peaks, account creation / deletion / activation,
+ * daily unique visitors and service access) for all their groups from two grouped passes over the day traces.
+ * Output documents are the same as the ones written by the chained IndicatorMongoImpl.
+ */
+public class FusedAggregationEngine {
+
+	private static final Logger log = LoggerFactory.getLogger(FusedAggregationEngine.class);
+
+	public static final String UNIQUE_VISITORS_DAY_KEY = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_DAY";
+
+	/** Groups of connexions, accounts and unique visitors indicators. */
+	public static final List<Grouping> DEFAULT_GROUPINGS = Arrays.asList(
+			Grouping.of(),
+			Grouping.of(TRACE_FIELD_PROFILE),
+			Grouping.of(TRACE_FIELD_STRUCTURES),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE));
+
+	/** Groups of the service access indicator. */
+	public static final List<Grouping> ACCESS_GROUPINGS = Arrays.asList(
+			Grouping.of(),
+			Grouping.of(TRACE_FIELD_MODULE),
+			Grouping.of(TRACE_FIELD_PROFILE),
+			Grouping.of(TRACE_FIELD_PROFILE, TRACE_FIELD_MODULE),
+			Grouping.of(TRACE_FIELD_STRUCTURES),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_MODULE),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE, TRACE_FIELD_MODULE),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_MODULE),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE),
+			Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE, TRACE_FIELD_MODULE));
+
+	private static final List<String> COUNTED_TYPES = Arrays.asList(
+			TRACE_TYPE_CONNEXION, TRACE_TYPE_CREATE_USER, TRACE_TYPE_DELETE_USER, TRACE_TYPE_ACTIVATION);
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final Date day;
+	private final Date writeDate;
+	private final int batchSize;
+	private final long[] hourBoundaries;
+	private final String[] hourKeys = new String[24];
+	private boolean writeSketches = false;
+	private String statsCollection = COLLECTIONS.stats.name();
+	private Set<String> shardStructures = null;
+	private boolean global = false;
+	private List<Grouping> defaultGroupings = DEFAULT_GROUPINGS;
+	private List<Grouping> accessGroupings = ACCESS_GROUPINGS;
+
+	public FusedAggregationEngine(Date day, Date writeDate, int batchSize) {
+		this.day = day;
+		this.writeDate = writeDate;
+		this.batchSize = batchSize;
+		this.hourBoundaries = hourBoundaries(day);
+		for (int h = 0; h < 24; h++) {
+			hourKeys[h] = TRACE_TYPE_CONNEXION + "_H" + h;
+		}
+	}
+
+	/**
+	 * Hour boundaries of the day, computed like the hour peak date filters : boundaries[h] <= hour h < boundaries[h + 1].
+	 */
+	public static long[] hourBoundaries(Date day) {
+		final long[] boundaries = new long[25];
+		for (int h = 0; h <= 24; h++) {
+			final Calendar calendarDay = Calendar.getInstance();
+			calendarDay.setTime(day);
+			boundaries[h] = AggregationTools.setHourTo(calendarDay, h).getTime();
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Hour index of the trace date : number of hour boundaries lower or equal to the date, minus one.
+	 */
+	public static JsonObject hourExpression(long[] hourBoundaries) {
+		final JsonArray boundaries = new JsonArray();
+		for (long boundary : hourBoundaries) {
+			boundaries.add(boundary);
+		}
+		return new JsonObject().put("$subtract", new JsonArray()
+				.add(new JsonObject().put("$size", new JsonObject().put("$filter", new JsonObject()
+						.put("input", boundaries)
+						.put("as", "boundary")
+						.put("cond", new JsonObject().put("$lte", new JsonArray().add("$$boundary").add("$" + TRACE_FIELD_DATE))))))
+				.add(1));
+	}
+
+	private JsonObject dayMatch(Object types) {
+		return periodMatch(types, hourBoundaries[0]);
+	}
+
+	/**
+	 * Traces of the types from the given date to the end of the day.
+	 */
+	private JsonObject periodMatch(Object types, long from) {
+		final JsonObject match = new JsonObject()
+				.put(TRACE_FIELD_DATE, new JsonObject()
+						.put("$gte", from)
+						.put("$lt", hourBoundaries[24]))
+				.put(TRACE_FIELD_TYPE, types);
+		if (shardStructures != null) {
+			match.put(TRACE_FIELD_STRUCTURES, new JsonObject().put("$in", new JsonArray(new ArrayList<>(shardStructures))));
+		}
+		return new JsonObject().put("$match", match);
+	}
+
+	/**
+	 * Row values of the groups : structures and classes are left out when only global groups are computed.
+	 */
+	private JsonObject rowGroup(JsonObject group) {
+		if (!global) {
+			group.put(TRACE_FIELD_STRUCTURES, "$" + TRACE_FIELD_STRUCTURES)
+				.put(TRACE_FIELD_CLASSES, "$" + TRACE_FIELD_CLASSES);
+		}
+		return group;
+	}
+
+	private static List<Grouping> scoped(List<Grouping> groupings, boolean structures) {
+		final List<Grouping> scoped = new ArrayList<>();
+		for (Grouping grouping : groupings) {
+			if (Arrays.asList(grouping.getFields()).contains(TRACE_FIELD_STRUCTURES) == structures) {
+				scoped.add(grouping);
+			}
+		}
+		return scoped;
+	}
+
+	/**
+	 * The document is written by this engine : every document, or only the ones of the shard structures.
+	 */
+	private boolean inScope(JsonObject document) {
+		return shardStructures == null ||
+				shardStructures.contains(document.getJsonObject("criteria").getString(TRACE_FIELD_STRUCTURES + "_id"));
+	}
+
+	private List<JsonObject> scoped(List<JsonObject> documents) {
+		if (shardStructures == null) {
+			return documents;
+		}
+		final List<JsonObject> scoped = new ArrayList<>();
+		for (JsonObject document : documents) {
+			if (inScope(document)) {
+				scoped.add(document);
+			}
+		}
+		return scoped;
+	}
+
+	private static JsonObject ifType(String type, Object then) {
+		return new JsonObject().put("$cond", new JsonArray()
+				.add(new JsonObject().put("$eq", new JsonArray().add("$" + TRACE_FIELD_TYPE).add(type)))
+				.add(then)
+				.addNull());
+	}
+
+	/**
+	 * Traces counted at the finest grain : type, connexion hour, profile, service module, structures and classes.
+	 */
+	protected JsonArray countsPipeline() {
+		final JsonArray types = new JsonArray(new ArrayList<>(COUNTED_TYPES)).add(TRACE_TYPE_SVC_ACCESS);
+		return new JsonArray()
+				.add(dayMatch(new JsonObject().put("$in", types)))
+				.add(new JsonObject().put("$group", new JsonObject()
+						.put("_id", rowGroup(new JsonObject()
+								.put(TRACE_FIELD_TYPE, "$" + TRACE_FIELD_TYPE)
+								.put("hour", ifType(TRACE_TYPE_CONNEXION, hourExpression(hourBoundaries)))
+								.put(TRACE_FIELD_PROFILE, "$" + TRACE_FIELD_PROFILE)
+								.put(TRACE_FIELD_MODULE, ifType(TRACE_TYPE_SVC_ACCESS, "$" + TRACE_FIELD_MODULE))))
+						.put("count", new JsonObject().put("$sum", 1))));
+	}
+
+	/**
+	 * Distinct connected users with their profile, structures and classes.
+	 */
+	protected JsonArray visitorsPipeline() {
+		return new JsonArray()
+				.add(dayMatch(TRACE_TYPE_CONNEXION))
+				.add(new JsonObject().put("$group", new JsonObject()
+						.put("_id", rowGroup(new JsonObject()
+								.put(TRACE_FIELD_USER, "$" + TRACE_FIELD_USER)
+								.put(TRACE_FIELD_PROFILE, "$" + TRACE_FIELD_PROFILE)))));
+	}
+
+	/**
+	 * Distinct connected users of the period with their profile, structures and classes.
+	 */
+	protected JsonArray periodVisitorsPipeline(long from) {
+		return new JsonArray()
+				.add(periodMatch(TRACE_TYPE_CONNEXION, from))
+				.add(new JsonObject().put("$group", new JsonObject()
+						.put("_id", rowGroup(new JsonObject()
+								.put(TRACE_FIELD_USER, "$" + TRACE_FIELD_USER)
+								.put(TRACE_FIELD_PROFILE, "$" + TRACE_FIELD_PROFILE)))));
+	}
+
+	protected void accumulateCounts(final RollupAccumulator accumulator, final JsonObject row) {
+		final JsonObject group = row.getJsonObject("_id", new JsonObject());
+		final String type = group.getString(TRACE_FIELD_TYPE);
+		final long count = row.getLong("count", 0L);
+		if (TRACE_TYPE_SVC_ACCESS.equals(type)) {
+			accumulator.add(accessGroupings, group, TRACE_TYPE_SVC_ACCESS, count);
+		} else if (COUNTED_TYPES.contains(type)) {
+			accumulator.add(defaultGroupings, group, type, count);
+			final Integer hour = group.getInteger("hour");
+			if (TRACE_TYPE_CONNEXION.equals(type) && hour != null && hour >= 0 && hour < 24) {
+				accumulator.add(defaultGroupings, group, hourKeys[hour], count);
+			}
+		}
+	}
+
+	protected void accumulateVisitors(final RollupAccumulator accumulator, final JsonObject row) {
+		final JsonObject group = row.getJsonObject("_id", new JsonObject());
+		accumulator.addVisitor(defaultGroupings, group, group.getString(TRACE_FIELD_USER));
+	}
+
+	/**
+	 * Accumulator of every indicator key written by the engine.
+	 */
+	protected RollupAccumulator newAccumulator() {
+		return new RollupAccumulator(keys());
+	}
+
+	private List<String> keys() {
+		final List<String> keys = new ArrayList<>(COUNTED_TYPES);
+		keys.add(TRACE_TYPE_SVC_ACCESS);
+		keys.addAll(Arrays.asList(hourKeys));
+		return keys;
+	}
+
+	/**
+	 * Groups the day traces server side at the finest grain (counts, then distinct visitors),
+	 * rolls the rows up into every group, then writes every group document.
+	 * @param callBack : Called with {status, rows, documents, duration} when processing is over.
+	 */
+	public void execute(final Handler<JsonObject> callBack) {
+		final long start = System.currentTimeMillis();
+		final RollupAccumulator accumulator = newAccumulator();
+		new AggregationCursor(mongo, COLLECTIONS.events.name(), countsPipeline(), batchSize).readTraces().stream(batch -> {
+			for (Object o : batch) {
+				if (o instanceof JsonObject) {
+					accumulateCounts(accumulator, (JsonObject) o);
+				}
+			}
+		}, counted -> {
+			if (counted.failed()) {
+				log.error("[Aggregation][Fused] Error counting traces of " + day, counted.cause());
+				callBack.handle(new JsonObject().put("status", "error").put("message", counted.cause().getMessage()));
+				return;
+			}
+			new AggregationCursor(mongo, COLLECTIONS.events.name(), visitorsPipeline(), batchSize).readTraces().stream(batch -> {
+				for (Object o : batch) {
+					if (o instanceof JsonObject) {
+						accumulateVisitors(accumulator, (JsonObject) o);
+					}
+				}
+			}, read -> {
+				if (read.failed()) {
+					log.error("[Aggregation][Fused] Error reading visitors of " + day, read.cause());
+					callBack.handle(new JsonObject().put("status", "error").put("message", read.cause().getMessage()));
+					return;
+				}
+				write(accumulator, counted.result() + read.result(), start, callBack);
+			});
+		});
+	}
+
+	/**
+	 * Counts the distinct visitors of every group from the period start to the end of the day,
+	 * and writes them under the key with the day documents (e.g. week and month unique visitors of a staged run).
+	 * @param callBack : Called with {status, rows, documents, duration} when processing is over.
+	 */
+	public void executePeriodVisitors(final Date from, final String key, final Handler<JsonObject> callBack) {
+		final long start = System.currentTimeMillis();
+		final RollupAccumulator accumulator = new RollupAccumulator(Collections.<String>emptyList());
+		new AggregationCursor(mongo, COLLECTIONS.events.name(), periodVisitorsPipeline(from.getTime()), batchSize).readTraces().stream(batch -> {
+			for (Object o : batch) {
+				if (o instanceof JsonObject) {
+					accumulateVisitors(accumulator, (JsonObject) o);
+				}
+			}
+		}, read -> {
+			if (read.failed()) {
+				log.error("[Aggregation][Fused] Error reading " + key + " visitors of " + day, read.cause());
+				callBack.handle(new JsonObject().put("status", "error").put("message", read.cause().getMessage()));
+				return;
+			}
+			new StatsWriter(mongo, statsCollection, batchSize).write(writeDate, scoped(accumulator.toDocuments(key)), written -> {
+				if (written.failed()) {
+					log.error("[Aggregation][Fused] Error writing " + key + " of " + day, written.cause());
+					callBack.handle(new JsonObject().put("status", "error").put("message", written.cause().getMessage()));
+					return;
+				}
+				callBack.handle(new JsonObject().put("status", "ok").put("rows", read.result())
+						.put("documents", written.result()).put("duration", System.currentTimeMillis() - start));
+			});
+		});
+	}
+
+	private void write(final RollupAccumulator accumulator, final long rows, final long start, final Handler<JsonObject> callBack) {
+		new StatsWriter(mongo, statsCollection, batchSize).write(writeDate, scoped(accumulator.toDocuments(UNIQUE_VISITORS_DAY_KEY)), written -> {
+			if (written.failed()) {
+				log.error("[Aggregation][Fused] Error writing stats of " + day, written.cause());
+				callBack.handle(new JsonObject().put("status", "error").put("message", written.cause().getMessage()));
+				return;
+			}
+			log.info("[Aggregation][Fused] " + rows + " rows rolled up in " + written.result() +
+					" documents, took [" + (System.currentTimeMillis() - start) + "] ms");
+			final JsonObject result = new JsonObject().put("status", "ok")
+					.put("rows", rows).put("documents", written.result())
+					.put("duration", System.currentTimeMillis() - start);
+			if (!writeSketches) {
+				callBack.handle(result);
+				return;
+			}
+			writeSketches(accumulator, sketched -> {
+				if (sketched.failed()) {
+					log.error("[Aggregation][Fused] Error writing unique visitors sketches of " + day, sketched.cause());
+					callBack.handle(new JsonObject().put("status", "error").put("message", sketched.cause().getMessage()));
+					return;
+				}
+				callBack.handle(result.put("sketches", sketched.result()));
+			});
+		});
+	}
+
+	/**
+	 * Stores the daily unique visitors sketch of every group, the global one is always written
+	 * so that a day without connexion still counts as sketched.
+	 */
+	private void writeSketches(RollupAccumulator accumulator, Handler<AsyncResult<Integer>> handler) {
+		final List<JsonObject> sketches = scoped(accumulator.toSketchDocuments(UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY));
+		boolean globalSketch = shardStructures != null;
+		for (JsonObject sketch : sketches) {
+			globalSketch |= sketch.getJsonObject("criteria").getValue(STATS_FIELD_GROUPBY) instanceof JsonObject;
+		}
+		if (!globalSketch) {
+			sketches.add(new JsonObject().put("criteria", Grouping.of().criteria(new String[0])).put("values",
+					new JsonObject().put(UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY, new HyperLogLog().encode())));
+		}
+		new StatsWriter(mongo, UniqueVisitorSketches.SKETCHES_COLLECTION, batchSize).write(writeDate, sketches, handler);
+	}
+
+	/**
+	 * Only computes the structure groups of the given structures, from the traces of these structures.
+	 */
+	public FusedAggregationEngine setShard(Collection<String> structures) {
+		this.shardStructures = new HashSet<>(structures);
+		this.global = false;
+		this.defaultGroupings = scoped(DEFAULT_GROUPINGS, true);
+		this.accessGroupings = scoped(ACCESS_GROUPINGS, true);
+		return this;
+	}
+
+	/**
+	 * Only computes the groups without structure (global, profile, module), complementing the shards.
+	 */
+	public FusedAggregationEngine setGlobal() {
+		this.shardStructures = null;
+		this.global = true;
+		this.defaultGroupings = scoped(DEFAULT_GROUPINGS, false);
+		this.accessGroupings = scoped(ACCESS_GROUPINGS, false);
+		return this;
+	}
+
+	/**
+	 * Writes the stats documents to another collection than the stats one, e.g. a staging collection.
+	 */
+	public FusedAggregationEngine setStatsCollection(String statsCollection) {
+		this.statsCollection = statsCollection;
+		return this;
+	}
+
+	/**
+	 * Also stores the daily unique visitors sketches, used to merge week and month unique visitors.
+	 */
+	public FusedAggregationEngine setWriteSketches(boolean writeSketches) {
+		this.writeSketches = writeSketches;
+		return this;
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.Objects;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A combination of trace fields stats are grouped by, e.g. structures/classes/profil.
+ * Groupings are equal when they have the same groupedBy, whatever the list they were declared in.
+ */
+public final class Grouping {
+
+	private static final char SEPARATOR = '\u0001';
+	private static final String NULL_VALUE = "\u0000";
+
+	private final String[] fields;
+	private final String groupedBy;
+
+	private Grouping(String... fields) {
+		this.fields = fields;
+		this.groupedBy = fields.length > 0 ? String.join("/", fields) : null;
+	}
+
+	public static Grouping of(String... fields) {
+		return new Grouping(fields);
+	}
+
+	public String[] getFields() {
+		return fields;
+	}
+
+	public String getGroupedBy() {
+		return groupedBy;
+	}
+
+	public int size() {
+		return fields.length;
+	}
+
+	/**
+	 * Unique key of the stats document of a group.
+	 */
+	public String key(String[] values) {
+		final StringBuilder sb = new StringBuilder(groupedBy != null ? groupedBy : "");
+		for (String value : values) {
+			sb.append(SEPARATOR).append(value != null ? value : NULL_VALUE);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Criteria identifying the stats document of a group (without the date).
+	 */
+	public JsonObject criteria(String[] values) {
+		final JsonObject criteria = new JsonObject();
+		if (groupedBy == null) {
+			criteria.put(STATS_FIELD_GROUPBY, new JsonObject().put("$exists", false));
+			return criteria;
+		}
+		criteria.put(STATS_FIELD_GROUPBY, groupedBy);
+		for (int i = 0; i < fields.length; i++) {
+			if (values[i] != null) {
+				criteria.put(fields[i] + "_id", values[i]);
+			} else {
+				criteria.putNull(fields[i] + "_id");
+			}
+		}
+		return criteria;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Grouping)) {
+			return false;
+		}
+		return Objects.equals(groupedBy, ((Grouping) o).groupedBy);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(groupedBy);
+	}
+
+}
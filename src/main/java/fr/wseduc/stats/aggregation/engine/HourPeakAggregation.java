@@ -0,0 +1,126 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Connexion hour peaks (LOGIN_H0 .. LOGIN_H23) of every group computed with a single aggregation.
+ * Traces are grouped server side by hour, profile, structures and classes arrays,
+ * then each row is rolled up in memory into the default groups.
+ */
+public class HourPeakAggregation {
+
+	private static final Logger log = LoggerFactory.getLogger(HourPeakAggregation.class);
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final Date day;
+	private final Date writeDate;
+	private final int batchSize;
+	private final long[] hourBoundaries;
+
+	public HourPeakAggregation(Date day, Date writeDate, int batchSize) {
+		this.day = day;
+		this.writeDate = writeDate;
+		this.batchSize = batchSize;
+		this.hourBoundaries = FusedAggregationEngine.hourBoundaries(day);
+	}
+
+	protected JsonArray pipeline() {
+		return new JsonArray()
+				.add(new JsonObject().put("$match", new JsonObject()
+						.put(TRACE_FIELD_TYPE, TRACE_TYPE_CONNEXION)
+						.put(TRACE_FIELD_DATE, new JsonObject()
+								.put("$gte", hourBoundaries[0])
+								.put("$lt", hourBoundaries[24]))))
+				.add(new JsonObject().put("$group", new JsonObject()
+						.put("_id", new JsonObject()
+								.put("hour", FusedAggregationEngine.hourExpression(hourBoundaries))
+								.put(TRACE_FIELD_PROFILE, "$" + TRACE_FIELD_PROFILE)
+								.put(TRACE_FIELD_STRUCTURES, "$" + TRACE_FIELD_STRUCTURES)
+								.put(TRACE_FIELD_CLASSES, "$" + TRACE_FIELD_CLASSES))
+						.put("count", new JsonObject().put("$sum", 1))));
+	}
+
+	static List<String> hourKeys() {
+		final List<String> hourKeys = new ArrayList<>();
+		for (int h = 0; h < 24; h++) {
+			hourKeys.add(TRACE_TYPE_CONNEXION + "_H" + h);
+		}
+		return hourKeys;
+	}
+
+	/**
+	 * Rolls the rows grouped by hour, profile, structures and classes up into the default groups.
+	 */
+	static void accumulate(RollupAccumulator accumulator, List<String> hourKeys, JsonArray batch) {
+		for (Object o : batch) {
+			if (!(o instanceof JsonObject)) continue;
+			final JsonObject row = (JsonObject) o;
+			final JsonObject group = row.getJsonObject("_id", new JsonObject());
+			final Integer hour = group.getInteger("hour");
+			if (hour == null || hour < 0 || hour > 23) continue;
+			accumulator.add(FusedAggregationEngine.DEFAULT_GROUPINGS, group, hourKeys.get(hour), row.getLong("count", 0L));
+		}
+	}
+
+	/**
+	 * @param callBack : Called with {status, rows, documents} when processing is over.
+	 */
+	public void execute(final Handler<JsonObject> callBack) {
+		final long start = System.currentTimeMillis();
+		final List<String> hourKeys = hourKeys();
+		final RollupAccumulator accumulator = new RollupAccumulator(hourKeys);
+		new AggregationCursor(mongo, COLLECTIONS.events.name(), pipeline(), batchSize).readTraces().stream(batch -> accumulate(accumulator, hourKeys, batch), read -> {
+			if (read.failed()) {
+				log.error("[Aggregation][HourPeaks] Error aggregating hour peaks of " + day, read.cause());
+				callBack.handle(new JsonObject().put("status", "error").put("message", read.cause().getMessage()));
+				return;
+			}
+			new StatsWriter(mongo, COLLECTIONS.stats.name(), batchSize).write(writeDate, accumulator.toDocuments(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY), written -> {
+				if (written.failed()) {
+					log.error("[Aggregation][HourPeaks] Error writing hour peaks of " + day, written.cause());
+					callBack.handle(new JsonObject().put("status", "error").put("message", written.cause().getMessage()));
+					return;
+				}
+				log.info("[Aggregation][HourPeaks] " + read.result() + " rows aggregated in " + written.result() +
+						" documents, took [" + (System.currentTimeMillis() - start) + "] ms");
+				callBack.handle(new JsonObject().put("status", "ok")
+						.put("rows", read.result()).put("documents", written.result()));
+			});
+		});
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.entcore.common.aggregation.indicators.Indicator;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Runs independent indicators concurrently, at most parallelism at a time, the most expensive first.
+ * The cost of an indicator is its last measured duration, indicators never measured are started first.
+ * An indicator not over after the timeout is reported as timed out and its slot is released
+ * (the running Mongo aggregation itself is not cancelled).
+ * Each indicator takes a pipeline slot of the {@link AggregationReadPolicy} and, if its read match is known,
+ * is charged with the traces it matches before it starts, these being reported as scanned. Its queries still go through the module persistor :
+ * the read preference only applies to the engine pipelines.
+ * The indicators upsert the same group documents : they only run concurrently once the natural key of the stats
+ * documents is unique (see MongoIndexManager), an indicator failing on a duplicate key being run again once.
+ */
+public class IndicatorScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(IndicatorScheduler.class);
+
+	private static final Map<String, Long> lastDurations = new ConcurrentHashMap<>();
+	private static final String DUPLICATE_KEY = "E11000";
+	private static volatile boolean statsKeyUnique = false;
+
+	private final Vertx vertx;
+	private final int parallelism;
+	private final long timeout;
+	private Map<Indicator, JsonObject> readMatches = Collections.emptyMap();
+	private boolean countScanned = false;
+
+	/**
+	 * @param vertx : Used for timeouts, may be null when no timeout is set.
+	 * @param parallelism : Maximum number of indicators running at the same time.
+	 * @param timeout : Per indicator timeout in ms, 0 for none.
+	 */
+	public IndicatorScheduler(Vertx vertx, int parallelism, long timeout) {
+		this.vertx = vertx;
+		if (parallelism > 1 && !statsKeyUnique) {
+			log.warn("[Aggregation][Scheduler] Indicators run one at a time : the stats natural key index is missing");
+		}
+		this.parallelism = statsKeyUnique ? Math.max(1, parallelism) : 1;
+		this.timeout = vertx != null ? Math.max(0L, timeout) : 0L;
+	}
+
+	/**
+	 * @param unique : Whether the unique index on the natural key of the stats documents exists.
+	 */
+	public static void setStatsKeyUnique(boolean unique) {
+		statsKeyUnique = unique;
+	}
+
+	/**
+	 * @param readMatches : Match of the traces read by each indicator, charged to the documents budget.
+	 */
+	public IndicatorScheduler setReadMatches(Map<Indicator, JsonObject> readMatches) {
+		this.readMatches = readMatches;
+		return this;
+	}
+
+	/**
+	 * @param countScanned : Whether the traces matched by each indicator are counted even if the reads are not budgeted.
+	 */
+	public IndicatorScheduler setCountScanned(boolean countScanned) {
+		this.countScanned = countScanned;
+		return this;
+	}
+
+	/**
+	 * @param callBack : Called when every indicator is over with
+	 * {status, errors, indicators : [{key, status, duration, scanned, result | message}]},
+	 * scanned being only set for counted indicators.
+	 */
+	public void execute(List<? extends Indicator> indicators, final Handler<JsonObject> callBack) {
+		final List<Indicator> queue = new ArrayList<>(indicators);
+		queue.sort(Comparator.comparingLong(i -> -lastDurations.getOrDefault(i.getWriteKey(), Long.MAX_VALUE)));
+		final Run run = new Run(queue, callBack);
+		if (queue.isEmpty()) {
+			run.end();
+			return;
+		}
+		for (int i = 0; i < parallelism && i < queue.size(); i++) {
+			run.next();
+		}
+	}
+
+	private final class Run {
+		private final List<Indicator> queue;
+		private final Handler<JsonObject> callBack;
+		private final JsonArray reports = new JsonArray();
+		private final Set<Indicator> retried = new HashSet<>();
+		private int started = 0;
+		private int over = 0;
+		private int errors = 0;
+
+		private Run(List<Indicator> queue, Handler<JsonObject> callBack) {
+			this.queue = queue;
+			this.callBack = callBack;
+		}
+
+		private void next() {
+			if (started >= queue.size()) {
+				return;
+			}
+			final Indicator indicator = queue.get(started++);
+			final AggregationReadPolicy policy = AggregationReadPolicy.get();
+			policy.acquirePipeline(v -> {
+				final JsonObject match = readMatches.get(indicator);
+				if (match != null && (policy.isBudgeted() || countScanned)) {
+					policy.count(MongoDb.getInstance(), COLLECTIONS.events.name(), match, scanned ->
+							policy.consume(scanned != null ? scanned : 0L, c -> run(indicator, policy, scanned)));
+				} else {
+					run(indicator, policy, null);
+				}
+			});
+		}
+
+		private void run(Indicator indicator, AggregationReadPolicy policy, Long scanned) {
+			final String key = indicator.getWriteKey();
+			final long start = System.currentTimeMillis();
+			final boolean[] done = {false};
+			final long timerId = timeout > 0 ? vertx.setTimer(timeout, t -> {
+				if (done[0]) return;
+				done[0] = true;
+				policy.releasePipeline();
+				log.error("[Aggregation][Scheduler] Indicator " + key + " timed out after " + timeout + " ms");
+				report(new JsonObject().put("key", key).put("status", "timeout").put("duration", timeout), scanned, true);
+			}) : -1L;
+			try {
+				indicator.aggregate(result -> {
+					if (done[0]) return;
+					done[0] = true;
+					policy.releasePipeline();
+					if (timerId >= 0) {
+						vertx.cancelTimer(timerId);
+					}
+					final long duration = System.currentTimeMillis() - start;
+					lastDurations.put(key, duration);
+					final boolean failed = result == null || "error".equals(result.getString("status"));
+					if (failed && result != null && result.getString("message", "").contains(DUPLICATE_KEY) && retried.add(indicator)) {
+						// A concurrent indicator inserted the group first : its document is updated this time
+						log.warn("[Aggregation][Scheduler] Indicator " + key + " hit a duplicate key, running it again");
+						policy.acquirePipeline(v -> run(indicator, policy, scanned));
+						return;
+					}
+					final JsonObject report = new JsonObject().put("key", key)
+							.put("status", failed ? "error" : "ok").put("duration", duration);
+					if (failed) {
+						report.put("message", result != null ? result.getString("message") : "no.result");
+					} else {
+						report.put("result", result);
+					}
+					report(report, scanned, failed);
+				});
+			} catch (RuntimeException e) {
+				if (done[0]) return;
+				done[0] = true;
+				policy.releasePipeline();
+				if (timerId >= 0) {
+					vertx.cancelTimer(timerId);
+				}
+				log.error("[Aggregation][Scheduler] Indicator " + key + " failed", e);
+				report(new JsonObject().put("key", key).put("status", "error")
+						.put("duration", System.currentTimeMillis() - start).put("message", e.getMessage()), scanned, true);
+			}
+		}
+
+		private void report(JsonObject report, Long scanned, boolean failed) {
+			if (scanned != null) {
+				report.put("scanned", scanned);
+			}
+			reports.add(report);
+			if (failed) {
+				errors++;
+			}
+			if (++over == queue.size()) {
+				end();
+			} else {
+				next();
+			}
+		}
+
+		private void end() {
+			callBack.handle(new JsonObject()
+					.put("status", errors == 0 ? "ok" : "error")
+					.put("errors", errors)
+					.put("indicators", reports));
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.entcore.common.aggregation.AggregationTools;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Counts the traces of the current day as they are produced (traces received on the event bus)
+ * in striped counters (LongAdder) per finest grain row : type, connexion hour, profile, module, structures and classes.
+ * The counters are periodically rolled up like the fused engine does and added to provisional stats documents of the day,
+ * which the nightly aggregation of the day replaces (cleanup or staged publication).
+ * Unique visitors are not counted : they cannot be added across flushes.
+ */
+public class IntradayAggregator {
+
+	private static final Logger log = LoggerFactory.getLogger(IntradayAggregator.class);
+
+	public static final String PROVISIONAL = "provisional";
+
+	private final Vertx vertx;
+	private final long flushInterval;
+	private final int batchSize;
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final AtomicBoolean flushing = new AtomicBoolean(false);
+	private volatile Day current = new Day(new Date());
+	private long timerId = -1L;
+
+	private static final class Day {
+		private final Date start;
+		private final long[] hourBoundaries;
+		private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+		private Day(Date day) {
+			final Calendar calendarDay = Calendar.getInstance();
+			calendarDay.setTime(day);
+			this.start = AggregationTools.setToMidnight(calendarDay);
+			this.hourBoundaries = FusedAggregationEngine.hourBoundaries(start);
+		}
+
+		private int hour(long date) {
+			if (date < hourBoundaries[0] || date >= hourBoundaries[24]) {
+				return -1;
+			}
+			int h = 0;
+			while (h < 23 && hourBoundaries[h + 1] <= date) {
+				h++;
+			}
+			return h;
+		}
+	}
+
+	/**
+	 * @param flushInterval : Delay between two flushes in ms.
+	 */
+	public IntradayAggregator(Vertx vertx, long flushInterval, int batchSize) {
+		this.vertx = vertx;
+		this.flushInterval = flushInterval;
+		this.batchSize = batchSize;
+	}
+
+	public void start() {
+		timerId = vertx.setPeriodic(flushInterval, t -> flush());
+	}
+
+	public void stop() {
+		if (timerId >= 0) {
+			vertx.cancelTimer(timerId);
+		}
+		flush();
+	}
+
+	/**
+	 * Counts a trace, may be called from any thread.
+	 */
+	public void count(JsonObject trace) {
+		if (trace == null) {
+			return;
+		}
+		final String type = trace.getString(TRACE_FIELD_TYPE);
+		if (type == null) {
+			return;
+		}
+		final long date = date(trace.getValue(TRACE_FIELD_DATE));
+		final Day day = current;
+		final int hour = day.hour(date);
+		if (hour < 0) {
+			//Traces of another day are left to the nightly aggregation.
+			return;
+		}
+		final JsonObject row = new JsonObject()
+				.put(TRACE_FIELD_TYPE, type)
+				.put("hour", TRACE_TYPE_CONNEXION.equals(type) ? hour : null)
+				.put(TRACE_FIELD_PROFILE, trace.getValue(TRACE_FIELD_PROFILE))
+				.put(TRACE_FIELD_MODULE, TRACE_TYPE_SVC_ACCESS.equals(type) ? trace.getValue(TRACE_FIELD_MODULE) : null)
+				.put(TRACE_FIELD_STRUCTURES, trace.getValue(TRACE_FIELD_STRUCTURES))
+				.put(TRACE_FIELD_CLASSES, trace.getValue(TRACE_FIELD_CLASSES));
+		day.counters.computeIfAbsent(row.encode(), k -> new LongAdder()).increment();
+	}
+
+	public static long date(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value instanceof JsonObject && ((JsonObject) value).getValue("$date") instanceof Number) {
+			return ((Number) ((JsonObject) value).getValue("$date")).longValue();
+		}
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds the counts since the previous flush to the provisional documents of the day.
+	 * Counts of a failed write are added back to the counters.
+	 * At day change, the counts not flushed yet are dropped : the nightly aggregation computes that day.
+	 */
+	public void flush() {
+		if (!flushing.compareAndSet(false, true)) {
+			return;
+		}
+		final Day day = current;
+		final Day today = new Day(new Date());
+		if (today.start.getTime() != day.start.getTime()) {
+			current = today;
+			flushing.set(false);
+			return;
+		}
+		final FusedAggregationEngine engine = new FusedAggregationEngine(day.start, day.start, batchSize);
+		final RollupAccumulator accumulator = engine.newAccumulator();
+		final Map<LongAdder, Long> drained = new HashMap<>();
+		long counted = 0L;
+		for (Map.Entry<String, LongAdder> counter : day.counters.entrySet()) {
+			final long count = counter.getValue().sumThenReset();
+			if (count > 0) {
+				engine.accumulateCounts(accumulator, new JsonObject()
+						.put("_id", new JsonObject(counter.getKey())).put("count", count));
+				drained.put(counter.getValue(), count);
+				counted += count;
+			}
+		}
+		if (counted == 0L) {
+			flushing.set(false);
+			return;
+		}
+		final List<JsonObject> documents = new ArrayList<>();
+		for (JsonObject document : accumulator.toDocuments(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY)) {
+			document.getJsonObject("criteria").put(PROVISIONAL, true);
+			documents.add(document);
+		}
+		final long traces = counted;
+		// A single update command : a failed flush wrote nothing (but for per document write errors)
+		final StatsWriter writer = new StatsWriter(mongo, COLLECTIONS.stats.name(), Math.max(batchSize, documents.size()));
+		writer.increment().write(day.start, documents, written -> {
+			if (written.failed()) {
+				// The counts are flushed again next time, unless the day is over
+				for (Map.Entry<LongAdder, Long> count : drained.entrySet()) {
+					count.getKey().add(count.getValue());
+				}
+				flushing.set(false);
+				log.error("[Aggregation][Intraday] Error flushing " + traces + " traces, kept for the next flush", written.cause());
+				return;
+			}
+			flushing.set(false);
+			if (log.isDebugEnabled()) {
+				log.debug("[Aggregation][Intraday] " + traces + " traces added to " + written.result() + " documents");
+			}
+		});
+	}
+
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Maps the Mongo stats documents to rows of the stats.&lt;indicator&gt;_&lt;level&gt;_&lt;frequency&gt;s tables,
+ * grouped by upsert statement to be written with batched inserts.
+ * Documents grouped by profile, structure and profile, structure, class and profile (and module for service access)
+ * are mapped, other groupings are sums of these ones.
+ * Week and month authentications, activations and service access are summed from the day rows of the period once
+ * they are written, so that writing a day again never counts it twice.
+ * Mongo counts of a structure only hold its own users : they are written to the _wta columns of the structure rows,
+ * the other columns are then set to the sums of the _wta columns of the structure and its sub-structures, for the
+ * written structure and its parents having rows (hour rows are not accumulated).
+ */
+public class PgStatsRows {
+
+	private static final Logger log = LoggerFactory.getLogger(PgStatsRows.class);
+
+	private static final String PROFILE_ID = TRACE_FIELD_PROFILE + "_id";
+	private static final String MODULE_ID = TRACE_FIELD_MODULE + "_id";
+	private static final String WEEK_KEY = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_WEEK";
+	private static final String MONTH_KEY = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_MONTH";
+	private static final String WTA = "_wta";
+
+	/** Grouping of the mapped documents, by PostgreSQL level. */
+	private static final Map<String, String> ACCOUNTS_LEVELS = new HashMap<>();
+	private static final Map<String, String> ACCESS_LEVELS = new HashMap<>();
+	/** Columns of the structure tables accumulated over the sub-structures, by indicator. */
+	private static final Map<String, List<String>> TREE_COLUMNS = new HashMap<>();
+	static {
+		final String profile = TRACE_FIELD_PROFILE;
+		final String structure = TRACE_FIELD_STRUCTURES;
+		final String clazz = TRACE_FIELD_CLASSES;
+		ACCOUNTS_LEVELS.put(profile, "platform");
+		ACCOUNTS_LEVELS.put(structure + "/" + profile, "structure");
+		ACCOUNTS_LEVELS.put(structure + "/" + clazz + "/" + profile, "class");
+		for (Map.Entry<String, String> level : ACCOUNTS_LEVELS.entrySet()) {
+			ACCESS_LEVELS.put(level.getKey() + "/" + TRACE_FIELD_MODULE, level.getValue());
+		}
+		TREE_COLUMNS.put("accounts", Arrays.asList("authentications", "unique_visitors"));
+		TREE_COLUMNS.put("access", Collections.singletonList("access"));
+	}
+
+	private final String platformId;
+	private final Set<String> allowedTables;
+
+	/**
+	 * @param allowedTables : Tables rows may be written to, rows of other tables are dropped.
+	 */
+	public PgStatsRows(String platformId, Set<String> allowedTables) {
+		this.platformId = platformId;
+		this.allowedTables = allowedTables;
+	}
+
+	/**
+	 * Maps the documents to rows, grouped by upsert statement.
+	 */
+	public Map<String, List<Tuple>> statements(JsonArray documents) {
+		final Map<String, List<Tuple>> statements = new LinkedHashMap<>();
+		final Set<Long> derivedRows = new HashSet<>();
+		final Map<String, List<Tuple>> dayTreeSums = new LinkedHashMap<>();
+		final Map<String, List<Tuple>> periodSums = new LinkedHashMap<>();
+		final Map<String, List<Tuple>> periodTreeSums = new LinkedHashMap<>();
+		for (Object o : documents) {
+			if (!(o instanceof JsonObject)) {
+				continue;
+			}
+			final JsonObject document = (JsonObject) o;
+			final LocalDate day = day(document.getValue(STATS_FIELD_DATE));
+			final String groupedBy = document.getString(STATS_FIELD_GROUPBY);
+			if (day == null || groupedBy == null) {
+				continue;
+			}
+			final String indicator;
+			final String level;
+			final String module;
+			if (ACCOUNTS_LEVELS.containsKey(groupedBy)) {
+				indicator = "accounts";
+				level = ACCOUNTS_LEVELS.get(groupedBy);
+				module = null;
+				accountsRows(level, day, document, statements);
+			} else if (ACCESS_LEVELS.containsKey(groupedBy)) {
+				indicator = "access";
+				level = ACCESS_LEVELS.get(groupedBy);
+				module = document.getString(MODULE_ID);
+				accessRows(level, day, document, module, statements);
+			} else {
+				continue;
+			}
+			final LocalDateTime weekStart = day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay();
+			final LocalDateTime monthStart = day.withDayOfMonth(1).atStartOfDay();
+			addTreeSumRow(indicator, level, "day", day.atStartOfDay(), document, module, derivedRows, dayTreeSums);
+			addPeriodSumRow(indicator, level, "week", weekStart, weekStart.plusWeeks(1), document, module, derivedRows, periodSums);
+			addPeriodSumRow(indicator, level, "month", monthStart, monthStart.plusMonths(1), document, module, derivedRows, periodSums);
+			addTreeSumRow(indicator, level, "week", weekStart, document, module, derivedRows, periodTreeSums);
+			addTreeSumRow(indicator, level, "month", monthStart, document, module, derivedRows, periodTreeSums);
+		}
+		// The sums are run once every row they read is written
+		statements.putAll(dayTreeSums);
+		statements.putAll(periodSums);
+		statements.putAll(periodTreeSums);
+		return statements;
+	}
+
+	private void accountsRows(String level, LocalDate day, JsonObject document, Map<String, List<Tuple>> statements) {
+		final Map<String, Object> counts = new LinkedHashMap<>();
+		putCount(counts, "authentications", document.getValue(TRACE_TYPE_CONNEXION));
+		putCount(counts, "activations", document.getValue(TRACE_TYPE_ACTIVATION));
+		putCount(counts, "unique_visitors", document.getValue(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY));
+		addRow("accounts", level, "day", day.atStartOfDay(), document, null, counts, false, statements);
+		for (int h = 0; h < 24; h++) {
+			final Map<String, Object> hour = new LinkedHashMap<>();
+			putCount(hour, "authentications", document.getValue(TRACE_TYPE_CONNEXION + "_H" + h));
+			addRow("accounts", level, "hour", day.atStartOfDay().plusHours(h), document, null, hour, false, statements);
+		}
+		// Period unique visitors are written each day from the start of the period : the highest one is kept
+		final LocalDateTime weekStart = day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay();
+		final Map<String, Object> week = new LinkedHashMap<>();
+		putCount(week, "unique_visitors", document.getValue(WEEK_KEY));
+		addRow("accounts", level, "week", weekStart, document, null, week, true, statements);
+		final LocalDateTime monthStart = day.withDayOfMonth(1).atStartOfDay();
+		final Map<String, Object> month = new LinkedHashMap<>();
+		putCount(month, "unique_visitors", document.getValue(MONTH_KEY));
+		addRow("accounts", level, "month", monthStart, document, null, month, true, statements);
+	}
+
+	private void accessRows(String level, LocalDate day, JsonObject document, String module,
+			Map<String, List<Tuple>> statements) {
+		final Map<String, Object> counts = new LinkedHashMap<>();
+		putCount(counts, "access", document.getValue(TRACE_TYPE_SVC_ACCESS));
+		addRow("access", level, "day", day.atStartOfDay(), document, module, counts, false, statements);
+	}
+
+	/**
+	 * Sets the summed columns of the period row to the sums of the day rows of the period.
+	 */
+	private void addPeriodSumRow(String indicator, String level, String frequency, LocalDateTime from, LocalDateTime to,
+			JsonObject document, String module, Set<Long> derivedRows, Map<String, List<Tuple>> periodSums) {
+		final String table = "stats." + indicator + "_" + level + "_" + frequency + "s";
+		final String days = "stats." + indicator + "_" + level + "_days";
+		if (!allowedTables.contains(table) || !allowedTables.contains(days)) {
+			return;
+		}
+		final String entityColumn = entityColumn(level);
+		final String entityId = entityId(level, document);
+		final String profile = document.getString(PROFILE_ID);
+		final long id = id(String.join("|", Arrays.asList(table, platformId, from.toString(), entityId, profile, module)));
+		if (!derivedRows.add(id)) {
+			return;
+		}
+		final List<String> summed = new ArrayList<>("access".equals(indicator) ?
+				Collections.singletonList("access") : Arrays.asList("authentications", "activations"));
+		if ("structure".equals(level)) {
+			summed.add(summed.get(0) + WTA);
+		}
+		final Tuple tuple = Tuple.tuple().addLong(id).addString(platformId).addLocalDateTime(from)
+				.addLocalDateTime(to).addString(profile);
+		final List<String> columns = new ArrayList<>(Arrays.asList("id", "platform_id", "date", "profile"));
+		final List<String> values = new ArrayList<>(Arrays.asList("$1::bigint", "$2::varchar", "$3::timestamp", "$5::varchar"));
+		final StringBuilder where = new StringBuilder(" WHERE platform_id IS NOT DISTINCT FROM $2 AND date >= $3 AND date < $4" +
+				" AND profile IS NOT DISTINCT FROM $5");
+		int parameter = 6;
+		if (entityColumn != null) {
+			tuple.addString(entityId);
+			columns.add(entityColumn);
+			values.add("$" + parameter + "::varchar");
+			where.append(" AND ").append(entityColumn).append(" = $").append(parameter++);
+		}
+		if (module != null) {
+			tuple.addString(module);
+			columns.add("module");
+			columns.add("type");
+			values.add("$" + parameter + "::varchar");
+			values.add("'" + TRACE_TYPE_SVC_ACCESS + "'");
+			where.append(" AND module = $").append(parameter);
+		}
+		for (String column : summed) {
+			columns.add(column);
+			values.add("COALESCE(SUM(" + column + "), 0)");
+		}
+		final String query = "INSERT INTO " + table + "(" + String.join(",", columns) + ")" +
+				" SELECT " + String.join(", ", values) + " FROM " + days + where +
+				" ON CONFLICT (id) DO UPDATE SET " + summed.stream().map(c -> c + " = EXCLUDED." + c)
+				.collect(Collectors.joining(", "));
+		periodSums.computeIfAbsent(query, q -> new ArrayList<>()).add(tuple);
+	}
+
+	/**
+	 * Sets the accumulated columns of the structure row and of its parents rows to the sums of the _wta columns
+	 * of the rows of their sub-structures, themselves included.
+	 * Parents without row of their own are not created : their row ids can not be derived here.
+	 */
+	private void addTreeSumRow(String indicator, String level, String frequency, LocalDateTime date, JsonObject document,
+			String module, Set<Long> derivedRows, Map<String, List<Tuple>> treeSums) {
+		final String table = "stats." + indicator + "_structure_" + frequency + "s";
+		if (!"structure".equals(level) || !allowedTables.contains(table)) {
+			return;
+		}
+		final String structureId = entityId(level, document);
+		final String profile = document.getString(PROFILE_ID);
+		if (structureId == null || !derivedRows.add(id(String.join("|",
+				Arrays.asList("tree", table, platformId, date.toString(), structureId, profile, module))))) {
+			return;
+		}
+		final List<String> columns = TREE_COLUMNS.get(indicator);
+		final Tuple tuple = Tuple.tuple().addString(platformId).addLocalDateTime(date).addString(structureId).addString(profile);
+		if (module != null) {
+			tuple.addString(module);
+		}
+		final String query = "WITH RECURSIVE ancestors(id) AS (" +
+				"SELECT $3::varchar UNION SELECT unnest(s.parents) FROM repository.structures s JOIN ancestors a ON s.id = a.id), " +
+				"tree(root, id) AS (" +
+				"SELECT id, id FROM ancestors UNION SELECT t.root, s.id FROM repository.structures s JOIN tree t ON s.parents @> ARRAY[t.id]), " +
+				"sums AS (SELECT t.root, " + columns.stream().map(c -> "COALESCE(SUM(d." + c + WTA + "), 0) AS " + c)
+				.collect(Collectors.joining(", ")) +
+				" FROM tree t JOIN " + table + " d ON d.structure_id = t.id WHERE " + treeRowFilter("d", module != null) +
+				" GROUP BY t.root) " +
+				"UPDATE " + table + " r SET " + columns.stream().map(c -> c + " = sums." + c).collect(Collectors.joining(", ")) +
+				" FROM sums WHERE r.structure_id = sums.root AND " + treeRowFilter("r", module != null);
+		treeSums.computeIfAbsent(query, q -> new ArrayList<>()).add(tuple);
+	}
+
+	private static String treeRowFilter(String alias, boolean module) {
+		return alias + ".platform_id IS NOT DISTINCT FROM $1 AND " + alias + ".date = $2 AND " +
+				alias + ".profile IS NOT DISTINCT FROM $4" + (module ? " AND " + alias + ".module = $5" : "");
+	}
+
+	private static String entityColumn(String level) {
+		if ("structure".equals(level)) {
+			return "structure_id";
+		} else if ("class".equals(level)) {
+			return "class_id";
+		}
+		return null;
+	}
+
+	private static String entityId(String level, JsonObject document) {
+		if ("structure".equals(level)) {
+			return document.getString(TRACE_FIELD_STRUCTURES + "_id");
+		} else if ("class".equals(level)) {
+			return document.getString(TRACE_FIELD_CLASSES + "_id");
+		}
+		return null;
+	}
+
+	private static void putCount(Map<String, Object> counts, String column, Object value) {
+		if (value instanceof Number) {
+			counts.put(column, ((Number) value).longValue());
+		}
+	}
+
+	private void addRow(String indicator, String level, String frequency, LocalDateTime date, JsonObject document,
+			String module, Map<String, Object> counts, boolean keepHighest, Map<String, List<Tuple>> statements) {
+		final String table = "stats." + indicator + "_" + level + "_" + frequency + "s";
+		if (counts.isEmpty() || !allowedTables.contains(table)) {
+			return;
+		}
+		final List<String> columns = new ArrayList<>(Arrays.asList("id", "platform_id", "date"));
+		final String entityId = entityId(level, document);
+		if (entityColumn(level) != null) {
+			columns.add(entityColumn(level));
+		}
+		if ("structure".equals(level)) {
+			// Mongo counts of a structure are not accumulated over its sub-structures
+			final Map<String, Object> withoutTreeAccumulation = new LinkedHashMap<>(counts);
+			for (String column : TREE_COLUMNS.get(indicator)) {
+				if (counts.containsKey(column)) {
+					withoutTreeAccumulation.put(column + WTA, counts.get(column));
+				}
+			}
+			counts = withoutTreeAccumulation;
+		}
+		columns.add("profile");
+		if (module != null) {
+			columns.add("module");
+			columns.add("type");
+		}
+		final String profile = document.getString(PROFILE_ID);
+		final String rowKey = String.join("|", Arrays.asList(table, platformId, date.toString(), entityId, profile, module));
+		final Tuple tuple = Tuple.tuple().addLong(id(rowKey)).addString(platformId).addLocalDateTime(date);
+		if (entityId != null) {
+			tuple.addString(entityId);
+		}
+		tuple.addString(profile);
+		if (module != null) {
+			tuple.addString(module).addString(TRACE_TYPE_SVC_ACCESS);
+		}
+		for (Map.Entry<String, Object> count : counts.entrySet()) {
+			columns.add(count.getKey());
+			tuple.addValue(count.getValue());
+		}
+		final List<String> updated = new ArrayList<>(counts.keySet());
+		final String query = "INSERT INTO " + table + columns.stream().collect(Collectors.joining(",", "(", ")")) +
+				" VALUES " + IntStream.rangeClosed(1, columns.size()).boxed().map(i -> "$" + i).collect(Collectors.joining(",", "(", ")")) +
+				" ON CONFLICT (id) DO UPDATE SET " + updated.stream()
+				.map(c -> c + " = " + (keepHighest ? "GREATEST(" + table + "." + c + ", EXCLUDED." + c + ")" : "EXCLUDED." + c))
+				.collect(Collectors.joining(", "));
+		statements.computeIfAbsent(query, q -> new ArrayList<>()).add(tuple);
+	}
+
+	/**
+	 * Row id derived from the row key, so that a resumed or replayed migration updates the rows it already wrote.
+	 */
+	private static long id(String rowKey) {
+		return UUID.nameUUIDFromBytes(rowKey.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits() & Long.MAX_VALUE;
+	}
+
+	/**
+	 * Stats dates are written as formatted strings starting with yyyy-MM-dd, older ones may be dates.
+	 */
+	private static LocalDate day(Object date) {
+		try {
+			if (date instanceof String && ((String) date).length() >= 10) {
+				return LocalDate.parse(((String) date).substring(0, 10));
+			} else if (date instanceof JsonObject && ((JsonObject) date).getValue("$date") instanceof Number) {
+				return Instant.ofEpochMilli(((JsonObject) date).getLong("$date")).atZone(ZoneId.systemDefault()).toLocalDate();
+			}
+		} catch (DateTimeParseException e) {
+			log.warn("[PgStats] Invalid stats date : " + date);
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the statements one after the other, each one as a batch.
+	 */
+	public static void write(PgPool pgPool, Map<String, List<Tuple>> statements, Handler<AsyncResult<Void>> handler) {
+		write(pgPool, new ArrayList<>(statements.entrySet()), 0, handler);
+	}
+
+	private static void write(PgPool pgPool, List<Map.Entry<String, List<Tuple>>> statements, int index, Handler<AsyncResult<Void>> handler) {
+		if (index >= statements.size()) {
+			handler.handle(Future.succeededFuture());
+			return;
+		}
+		final Map.Entry<String, List<Tuple>> statement = statements.get(index);
+		pgPool.preparedQuery(statement.getKey()).executeBatch(statement.getValue(), ar -> {
+			if (ar.succeeded()) {
+				write(pgPool, statements, index + 1, handler);
+			} else {
+				log.error("[PgStats] Error writing rows : " + statement.getKey(), ar.cause());
+				handler.handle(Future.failedFuture(ar.cause()));
+			}
+		});
+	}
+
+}
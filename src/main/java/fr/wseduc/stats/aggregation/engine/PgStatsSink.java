@@ -0,0 +1,105 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fr.wseduc.mongodb.MongoDb;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Writes the stats documents of an aggregated day to the PostgreSQL stats tables, with batched upserts.
+ * The documents are read back once the day is published, whatever the engine which wrote them,
+ * so that the PostgreSQL read path can be served without an external ETL.
+ */
+public final class PgStatsSink {
+
+	private static final Logger log = LoggerFactory.getLogger(PgStatsSink.class);
+
+	private static volatile PgStatsSink instance = null;
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final PgPool pgPool;
+	private final PgStatsRows rows;
+	private final int batchSize;
+
+	private PgStatsSink(PgPool pgPool, String platformId, Set<String> allowedTables, int batchSize) {
+		this.pgPool = pgPool;
+		this.rows = new PgStatsRows(platformId, allowedTables);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return The sink, null if the aggregation output is not written to PostgreSQL.
+	 */
+	public static PgStatsSink get() {
+		return instance;
+	}
+
+	public static void configure(PgPool pgPool, String platformId, Set<String> allowedTables, int batchSize) {
+		instance = new PgStatsSink(pgPool, platformId, allowedTables, batchSize);
+	}
+
+	/**
+	 * Writes the stats documents of the recording date, the next batch is read once the previous one is written.
+	 * @param handler : Called with the number of rows written.
+	 */
+	public void write(Date recordingDate, final Handler<AsyncResult<Long>> handler) {
+		final JsonArray pipeline = new JsonArray().add(new JsonObject().put("$match", new JsonObject()
+				.put(STATS_FIELD_DATE, MongoDb.formatDate(recordingDate))
+				.put(STATS_FIELD_GROUPBY, new JsonObject().put("$exists", true))));
+		final long[] written = {0L};
+		new AggregationCursor(mongo, COLLECTIONS.stats.name(), pipeline, batchSize).stream((batch, next) -> {
+			final Map<String, List<Tuple>> statements = rows.statements(batch);
+			PgStatsRows.write(pgPool, statements, ar -> {
+				if (ar.succeeded()) {
+					written[0] += statements.values().stream().mapToInt(List::size).sum();
+					next.handle(null);
+				} else {
+					handler.handle(Future.failedFuture(ar.cause()));
+				}
+			});
+		}, ended -> {
+			if (ended.succeeded()) {
+				log.info("[PgStats] " + written[0] + " rows written for " + MongoDb.formatDate(recordingDate));
+				handler.handle(Future.succeededFuture(written[0]));
+			} else {
+				handler.handle(Future.failedFuture(ended.cause()));
+			}
+		});
+	}
+
+}
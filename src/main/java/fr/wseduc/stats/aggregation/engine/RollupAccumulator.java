@@ -0,0 +1,405 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Stats documents of a day derived from rows grouped at the finest grain (structure x class x profile x module).
+ * Each row is rolled up into every coarser grouping by summing counters in long keyed maps :
+ * the key packs the grouping index and the dictionary ordinals of the structure, class, profile and module.
+ * Distinct visitors are kept as int sets of user ordinals so groups can be merged exactly.
+ */
+public class RollupAccumulator {
+
+	private static final String[] FIELDS = {TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE, TRACE_FIELD_MODULE};
+	private static final boolean[] ARRAYS = {true, true, false, false};
+	private static final int[] BITS = {20, 22, 6, 12};
+	/** Up to 16 distinct groupings (by groupedBy) per accumulator, the access groupings include the default ones. */
+	private static final int GROUPING_BITS = 4;
+	private static final int[] NONE = {0};
+	private static final int[] EMPTY = {};
+
+	private final List<Grouping> groupings = new ArrayList<>();
+	private final Map<Grouping, Integer> groupingIndexes = new HashMap<>();
+	private final int[][] groupingFields = new int[1 << GROUPING_BITS][];
+	private final Dictionary[] dictionaries = new Dictionary[FIELDS.length];
+	private final Dictionary users = new Dictionary(Integer.MAX_VALUE);
+	private final String[] keys;
+	private final Map<String, Integer> columns = new HashMap<>();
+	private final LongIndex groups = new LongIndex();
+	private long[] counts;
+	private final LongIndex visitorGroups = new LongIndex();
+	private IntSet[] visitors = new IntSet[64];
+	private final int[][] ordinals = new int[FIELDS.length][];
+
+	/**
+	 * @param keys : Keys of the counted indicators.
+	 */
+	public RollupAccumulator(List<String> keys) {
+		this.keys = keys.toArray(new String[0]);
+		for (int i = 0; i < this.keys.length; i++) {
+			columns.put(this.keys[i], i);
+		}
+		for (int i = 0; i < FIELDS.length; i++) {
+			dictionaries[i] = new Dictionary((1 << BITS[i]) - 1);
+		}
+		counts = new long[64 * Math.max(1, this.keys.length)];
+	}
+
+	/**
+	 * Adds the count of a finest grain row to all its groups in the groupings.
+	 * @param group : Row values (structures and classes arrays, profile, module).
+	 */
+	public void add(List<Grouping> rowGroupings, JsonObject group, String key, long count) {
+		final Integer column = columns.get(key);
+		if (column == null) {
+			throw new IllegalArgumentException("unknown.indicator.key");
+		}
+		encode(group);
+		for (Grouping grouping : rowGroupings) {
+			final int g = groupingIndex(grouping);
+			rollup(g, (packed) -> {
+				final int row = groups.indexOf(packed, true);
+				if ((row + 1) * keys.length > counts.length) {
+					counts = Arrays.copyOf(counts, counts.length * 2);
+				}
+				counts[row * keys.length + column] += count;
+			});
+		}
+	}
+
+	/**
+	 * Adds a visitor to all the groups of its row in the groupings.
+	 */
+	public void addVisitor(List<Grouping> rowGroupings, JsonObject group, String userId) {
+		final int user = users.ordinal(userId);
+		encode(group);
+		for (Grouping grouping : rowGroupings) {
+			final int g = groupingIndex(grouping);
+			rollup(g, (packed) -> {
+				final int row = visitorGroups.indexOf(packed, true);
+				if (row >= visitors.length) {
+					visitors = Arrays.copyOf(visitors, visitors.length * 2);
+				}
+				if (visitors[row] == null) {
+					visitors[row] = new IntSet();
+				}
+				visitors[row].add(user);
+			});
+		}
+	}
+
+	private interface KeyHandler {
+		void handle(long packed);
+	}
+
+	private void encode(JsonObject group) {
+		for (int i = 0; i < FIELDS.length; i++) {
+			final Object value = group.getValue(FIELDS[i]);
+			if (ARRAYS[i] && value instanceof JsonArray) {
+				final JsonArray array = (JsonArray) value;
+				final int[] o = new int[array.size()];
+				for (int j = 0; j < o.length; j++) {
+					o[j] = dictionaries[i].ordinal(array.getValue(j));
+				}
+				ordinals[i] = o;
+			} else if (ARRAYS[i] && value == null) {
+				ordinals[i] = EMPTY;
+			} else {
+				ordinals[i] = new int[]{dictionaries[i].ordinal(value)};
+			}
+		}
+	}
+
+	/**
+	 * Calls the handler with the packed key of each group of the encoded row, arrays being expanded like $unwind.
+	 */
+	private void rollup(int g, KeyHandler handler) {
+		final int[] fields = groupingFields[g];
+		final int[] s = fields[0] >= 0 ? ordinals[0] : NONE;
+		final int[] c = fields[1] >= 0 ? ordinals[1] : NONE;
+		final int p = fields[2] >= 0 ? ordinals[2][0] : 0;
+		final int m = fields[3] >= 0 ? ordinals[3][0] : 0;
+		final long base = g | ((long) p << (GROUPING_BITS + BITS[0] + BITS[1])) |
+				((long) m << (GROUPING_BITS + BITS[0] + BITS[1] + BITS[2]));
+		for (int si : s) {
+			for (int ci : c) {
+				handler.handle(base | ((long) si << GROUPING_BITS) | ((long) ci << (GROUPING_BITS + BITS[0])));
+			}
+		}
+	}
+
+	private int groupingIndex(Grouping grouping) {
+		final Integer index = groupingIndexes.get(grouping);
+		if (index != null) {
+			return index;
+		}
+		final int g = groupings.size();
+		if (g >= groupingFields.length) {
+			throw new IllegalStateException("rollup.too.many.groupings");
+		}
+		final int[] fields = new int[FIELDS.length];
+		Arrays.fill(fields, -1);
+		final List<String> rollupFields = Arrays.asList(FIELDS);
+		for (int i = 0; i < grouping.getFields().length; i++) {
+			final int f = rollupFields.indexOf(grouping.getFields()[i]);
+			if (f < 0) {
+				throw new IllegalArgumentException("rollup.unknown.field");
+			}
+			fields[f] = i;
+		}
+		groupings.add(grouping);
+		groupingIndexes.put(grouping, g);
+		groupingFields[g] = fields;
+		return g;
+	}
+
+	private Grouping decode(long packed, String[] values) {
+		final int g = (int) (packed & ((1 << GROUPING_BITS) - 1));
+		final int[] fields = groupingFields[g];
+		int shift = GROUPING_BITS;
+		for (int i = 0; i < FIELDS.length; i++) {
+			final int ordinal = (int) ((packed >>> shift) & ((1L << BITS[i]) - 1));
+			if (fields[i] >= 0) {
+				values[fields[i]] = dictionaries[i].value(ordinal);
+			}
+			shift += BITS[i];
+		}
+		return groupings.get(g);
+	}
+
+	public int size() {
+		return groups.size() + visitorGroups.size();
+	}
+
+	/**
+	 * @param visitorsKey : Key the distinct visitors count is written to.
+	 * @return The documents as {criteria : group criteria, values : indicator values}.
+	 */
+	public List<JsonObject> toDocuments(String visitorsKey) {
+		final Map<Long, JsonObject> documents = new HashMap<>();
+		for (int row = 0; row < groups.size(); row++) {
+			final JsonObject values = document(documents, groups.key(row));
+			for (int k = 0; k < keys.length; k++) {
+				final long count = counts[row * keys.length + k];
+				if (count != 0L) {
+					values.put(keys[k], count);
+				}
+			}
+		}
+		for (int row = 0; row < visitorGroups.size(); row++) {
+			document(documents, visitorGroups.key(row)).put(visitorsKey, visitors[row].size());
+		}
+		return new ArrayList<>(documents.values());
+	}
+
+	/**
+	 * @param writeKey : Key the encoded sketch is written to.
+	 * @return The sketch documents of the groups having visitors, as {criteria : group criteria, values : encoded sketch}.
+	 */
+	public List<JsonObject> toSketchDocuments(String writeKey) {
+		final List<JsonObject> documents = new ArrayList<>(visitorGroups.size());
+		for (int row = 0; row < visitorGroups.size(); row++) {
+			final String[] values = new String[FIELDS.length];
+			final Grouping grouping = decode(visitorGroups.key(row), values);
+			final HyperLogLog sketch = new HyperLogLog();
+			visitors[row].forEach(user -> sketch.add(users.value(user)));
+			documents.add(new JsonObject()
+					.put("criteria", grouping.criteria(Arrays.copyOf(values, grouping.size())))
+					.put("values", new JsonObject().put(writeKey, sketch.encode())));
+		}
+		return documents;
+	}
+
+	private JsonObject document(Map<Long, JsonObject> documents, long packed) {
+		JsonObject document = documents.get(packed);
+		if (document == null) {
+			final String[] values = new String[FIELDS.length];
+			final Grouping grouping = decode(packed, values);
+			document = new JsonObject()
+					.put("criteria", grouping.criteria(Arrays.copyOf(values, grouping.size())))
+					.put("values", new JsonObject());
+			documents.put(packed, document);
+		}
+		return document.getJsonObject("values");
+	}
+
+	/**
+	 * Append only value to ordinal dictionary, ordinal 0 stands for null.
+	 */
+	private static final class Dictionary {
+		private final int capacity;
+		private final Map<String, Integer> ordinals = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		private Dictionary(int capacity) {
+			this.capacity = capacity;
+			values.add(null);
+		}
+
+		private int ordinal(Object value) {
+			if (value == null) {
+				return 0;
+			}
+			final String v = value.toString();
+			Integer ordinal = ordinals.get(v);
+			if (ordinal == null) {
+				ordinal = values.size();
+				if (ordinal > capacity) {
+					throw new IllegalStateException("rollup.dictionary.overflow");
+				}
+				ordinals.put(v, ordinal);
+				values.add(v);
+			}
+			return ordinal;
+		}
+
+		private String value(int ordinal) {
+			return values.get(ordinal);
+		}
+	}
+
+	/**
+	 * Open addressing long key to insertion index map.
+	 */
+	private static final class LongIndex {
+		private long[] table = new long[128];
+		private int[] slots = new int[128];
+		private long[] keys = new long[64];
+		private int size = 0;
+
+		private int indexOf(long key, boolean create) {
+			int mask = table.length - 1;
+			int i = mix(key) & mask;
+			while (slots[i] != 0) {
+				if (table[i] == key) {
+					return slots[i] - 1;
+				}
+				i = (i + 1) & mask;
+			}
+			if (!create) {
+				return -1;
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+			keys[size] = key;
+			table[i] = key;
+			slots[i] = ++size;
+			if (size * 2 > table.length) {
+				rehash();
+			}
+			return size - 1;
+		}
+
+		private void rehash() {
+			final long[] newTable = new long[table.length * 2];
+			final int[] newSlots = new int[slots.length * 2];
+			final int mask = newTable.length - 1;
+			for (int j = 0; j < size; j++) {
+				int i = mix(keys[j]) & mask;
+				while (newSlots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				newTable[i] = keys[j];
+				newSlots[i] = j + 1;
+			}
+			table = newTable;
+			slots = newSlots;
+		}
+
+		private long key(int index) {
+			return keys[index];
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private static int mix(long key) {
+			key ^= key >>> 33;
+			key *= 0xff51afd7ed558ccdL;
+			key ^= key >>> 33;
+			return (int) key;
+		}
+	}
+
+	/**
+	 * Open addressing set of non negative ints.
+	 */
+	private static final class IntSet {
+		private int[] table = new int[8];
+		private int size = 0;
+
+		private IntSet() {
+			Arrays.fill(table, -1);
+		}
+
+		private void add(int value) {
+			int mask = table.length - 1;
+			int i = (value * 0x9E3779B9) & mask;
+			while (table[i] != -1) {
+				if (table[i] == value) {
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = value;
+			if (++size * 2 > table.length) {
+				final int[] old = table;
+				table = new int[old.length * 2];
+				Arrays.fill(table, -1);
+				size = 0;
+				for (int v : old) {
+					if (v != -1) {
+						add(v);
+					}
+				}
+			}
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private void forEach(IntConsumer consumer) {
+			for (int v : table) {
+				if (v != -1) {
+					consumer.accept(v);
+				}
+			}
+		}
+	}
+
+}
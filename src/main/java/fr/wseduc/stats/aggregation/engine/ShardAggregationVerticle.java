@@ -0,0 +1,61 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import java.util.Date;
+import java.util.List;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Worker verticle running the fused engine for one shard of a day, the shards being sent by {@link ShardedAggregation}.
+ * Several instances, on this node or on other clustered nodes, share the address.
+ */
+public class ShardAggregationVerticle extends AbstractVerticle {
+
+	@Override
+	public void start(Promise<Void> startPromise) {
+		vertx.eventBus().<JsonObject>consumer(ShardedAggregation.ADDRESS, this::aggregate)
+			.completionHandler(startPromise);
+	}
+
+	private void aggregate(final Message<JsonObject> message) {
+		final JsonObject shard = message.body();
+		final FusedAggregationEngine engine = new FusedAggregationEngine(new Date(shard.getLong("day")),
+				new Date(shard.getLong("writeDate")), shard.getInteger("batchSize"))
+				.setWriteSketches(shard.getBoolean("sketches", false))
+				.setStatsCollection(shard.getString("statsCollection"));
+		if (shard.getBoolean("global", false)) {
+			engine.setGlobal();
+		} else {
+			@SuppressWarnings("unchecked")
+			final List<String> structures = shard.getJsonArray("structures").getList();
+			engine.setShard(structures);
+		}
+		engine.execute(message::reply);
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Splits the fused aggregation of a day by structure : the structures having traces that day are partitioned
+ * by hash into shards, each shard computing the structure groups of its structures on a {@link ShardAggregationVerticle},
+ * plus one task computing the groups without structure. The coordinator merges the shards results.
+ */
+public class ShardedAggregation {
+
+	private static final Logger log = LoggerFactory.getLogger(ShardedAggregation.class);
+
+	public static final String ADDRESS = "stats.aggregation.shard";
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final Vertx vertx;
+	private final Date day;
+	private final Date writeDate;
+	private final int batchSize;
+	private final int shards;
+	private final long timeout;
+	private boolean writeSketches = false;
+	private String statsCollection = COLLECTIONS.stats.name();
+
+	/**
+	 * @param shards : Number of structure shards.
+	 * @param timeout : Timeout of a shard in ms.
+	 */
+	public ShardedAggregation(Vertx vertx, Date day, Date writeDate, int batchSize, int shards, long timeout) {
+		this.vertx = vertx;
+		this.day = day;
+		this.writeDate = writeDate;
+		this.batchSize = batchSize;
+		this.shards = Math.max(1, shards);
+		this.timeout = timeout;
+	}
+
+	public ShardedAggregation setWriteSketches(boolean writeSketches) {
+		this.writeSketches = writeSketches;
+		return this;
+	}
+
+	public ShardedAggregation setStatsCollection(String statsCollection) {
+		this.statsCollection = statsCollection;
+		return this;
+	}
+
+	/**
+	 * @param callBack : Called with {status, rows, documents, duration, sketches} once every shard is over.
+	 */
+	public void execute(final Handler<JsonObject> callBack) {
+		final long start = System.currentTimeMillis();
+		final long[] hourBoundaries = FusedAggregationEngine.hourBoundaries(day);
+		final JsonObject distinct = new JsonObject()
+				.put("distinct", COLLECTIONS.events.name())
+				.put("key", TRACE_FIELD_STRUCTURES)
+				.put("query", new JsonObject().put(TRACE_FIELD_DATE, new JsonObject()
+						.put("$gte", hourBoundaries[0])
+						.put("$lt", hourBoundaries[24])));
+		mongo.command(distinct.encode(), message -> {
+			final JsonObject result = message.body().getJsonObject("result");
+			if (!"ok".equals(message.body().getString("status")) || result == null) {
+				callBack.handle(new JsonObject().put("status", "error")
+						.put("message", message.body().getString("message", "aggregation.shards.error")));
+				return;
+			}
+			final List<JsonArray> partitions = new ArrayList<>();
+			for (int i = 0; i < shards; i++) {
+				partitions.add(new JsonArray());
+			}
+			for (Object structure : result.getJsonArray("values", new JsonArray())) {
+				if (structure instanceof String) {
+					partitions.get(Math.floorMod(structure.hashCode(), shards)).add(structure);
+				}
+			}
+			final List<JsonObject> tasks = new ArrayList<>();
+			tasks.add(task().put("global", true));
+			for (JsonArray partition : partitions) {
+				if (!partition.isEmpty()) {
+					tasks.add(task().put("structures", partition));
+				}
+			}
+			merge(tasks, start, callBack);
+		});
+	}
+
+	private JsonObject task() {
+		return new JsonObject()
+				.put("day", day.getTime())
+				.put("writeDate", writeDate.getTime())
+				.put("batchSize", batchSize)
+				.put("sketches", writeSketches)
+				.put("statsCollection", statsCollection);
+	}
+
+	private void merge(final List<JsonObject> tasks, final long start, final Handler<JsonObject> callBack) {
+		final JsonObject merged = new JsonObject().put("status", "ok").put("rows", 0L).put("documents", 0).put("shards", tasks.size() - 1);
+		if (writeSketches) {
+			merged.put("sketches", 0);
+		}
+		final int[] remaining = {tasks.size()};
+		final DeliveryOptions options = new DeliveryOptions().setSendTimeout(timeout);
+		for (JsonObject task : tasks) {
+			vertx.eventBus().<JsonObject>request(ADDRESS, task, options, ar -> {
+				final JsonObject result = ar.succeeded() ? ar.result().body() :
+						new JsonObject().put("status", "error").put("message", ar.cause().getMessage());
+				if ("ok".equals(result.getString("status"))) {
+					merged.put("rows", merged.getLong("rows") + result.getLong("rows", 0L))
+						.put("documents", merged.getInteger("documents") + result.getInteger("documents", 0));
+					if (writeSketches) {
+						merged.put("sketches", merged.getInteger("sketches") + result.getInteger("sketches", 0));
+					}
+				} else {
+					log.error("[Aggregation][Shards] Shard of " + day + " failed : " + result.getString("message"));
+					merged.put("status", "error").put("message", result.getString("message"));
+				}
+				if (--remaining[0] == 0) {
+					callBack.handle(merged.put("duration", System.currentTimeMillis() - start));
+				}
+			});
+		}
+	}
+
+}
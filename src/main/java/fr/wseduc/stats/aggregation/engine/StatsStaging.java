@@ -0,0 +1,159 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Per run staging collection of a day stats documents.
+ * Once the run is over, staged documents are published server-side : they are merged into the stats collection
+ * on their natural key _id (see {@link StatsWriter#documentId}), each one replacing the previous document of its group,
+ * then the previous documents of the day which were not replaced are removed.
+ * A document is never counted twice, since each group has a single _id, but publishing is not atomic :
+ * while it runs, and after a failed publish, the day may mix documents of both runs or keep documents of groups
+ * which disappeared. A failed publish reports the day in error, so that it is aggregated and published again,
+ * the stats of the day being eventually replaced. The staging collection is dropped whatever the outcome.
+ */
+public class StatsStaging {
+
+	private static final Logger log = LoggerFactory.getLogger(StatsStaging.class);
+
+	private static final String PREFIX = "stats_staging_";
+	private static final String RUN_FIELD = "aggregationRun";
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final String collection;
+
+	private StatsStaging(String collection) {
+		this.collection = collection;
+	}
+
+	public static StatsStaging create(Date day) {
+		return new StatsStaging(PREFIX + new SimpleDateFormat("yyyyMMdd").format(day) + "_" + System.currentTimeMillis());
+	}
+
+	public String getCollection() {
+		return collection;
+	}
+
+	/**
+	 * Replaces the stats documents dated in [lowerDay, higherDay[ with the staged ones.
+	 * If the merge fails part way, the documents of the day are a mix of both runs without duplicates,
+	 * the day is then reported in error to be aggregated again.
+	 */
+	public void publish(final Date lowerDay, final Date higherDay, final Handler<AsyncResult<Void>> handler) {
+		publish(lowerDay, higherDay, null, handler);
+	}
+
+	/**
+	 * Only replaces the stats documents of the scope (e.g. the groups of some structures) with the staged ones.
+	 * @param scope : Query on the stats documents restricting the previous ones removed, null for every document.
+	 */
+	public void publish(final Date lowerDay, final Date higherDay, final JsonObject scope, final Handler<AsyncResult<Void>> handler) {
+		final long start = System.currentTimeMillis();
+		final JsonArray pipeline = new JsonArray()
+				.add(new JsonObject().put("$addFields", new JsonObject().put(RUN_FIELD, collection)))
+				.add(new JsonObject().put("$merge", new JsonObject()
+						.put("into", COLLECTIONS.stats.name())
+						.put("on", "_id")
+						.put("whenMatched", "replace")
+						.put("whenNotMatched", "insert")));
+		new AggregationCursor(mongo, collection, pipeline, 1).stream(batch -> {}, merged -> {
+			if (merged.failed()) {
+				log.error("[Aggregation][Staging] Error merging " + collection, merged.cause());
+				discard(discarded -> handler.handle(Future.failedFuture(merged.cause())));
+				return;
+			}
+			final JsonObject previousQuery = scope != null ? scope.copy() : new JsonObject();
+			final JsonObject previous = delete(previousQuery
+					.put(STATS_FIELD_DATE, new JsonObject()
+							.put("$gte", MongoDb.formatDate(lowerDay))
+							.put("$lt", MongoDb.formatDate(higherDay)))
+					.put(RUN_FIELD, new JsonObject().put("$ne", collection)));
+			command(previous, deleted -> {
+				if (deleted.failed()) {
+					log.error("[Aggregation][Staging] Error removing the previous documents of " + collection + " : " + deleted.cause().getMessage());
+					discard(discarded -> handler.handle(deleted));
+					return;
+				}
+				// The run marker is only used to find the previous documents, leaving it is harmless
+				final JsonObject unmark = new JsonObject()
+						.put("update", COLLECTIONS.stats.name())
+						.put("updates", new JsonArray().add(new JsonObject()
+								.put("q", new JsonObject().put(RUN_FIELD, collection))
+								.put("u", new JsonObject().put("$unset", new JsonObject().put(RUN_FIELD, "")))
+								.put("multi", true)));
+				command(unmark, unmarked -> {
+					if (unmarked.failed()) {
+						log.warn("[Aggregation][Staging] Error unmarking " + collection + " : " + unmarked.cause().getMessage());
+					}
+					log.info("[Aggregation][Staging] " + collection + " published, took [" +
+							(System.currentTimeMillis() - start) + "] ms");
+					discard(discarded -> {
+						if (discarded.failed()) {
+							log.warn("[Aggregation][Staging] Error dropping " + collection + " : " + discarded.cause().getMessage());
+						}
+						handler.handle(Future.succeededFuture());
+					});
+				});
+			});
+		});
+	}
+
+	/**
+	 * Drops the staging collection.
+	 */
+	public void discard(Handler<AsyncResult<Void>> handler) {
+		command(new JsonObject().put("drop", collection), handler);
+	}
+
+	private static JsonObject delete(JsonObject query) {
+		return new JsonObject()
+				.put("delete", COLLECTIONS.stats.name())
+				.put("deletes", new JsonArray().add(new JsonObject().put("q", query).put("limit", 0)));
+	}
+
+	private void command(JsonObject command, Handler<AsyncResult<Void>> handler) {
+		mongo.command(command.encode(), message -> {
+			if ("ok".equals(message.body().getString("status"))) {
+				handler.handle(Future.succeededFuture());
+			} else {
+				handler.handle(Future.failedFuture(message.body().getString("message", "stats.staging.error")));
+			}
+		});
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Upserts stats documents in the stats collection with batched update commands.
+ * Inserted documents get their natural key (date and group criteria) as _id, so that a staged run
+ * replaces the documents of the previous run one by one when it is published.
+ */
+public class StatsWriter {
+
+	private final MongoDb mongo;
+	private final String collection;
+	private final int batchSize;
+	private boolean increment = false;
+
+	public StatsWriter(MongoDb mongo, String collection, int batchSize) {
+		this.mongo = mongo;
+		this.collection = collection;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Values are added to the existing ones instead of replacing them.
+	 */
+	public StatsWriter increment() {
+		this.increment = true;
+		return this;
+	}
+
+	/**
+	 * @param writeDate : Recording date of the documents.
+	 * @param documents : Documents as {criteria : group criteria, values : indicator values}.
+	 * @param handler : Called with the number of written documents.
+	 */
+	public void write(Date writeDate, List<JsonObject> documents, Handler<AsyncResult<Integer>> handler) {
+		write(MongoDb.formatDate(writeDate), documents, 0, handler);
+	}
+
+	private void write(final String date, final List<JsonObject> documents, final int from, final Handler<AsyncResult<Integer>> handler) {
+		if (from >= documents.size()) {
+			handler.handle(Future.succeededFuture(documents.size()));
+			return;
+		}
+		final int to = Math.min(from + batchSize, documents.size());
+		final JsonArray updates = new JsonArray();
+		for (JsonObject document : documents.subList(from, to)) {
+			final JsonObject criteria = document.getJsonObject("criteria");
+			updates.add(new JsonObject()
+					.put("q", criteria.copy().put(STATS_FIELD_DATE, date))
+					.put("u", new JsonObject()
+							.put(increment ? "$inc" : "$set", document.getJsonObject("values"))
+							.put("$setOnInsert", new JsonObject().put("_id", documentId(criteria, date))))
+					.put("upsert", true));
+		}
+		final JsonObject command = new JsonObject()
+				.put("update", collection)
+				.put("updates", updates)
+				.put("ordered", false);
+		mongo.command(command.encode(), message -> {
+			final JsonObject result = message.body().getJsonObject("result", new JsonObject());
+			if ("ok".equals(message.body().getString("status")) && result.getJsonArray("writeErrors", new JsonArray()).isEmpty()) {
+				write(date, documents, to, handler);
+			} else {
+				handler.handle(Future.failedFuture(message.body().getString("message", "stats.write.error")));
+			}
+		});
+	}
+
+	/**
+	 * Natural key of a stats document : its date and its criteria values, sorted by field.
+	 * Criteria which are not values (e.g. groupedBy $exists false of the global group) count as empty.
+	 */
+	public static String documentId(JsonObject criteria, String date) {
+		final StringBuilder id = new StringBuilder(date);
+		for (String field : new TreeSet<>(criteria.fieldNames())) {
+			final Object value = criteria.getValue(field);
+			id.append('|').append(field).append('=');
+			if (value instanceof String || value instanceof Boolean || value instanceof Number) {
+				id.append(value);
+			}
+		}
+		return id.toString();
+	}
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.entcore.common.aggregation.AggregationTools;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+
+/**
+ * Unique visitors of a period (week, month) derived from the stored daily HyperLogLog sketches
+ * instead of a distinct count over all the traces of the period.
+ * The daily sketches of a group are merged as they are read, sorted by group, one group at a time.
+ */
+public class UniqueVisitorSketches {
+
+	private static final Logger log = LoggerFactory.getLogger(UniqueVisitorSketches.class);
+
+	public static final String SKETCHES_COLLECTION = "stats_sketches";
+	/** Fields the sketches may be grouped by, in sort order. */
+	private static final String[] GROUP_FIELDS = {TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE, TRACE_FIELD_MODULE};
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final int batchSize;
+	private final String statsCollection;
+
+	public UniqueVisitorSketches(int batchSize) {
+		this(batchSize, COLLECTIONS.stats.name());
+	}
+
+	/**
+	 * @param statsCollection : Collection the period unique visitors are written to.
+	 */
+	public UniqueVisitorSketches(int batchSize, String statsCollection) {
+		this.batchSize = batchSize;
+		this.statsCollection = statsCollection;
+	}
+
+	/**
+	 * Merges the daily sketches of the period and writes the estimated unique visitors of every group.
+	 * @param lowerDay : First day of the period (midnight).
+	 * @param higherDay : Day after the last day of the period (midnight).
+	 * @param handler : Called with false, without writing anything, if a day of the period has no sketch
+	 * (e.g. days aggregated before sketches were enabled), exact counting should be used instead.
+	 */
+	public void aggregatePeriod(final Date lowerDay, final Date higherDay, final Date writeDate, final String writeKey,
+			final Handler<AsyncResult<Boolean>> handler) {
+		final JsonObject dateRange = new JsonObject()
+				.put("$gte", MongoDb.formatDate(lowerDay))
+				.put("$lt", MongoDb.formatDate(higherDay));
+		final JsonObject distinct = new JsonObject()
+				.put("distinct", SKETCHES_COLLECTION)
+				.put("key", STATS_FIELD_DATE)
+				.put("query", new JsonObject()
+						.put(STATS_FIELD_DATE, dateRange)
+						.put(STATS_FIELD_GROUPBY, new JsonObject().put("$exists", false)));
+		mongo.command(distinct.encode(), message -> {
+			final JsonObject result = message.body().getJsonObject("result");
+			if (!"ok".equals(message.body().getString("status")) || result == null) {
+				handler.handle(Future.failedFuture(message.body().getString("message", "sketches.distinct.error")));
+				return;
+			}
+			final int sketchedDays = result.getJsonArray("values", new JsonArray()).size();
+			final int days = countDays(lowerDay, higherDay);
+			if (sketchedDays < days) {
+				log.info("[Aggregation][Sketches] " + sketchedDays + "/" + days + " days sketched from " +
+						lowerDay + ", " + writeKey + " falls back to exact counting");
+				handler.handle(Future.succeededFuture(false));
+				return;
+			}
+			merge(dateRange, writeDate, writeKey, handler);
+		});
+	}
+
+	/**
+	 * The sketches are read sorted by group, so that a single merged sketch is held at once
+	 * and the estimates are written batch by batch while reading.
+	 */
+	private void merge(final JsonObject dateRange, final Date writeDate, final String writeKey,
+			final Handler<AsyncResult<Boolean>> handler) {
+		final long start = System.currentTimeMillis();
+		final JsonObject sort = new JsonObject().put(STATS_FIELD_GROUPBY, 1);
+		for (String field : GROUP_FIELDS) {
+			sort.put(field + "_id", 1);
+		}
+		final JsonArray pipeline = new JsonArray()
+				.add(new JsonObject().put("$match", new JsonObject().put(STATS_FIELD_DATE, dateRange)))
+				.add(new JsonObject().put("$project", new JsonObject().put("_id", 0).put(STATS_FIELD_DATE, 0)))
+				.add(new JsonObject().put("$sort", sort));
+		final StatsWriter writer = new StatsWriter(mongo, statsCollection, batchSize);
+		final GroupMerge groups = new GroupMerge(writeKey);
+		final long[] written = {0L};
+		new AggregationCursor(mongo, SKETCHES_COLLECTION, pipeline, batchSize).stream((batch, next) -> {
+			for (Object o : batch) {
+				if (o instanceof JsonObject) {
+					groups.add((JsonObject) o);
+				}
+			}
+			if (groups.size() < batchSize) {
+				next.handle(null);
+				return;
+			}
+			writer.write(writeDate, groups.drain(), w -> {
+				if (w.failed()) {
+					// The cursor is left to the server timeout
+					handler.handle(Future.failedFuture(w.cause()));
+					return;
+				}
+				written[0] += w.result();
+				next.handle(null);
+			});
+		}, read -> {
+			if (read.failed()) {
+				handler.handle(Future.failedFuture(read.cause()));
+				return;
+			}
+			groups.end();
+			writer.write(writeDate, groups.drain(), w -> {
+				if (w.failed()) {
+					handler.handle(Future.failedFuture(w.cause()));
+					return;
+				}
+				log.info("[Aggregation][Sketches] " + read.result() + " sketches merged in " + (written[0] + w.result()) +
+						" " + writeKey + " documents, took [" + (System.currentTimeMillis() - start) + "] ms");
+				handler.handle(Future.succeededFuture(true));
+			});
+		});
+	}
+
+	/**
+	 * Merges the daily sketches of each group, the sketches being added sorted by group :
+	 * the estimate of a group is emitted once a sketch of another group is added, or at the end.
+	 */
+	static final class GroupMerge {
+		private final String writeKey;
+		private final Map<String, Grouping> groupings = new HashMap<>();
+		private List<JsonObject> documents = new ArrayList<>();
+		private String currentKey = null;
+		private JsonObject currentCriteria = null;
+		private HyperLogLog current = null;
+
+		GroupMerge(String writeKey) {
+			this.writeKey = writeKey;
+		}
+
+		void add(JsonObject document) {
+			final String groupedBy = document.getString(STATS_FIELD_GROUPBY, "");
+			final Grouping grouping = groupings.computeIfAbsent(groupedBy,
+					g -> g.isEmpty() ? Grouping.of() : Grouping.of(g.split("/")));
+			final String[] values = new String[grouping.size()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = document.getString(grouping.getFields()[i] + "_id");
+			}
+			final String key = grouping.key(values);
+			final HyperLogLog sketch = HyperLogLog.decode(document.getString(UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY));
+			if (key.equals(currentKey)) {
+				current.merge(sketch);
+			} else {
+				end();
+				currentKey = key;
+				currentCriteria = grouping.criteria(values);
+				current = sketch;
+			}
+		}
+
+		/**
+		 * Emits the estimate of the current group, groups without visitors are not written.
+		 */
+		void end() {
+			final long estimate = current != null ? current.estimate() : 0L;
+			if (estimate > 0) {
+				documents.add(new JsonObject().put("criteria", currentCriteria)
+						.put("values", new JsonObject().put(writeKey, estimate)));
+			}
+			currentKey = null;
+			currentCriteria = null;
+			current = null;
+		}
+
+		int size() {
+			return documents.size();
+		}
+
+		/**
+		 * @return The emitted documents, which are not kept.
+		 */
+		List<JsonObject> drain() {
+			final List<JsonObject> drained = documents;
+			documents = new ArrayList<>();
+			return drained;
+		}
+	}
+
+	static int countDays(Date lowerDay, Date higherDay) {
+		final Calendar calendarDay = Calendar.getInstance();
+		calendarDay.setTime(lowerDay);
+		int days = 0;
+		while (AggregationTools.setToMidnight(calendarDay).before(higherDay)) {
+			days++;
+			calendarDay.add(Calendar.DATE, 1);
+		}
+		return days;
+	}
+
+}
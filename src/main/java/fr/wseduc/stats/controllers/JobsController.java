@@ -60,6 +60,24 @@ public class JobsController extends BaseController {
 		});
 	}
 
+	@Put("/jobs/migrate/stats")
+	@SecuredAction("stats.migrate")
+	public void migrateMongoStats(HttpServerRequest request) {
+		jobsService.migrateMongoStats("true".equals(request.params().get("restart")), asyncVoidResponseHandler(request));
+	}
+
+	@Get("/jobs/migrate/stats")
+	@SecuredAction("stats.migrate")
+	public void mongoStatsMigration(HttpServerRequest request) {
+		jobsService.getMongoStatsMigration(ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else {
+				badRequest(request, ar.cause().getMessage());
+			}
+		});
+	}
+
 	public void setJobsService(JobsService jobsService) {
 		this.jobsService = jobsService;
 	}
@@ -25,23 +25,25 @@ package fr.wseduc.stats.controllers;
 import static fr.wseduc.webutils.Utils.getOrElse;
 import static org.entcore.common.http.response.DefaultResponseHandler.*;
 
-import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
-import java.util.ServiceLoader;
-import java.util.concurrent.atomic.AtomicInteger;
 
+import fr.wseduc.stats.aggregation.engine.AggregationRunHistory;
+import fr.wseduc.stats.cron.AggregationLease;
 import fr.wseduc.stats.filters.StatsResourceProvider;
+import fr.wseduc.stats.services.DefaultStructureServiceImpl;
+import fr.wseduc.stats.services.LiveActivityGauge;
+import fr.wseduc.stats.services.MongoIndexManager;
+import fr.wseduc.stats.services.RecalculationService;
 import fr.wseduc.stats.services.StatsService;
 import fr.wseduc.stats.services.StatsServiceMongoImpl;
 import fr.wseduc.stats.services.StructureService;
+import fr.wseduc.stats.utils.ResponseCache;
 import fr.wseduc.rs.*;
 import fr.wseduc.security.ActionType;
 import fr.wseduc.security.SecuredAction;
 import fr.wseduc.webutils.Either;
 import fr.wseduc.webutils.I18n;
 import io.vertx.core.MultiMap;
-import org.entcore.common.aggregation.processing.AggregationProcessing;
 import org.entcore.common.events.EventHelper;
 import org.entcore.common.http.filter.ResourceFilter;
 import org.entcore.common.http.filter.SuperAdminFilter;
@@ -62,8 +64,14 @@ public class StatsController extends MongoDbControllerHelper {
 
 	//Computation service
 	private StatsService statsService;
-	private final StructureService structureService = new StructureService();
+	private StructureService structureService = new DefaultStructureServiceImpl();
 	private EventHelper eventHelper;
+	private ResponseCache structuresCache;
+	private RecalculationService recalculationService;
+	private AggregationLease aggregationLease;
+	private LiveActivityGauge liveActivityGauge;
+	private MongoIndexManager indexManager;
+	private final AggregationRunHistory aggregationRunHistory = new AggregationRunHistory();
 
 	//Permissions
 	private static final String
@@ -112,6 +120,28 @@ public class StatsController extends MongoDbControllerHelper {
 		statsService.listStats(request.params(), arrayResponseHandler(request));
 	}
 
+	/**
+	 * Streams the live activity (active users and logins over the last 1 and 5 minutes) of a structure or class
+	 * as Server-Sent Events, the platform level is reserved to super admins.
+	 * @param request Client request
+	 */
+	@Get("/live")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(StatsResourceProvider.class)
+	public void liveActivity(final HttpServerRequest request) {
+		if (liveActivityGauge == null) {
+			notFound(request, "live.gauge.disabled");
+			return;
+		}
+		final String entityLevel = request.params().get("entityLevel");
+		final String entity = request.params().get("entity");
+		if (!LiveActivityGauge.PLATFORM.equals(entityLevel) && (entity == null || entity.trim().isEmpty())) {
+			badRequest(request, "entity.missing");
+			return;
+		}
+		liveActivityGauge.subscribe(entityLevel, entity, request);
+	}
+
 	/**
 	 * Exports global aggregations.
 	 * @param request Client request
@@ -239,65 +269,175 @@ public class StatsController extends MongoDbControllerHelper {
 			return;
 		}
 
-		ok(request);
+		recalculationService.create(fromDate, toDate, ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else if (RecalculationService.RANGE_OVERLAP.equals(ar.cause().getMessage()) ||
+					RecalculationService.CREATE_BUSY.equals(ar.cause().getMessage())) {
+				renderJson(request, new JsonObject().put("error", ar.cause().getMessage()), 409);
+			} else {
+				log.error("[Aggregation][Recalculate] Error creating job", ar.cause());
+				renderError(request);
+			}
+		});
+	}
+
+	@Get("/recalculate/jobs")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void listRecalculations(final HttpServerRequest request) {
+		recalculationService.list(ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else {
+				renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
+			}
+		});
+	}
 
-		log.info("[Aggregation][Recalculate] Starting ... (from " + new Date(fromDate) + " / to " + new Date(toDate) + ")");
+	@Get("/recalculate/jobs/:id")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void getRecalculation(final HttpServerRequest request) {
+		recalculationService.get(request.params().get("id"), ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else {
+				notFound(request, ar.cause().getMessage());
+			}
+		});
+	}
 
-		final Calendar cal = Calendar.getInstance();
-		final Calendar endCal = Calendar.getInstance();
-		cal.setTimeInMillis(fromDate);
-		endCal.setTimeInMillis(toDate);
-		final ServiceLoader<AggregationProcessing> implementations = ServiceLoader.load(AggregationProcessing.class);
+	@Delete("/recalculate/jobs/:id")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void cancelRecalculation(final HttpServerRequest request) {
+		recalculationService.cancel(request.params().get("id"), ar -> {
+			if (ar.succeeded()) {
+				ok(request);
+			} else {
+				renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
+			}
+		});
+	}
 
-		final AtomicInteger countdown = new AtomicInteger(0);
-		final AtomicInteger implNb = new AtomicInteger(0);
-		for(@SuppressWarnings("unused") AggregationProcessing _ : implementations){
-			implNb.incrementAndGet();
+	@Get("/aggregation/ledger")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void aggregationLedger(final HttpServerRequest request) {
+		if (aggregationLease == null) {
+			notFound(request, "aggregation.lease.disabled");
+			return;
 		}
-		countdown.set(implNb.get());
-
-		final Handler<Void> processing = new Handler<Void>() {
-
-			final Handler<Void> that = this;
-			final Handler<Void> continuation = new Handler<Void>() {
-				public void handle(Void v) {
-					if(countdown.decrementAndGet() <= 0) {
-						cal.add(Calendar.DAY_OF_MONTH, 1);
-						if(cal.getTimeInMillis() >= endCal.getTimeInMillis()) {
-							log.info("[Aggregation][Recalculate] Over");
-							return;
-						}
-						countdown.set(implNb.get());
-						that.handle(null);
-					}
-				}
-			};
-
-			public void handle(Void v) {
-				log.info("[Aggregation][Processing] Date marker set at : {"+cal.getTime()+"}");
-				for(AggregationProcessing processor : implementations) {
-					final Date start = new Date();
-					log.info("[Aggregation][Processing] Launching implementation : "+processor.getClass().getName());
-					processor.getIndicators().clear();
-					processor.process(cal.getTime(), new Handler<JsonObject>() {
-						public void handle(JsonObject event) {
-							final Date end = new Date();
-							log.info("[Aggregation][Processing] Over, took ["+(end.getTime() - start.getTime())+"] ms");
-							continuation.handle(null);
-						}
-					});
-				}
+		final int days;
+		try {
+			days = Integer.parseInt(getOrElse(request.params().get("days"), "30"));
+		} catch (NumberFormatException e) {
+			badRequest(request, "invalid.days");
+			return;
+		}
+		aggregationLease.ledger(AggregationLease.lastDays(config.getInteger("dayDelta", -1), Math.min(Math.max(days, 1), 366)), ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else {
+				renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
 			}
-		};
+		});
+	}
+
+	@Get("/aggregation/runs")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void aggregationRuns(final HttpServerRequest request) {
+		final Long since = since(request, "7");
+		if (since == null) {
+			badRequest(request, "invalid.days");
+			return;
+		}
+		final Long before;
+		final int limit;
+		try {
+			before = request.params().get("before") != null ? Long.valueOf(request.params().get("before")) : null;
+			limit = Integer.parseInt(getOrElse(request.params().get("limit"), "100"));
+		} catch (NumberFormatException e) {
+			badRequest(request, "invalid.page");
+			return;
+		}
+		aggregationRunHistory.list(since, before, limit, ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else {
+				renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
+			}
+		});
+	}
+
+	@Get("/aggregation/metrics")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void aggregationMetrics(final HttpServerRequest request) {
+		final Long since = since(request, "30");
+		if (since == null) {
+			badRequest(request, "invalid.days");
+			return;
+		}
+		aggregationRunHistory.metrics(since, ar -> {
+			if (ar.succeeded()) {
+				renderJson(request, ar.result());
+			} else {
+				renderError(request, new JsonObject().put("error", ar.cause().getMessage()));
+			}
+		});
+	}
+
+	/**
+	 * Declared Mongo indexes with their status and the sampled queries which ran as collection scans.
+	 * @param request Client request
+	 */
+	@Get("/indexes")
+	@SecuredAction(value = "", type = ActionType.RESOURCE)
+	@ResourceFilter(SuperAdminFilter.class)
+	public void indexes(final HttpServerRequest request) {
+		if (indexManager == null) {
+			notFound(request, "indexes.disabled");
+			return;
+		}
+		renderJson(request, indexManager.report());
+	}
 
-		processing.handle(null);
+	private static Long since(HttpServerRequest request, String defaultDays) {
+		try {
+			final int days = Math.min(Math.max(Integer.parseInt(getOrElse(request.params().get("days"), defaultDays)), 1), 366);
+			return System.currentTimeMillis() - days * 86400000L;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
 
+	public void setAggregationLease(AggregationLease aggregationLease) {
+		this.aggregationLease = aggregationLease;
+	}
+
+	public void setIndexManager(MongoIndexManager indexManager) {
+		this.indexManager = indexManager;
+	}
+
+	public void setLiveActivityGauge(LiveActivityGauge liveActivityGauge) {
+		this.liveActivityGauge = liveActivityGauge;
+	}
+
+	public void setRecalculationService(RecalculationService recalculationService) {
+		this.recalculationService = recalculationService;
 	}
 
 	public void setStatsService(StatsService statsService) {
 		this.statsService = statsService;
 	}
 
+	public void setStructureService(StructureService structureService) {
+		this.structureService = structureService;
+	}
+
 
 	@Get("/substructures")
 	@SecuredAction(value = "", type = ActionType.AUTHENTICATED)
@@ -324,11 +464,21 @@ public class StatsController extends MongoDbControllerHelper {
 	public void getStructuresHierarchyAndClasses(final HttpServerRequest request) {
 		UserUtils.getUserInfos(eb, request, user -> {
 			if (user != null) {
+				if (structuresCache != null) {
+					final JsonArray cached = structuresCache.get(user.getUserId());
+					if (cached != null) {
+						renderJson(request, cached);
+						return;
+					}
+				}
 				structureService.getStructuresHierarchyAndClasses(user.getUserId(), either -> {
 					if (either.isLeft()) {
 						log.error(either.left().getValue());
 						renderError(request);
 					} else {
+						if (structuresCache != null) {
+							structuresCache.put(user.getUserId(), either.right().getValue());
+						}
 						renderJson(request, either.right().getValue());
 					}
 				});
@@ -357,6 +507,10 @@ public class StatsController extends MongoDbControllerHelper {
 		});
 	}
 
+	public void setStructuresCache(ResponseCache structuresCache) {
+		this.structuresCache = structuresCache;
+	}
+
 	public void setEventHelper(EventHelper eventHelper) {
 		this.eventHelper = eventHelper;
 	}
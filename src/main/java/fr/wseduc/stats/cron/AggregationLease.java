@@ -0,0 +1,233 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.cron;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Cluster wide lease on the aggregation of a day, stored in Mongo so it works whether the nodes are clustered or not.
+ * The holder renews the lease while it runs, if it dies the lease expires and another node takes over.
+ * Each acquisition has its own token : the lease is not reentrant, even within a node
+ * (the cron, a recalculation and the catch-up of the same day never run at once).
+ * The lease document also records that the day is aggregated, so the other nodes cron skip it,
+ * the lease documents being the ledger of the aggregated days.
+ */
+public class AggregationLease {
+
+	private static final Logger log = LoggerFactory.getLogger(AggregationLease.class);
+
+	public static final String COLLECTION = "stats_leases";
+	private static final String NODE_ID = UUID.randomUUID().toString();
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final Vertx vertx;
+	private final long ttl;
+
+	/**
+	 * @param ttl : Lease duration in ms, renewed every third of it.
+	 */
+	public AggregationLease(Vertx vertx, long ttl) {
+		this.vertx = vertx;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return The count days ending at today + dayDelta, oldest first.
+	 */
+	public static List<Date> lastDays(int dayDelta, int count) {
+		final List<Date> days = new ArrayList<>();
+		for (int i = count - 1; i >= 0; i--) {
+			final Calendar cal = Calendar.getInstance();
+			cal.add(Calendar.DAY_OF_YEAR, dayDelta - i);
+			days.add(cal.getTime());
+		}
+		return days;
+	}
+
+	private static String key(Date day) {
+		return "aggregation-" + new SimpleDateFormat("yyyy-MM-dd").format(day);
+	}
+
+	/**
+	 * Runs the task holding the lease of the day, waiting for it while another node holds it.
+	 * @param skipDone : Gives up if the day is already aggregated (scheduled runs), recalculations run anyway.
+	 * @param task : Called with the handler to call once the day is aggregated, with its success, which releases the lease.
+	 */
+	public void execute(final Date day, final boolean skipDone, final Handler<Handler<Boolean>> task) {
+		execute(day, skipDone, task, null);
+	}
+
+	/**
+	 * @param skipped : Called instead of the task if the day is already aggregated.
+	 */
+	public void execute(final Date day, final boolean skipDone, final Handler<Handler<Boolean>> task, final Handler<Void> skipped) {
+		final String key = key(day);
+		final String token = UUID.randomUUID().toString();
+		final long now = System.currentTimeMillis();
+		final JsonObject query = new JsonObject().put("_id", key)
+				.put("expiresAt", new JsonObject().put("$lt", now));
+		if (skipDone) {
+			query.put("done", new JsonObject().put("$ne", true));
+		}
+		final JsonObject command = new JsonObject()
+				.put("findAndModify", COLLECTION)
+				.put("query", query)
+				.put("update", new JsonObject().put("$set", new JsonObject()
+						.put("owner", NODE_ID)
+						.put("token", token)
+						.put("acquiredAt", now)
+						.put("expiresAt", now + ttl)))
+				.put("upsert", true)
+				.put("new", true);
+		mongo.command(command.encode(), message -> {
+			if ("ok".equals(message.body().getString("status"))) {
+				run(key, token, task);
+				return;
+			}
+			// Duplicate key : the lease exists and is held by another run, or the day is already aggregated
+			mongo.findOne(COLLECTION, new JsonObject().put("_id", key), found -> {
+				final JsonObject lease = found.body().getJsonObject("result");
+				if (skipDone && lease != null && Boolean.TRUE.equals(lease.getBoolean("done"))) {
+					log.info("[Aggregation][Lease] " + key + " already aggregated by " + lease.getString("owner"));
+					if (skipped != null) {
+						skipped.handle(null);
+					}
+					return;
+				}
+				log.info("[Aggregation][Lease] " + key + " held by " + (lease != null ? lease.getString("owner") : "?") +
+						", retrying in " + ttl + " ms");
+				vertx.setTimer(ttl, t -> execute(day, skipDone, task, skipped));
+			});
+		});
+	}
+
+	/**
+	 * Ledger of the days : whether their last aggregation succeeded, by which node and when.
+	 * @param handler : Called with {day, done, status (missing, running, ok, error or interrupted), owner, doneAt} for each day.
+	 */
+	public void ledger(final List<Date> days, final Handler<AsyncResult<JsonArray>> handler) {
+		final JsonArray keys = new JsonArray();
+		for (Date day : days) {
+			keys.add(key(day));
+		}
+		mongo.find(COLLECTION, new JsonObject().put("_id", new JsonObject().put("$in", keys)), message -> {
+			if (!"ok".equals(message.body().getString("status"))) {
+				handler.handle(Future.failedFuture(message.body().getString("message")));
+				return;
+			}
+			final Map<String, JsonObject> leases = new HashMap<>();
+			for (Object o : message.body().getJsonArray("results", new JsonArray())) {
+				if (o instanceof JsonObject) {
+					leases.put(((JsonObject) o).getString("_id"), (JsonObject) o);
+				}
+			}
+			final long now = System.currentTimeMillis();
+			final JsonArray ledger = new JsonArray();
+			for (int i = 0; i < days.size(); i++) {
+				final JsonObject lease = leases.getOrDefault(keys.getString(i), new JsonObject());
+				final String status;
+				if (lease.isEmpty()) {
+					status = "missing";
+				} else if (lease.getLong("expiresAt", 0L) > now) {
+					status = "running";
+				} else {
+					status = lease.getString("status", "interrupted");
+				}
+				final JsonObject entry = new JsonObject()
+						.put("day", keys.getString(i).substring("aggregation-".length()))
+						.put("done", Boolean.TRUE.equals(lease.getBoolean("done")))
+						.put("status", status);
+				if (lease.containsKey("owner")) {
+					entry.put("owner", lease.getString("owner"));
+				}
+				if (lease.containsKey("doneAt")) {
+					entry.put("doneAt", lease.getLong("doneAt"));
+				}
+				ledger.add(entry);
+			}
+			handler.handle(Future.succeededFuture(ledger));
+		});
+	}
+
+	/**
+	 * Records the day as aggregated if it has no lease document yet, e.g. the days aggregated before the ledger existed.
+	 */
+	public void seed(final Date day, final Handler<Void> handler) {
+		final long now = System.currentTimeMillis();
+		mongo.update(COLLECTION, new JsonObject().put("_id", key(day)), new JsonObject().put("$setOnInsert", new JsonObject()
+				.put("owner", "seed")
+				.put("expiresAt", 0L)
+				.put("done", true)
+				.put("status", "ok")
+				.put("doneAt", now)), true, false, seeded -> {
+			if (!"ok".equals(seeded.body().getString("status"))) {
+				log.error("[Aggregation][Lease] Error seeding " + key(day) + " : " + seeded.body().getString("message"));
+			}
+			handler.handle(null);
+		});
+	}
+
+	private void run(final String key, final String token, final Handler<Handler<Boolean>> task) {
+		log.info("[Aggregation][Lease] " + key + " acquired by " + NODE_ID + " (" + token + ")");
+		final JsonObject owned = new JsonObject().put("_id", key).put("token", token);
+		final long renewal = vertx.setPeriodic(Math.max(1000L, ttl / 3), t ->
+				mongo.update(COLLECTION, owned, new JsonObject().put("$set", new JsonObject()
+						.put("expiresAt", System.currentTimeMillis() + ttl)), renewed -> {
+					if (!"ok".equals(renewed.body().getString("status"))) {
+						log.error("[Aggregation][Lease] Error renewing " + key + " : " + renewed.body().getString("message"));
+					}
+				}));
+		task.handle(success -> {
+			vertx.cancelTimer(renewal);
+			final long now = System.currentTimeMillis();
+			mongo.update(COLLECTION, owned, new JsonObject().put("$set", new JsonObject()
+					.put("expiresAt", now)
+					.put("done", Boolean.TRUE.equals(success))
+					.put("status", Boolean.TRUE.equals(success) ? "ok" : "error")
+					.put("doneAt", now)), released -> {
+				if (!"ok".equals(released.body().getString("status"))) {
+					log.error("[Aggregation][Lease] Error releasing " + key + " : " + released.body().getString("message"));
+				}
+			});
+		});
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.cron;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+
+/**
+ * Backfills the days of the look-back window missing from the aggregation ledger (never aggregated or failed),
+ * oldest first, at most maxDays per execution. Scheduled in an off-peak window.
+ * The days without ledger entry which already have stats (aggregated before the ledger existed, e.g. on first deploy)
+ * are recorded as done in the ledger instead.
+ */
+public class CatchUpAggregationTask implements Handler<Long> {
+
+	private static final Logger log = LoggerFactory.getLogger(CatchUpAggregationTask.class);
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final CronAggregationTask aggregationTask;
+	private final AggregationLease aggregationLease;
+	private final int dayDelta;
+	private final int lookBack;
+	private final int maxDays;
+	private boolean running = false;
+
+	/**
+	 * @param lookBack : Number of days checked, ending at the day aggregated by the daily cron.
+	 * @param maxDays : Maximum number of days backfilled per execution.
+	 */
+	public CatchUpAggregationTask(CronAggregationTask aggregationTask, AggregationLease aggregationLease,
+			int dayDelta, int lookBack, int maxDays) {
+		this.aggregationTask = aggregationTask;
+		this.aggregationLease = aggregationLease;
+		this.dayDelta = dayDelta;
+		this.lookBack = lookBack;
+		this.maxDays = maxDays;
+	}
+
+	@Override
+	public void handle(Long event) {
+		if (running) {
+			return;
+		}
+		running = true;
+		final List<Date> days = AggregationLease.lastDays(dayDelta, lookBack);
+		aggregationLease.ledger(days, ar -> {
+			if (ar.failed()) {
+				log.error("[Aggregation][CatchUp] Error reading ledger : " + ar.cause().getMessage());
+				running = false;
+				return;
+			}
+			final JsonArray ledger = ar.result();
+			statsDays(days, stats -> {
+				if (stats.failed()) {
+					log.error("[Aggregation][CatchUp] Error reading stats days : " + stats.cause().getMessage());
+					running = false;
+					return;
+				}
+				final List<Date> missing = new ArrayList<>();
+				final List<Date> seeded = new ArrayList<>();
+				for (int i = 0; i < days.size() && missing.size() < maxDays; i++) {
+					final JsonObject entry = ledger.getJsonObject(i);
+					if ("missing".equals(entry.getString("status")) && stats.result().contains(entry.getString("day"))) {
+						seeded.add(days.get(i));
+					} else if (!entry.getBoolean("done", false) && !"running".equals(entry.getString("status"))) {
+						missing.add(days.get(i));
+					}
+				}
+				if (!seeded.isEmpty()) {
+					log.info("[Aggregation][CatchUp] " + seeded.size() + " days without ledger entry already have stats, recorded as done");
+				}
+				if (!missing.isEmpty()) {
+					log.info("[Aggregation][CatchUp] Backfilling " + missing.size() + " missing days from " + missing.get(0));
+				}
+				seed(seeded, 0, v -> backfill(missing, 0));
+			});
+		});
+	}
+
+	/**
+	 * @param handler : Called with the days (yyyy-MM-dd) having global stats, provisional ones excluded.
+	 */
+	private void statsDays(final List<Date> days, final Handler<AsyncResult<Set<String>>> handler) {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		final Calendar after = Calendar.getInstance();
+		after.setTime(days.get(days.size() - 1));
+		after.add(Calendar.DATE, 1);
+		final JsonObject distinct = new JsonObject()
+				.put("distinct", COLLECTIONS.stats.name())
+				.put("key", STATS_FIELD_DATE)
+				.put("query", new JsonObject()
+						.put(STATS_FIELD_DATE, new JsonObject()
+								.put("$gte", format.format(days.get(0)))
+								.put("$lt", format.format(after.getTime())))
+						.put(STATS_FIELD_GROUPBY, new JsonObject().put("$exists", false))
+						.put("provisional", new JsonObject().put("$ne", true)));
+		mongo.command(distinct.encode(), message -> {
+			final JsonObject result = message.body().getJsonObject("result");
+			if (!"ok".equals(message.body().getString("status")) || result == null) {
+				handler.handle(Future.failedFuture(message.body().getString("message", "stats.distinct.error")));
+				return;
+			}
+			final Set<String> statsDays = new HashSet<>();
+			for (Object date : result.getJsonArray("values", new JsonArray())) {
+				if (date instanceof String && ((String) date).length() >= 10) {
+					statsDays.add(((String) date).substring(0, 10));
+				}
+			}
+			handler.handle(Future.succeededFuture(statsDays));
+		});
+	}
+
+	private void seed(final List<Date> days, final int index, final Handler<Void> next) {
+		if (index >= days.size()) {
+			next.handle(null);
+			return;
+		}
+		aggregationLease.seed(days.get(index), v -> seed(days, index + 1, next));
+	}
+
+	private void backfill(final List<Date> days, final int index) {
+		if (index >= days.size()) {
+			running = false;
+			return;
+		}
+		final Date day = days.get(index);
+		aggregationLease.execute(day, true, release -> aggregationTask.aggregate(day, success -> {
+			release.handle(success);
+			backfill(days, index + 1);
+		}), skipped -> backfill(days, index + 1));
+	}
+
+}
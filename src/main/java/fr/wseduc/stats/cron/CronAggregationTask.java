@@ -22,8 +22,10 @@
 
 package fr.wseduc.stats.cron;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.ServiceLoader;
 
 import org.entcore.common.aggregation.processing.AggregationProcessing;
@@ -37,6 +39,7 @@ public class CronAggregationTask implements Handler<Long>{
 	private static final Logger log = LoggerFactory.getLogger(CronAggregationTask.class);
 
 	private final int dayDelta;
+	private AggregationLease aggregationLease;
 
 	public CronAggregationTask(int dayDelta) {
 		this.dayDelta = dayDelta;
@@ -47,20 +50,57 @@ public class CronAggregationTask implements Handler<Long>{
 		Calendar cal = Calendar.getInstance();
 		cal.add(Calendar.DAY_OF_YEAR, dayDelta);
 		final Date processingDate = cal.getTime();
+		if (aggregationLease == null) {
+			aggregate(processingDate, null);
+			return;
+		}
+		//Only the lease holder aggregates the date marker, the other nodes take over if it dies.
+		aggregationLease.execute(processingDate, true, new Handler<Handler<Boolean>>() {
+			public void handle(Handler<Boolean> release) {
+				aggregate(processingDate, release);
+			}
+		});
+	}
+
+	/**
+	 * Aggregates the day with every implementation.
+	 * @param over : Called with true if every implementation succeeded, may be null.
+	 */
+	public void aggregate(final Date processingDate, final Handler<Boolean> over) {
 		log.info("[Aggregation][Processing] Executing aggregation task, date marker set at : {"+processingDate.toString()+"}");
 		ServiceLoader<AggregationProcessing> implementations = ServiceLoader.load(AggregationProcessing.class);
 
+		final List<AggregationProcessing> processors = new ArrayList<>();
 		for(AggregationProcessing processor: implementations){
+			processors.add(processor);
+		}
+		final int[] remaining = {processors.size()};
+		final boolean[] success = {true};
+		if (processors.isEmpty() && over != null) {
+			over.handle(true);
+		}
+		for(AggregationProcessing processor: processors){
 			final Date start = new Date();
 			log.info("[Aggregation][Processing] Launching implementation : "+processor.getClass().getName());
 			processor.process(processingDate, new Handler<JsonObject>() {
 				public void handle(JsonObject event) {
 					final Date end = new Date();
 					log.info("[Aggregation][Processing] Over, took ["+(end.getTime() - start.getTime())+"] ms");
+					if (event == null || "error".equals(event.getString("status"))) {
+						log.error("[Aggregation][Processing] Aggregation of " + processingDate + " failed : " +
+								(event != null ? event.getString("message") : "no result"));
+						success[0] = false;
+					}
+					if (--remaining[0] == 0 && over != null) {
+						over.handle(success[0]);
+					}
 				}
 			});
 		}
 	}
 
+	public void setAggregationLease(AggregationLease aggregationLease) {
+		this.aggregationLease = aggregationLease;
+	}
 
 }
@@ -0,0 +1,448 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.cron;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.entcore.common.aggregation.AggregationTools;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.stats.aggregation.DailyAggregationProcessing;
+import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+import fr.wseduc.stats.aggregation.engine.AggregationCursor;
+import fr.wseduc.stats.aggregation.engine.EventsHighWaterMark;
+import fr.wseduc.stats.aggregation.engine.FusedAggregationEngine;
+import fr.wseduc.stats.aggregation.engine.PgStatsSink;
+import fr.wseduc.stats.aggregation.engine.StatsStaging;
+
+/**
+ * Finds the traces of the already aggregated days of the look-back window inserted after the day high-water mark
+ * (offline synchronisations, delayed imports), then recomputes the days which received some.
+ * With the fused engine, the structure groups of the structures of these traces and the groups without structure
+ * (day, week and month unique visitors included) are staged, then replace the previous documents of these groups.
+ * With another engine, the whole day is aggregated again. The PostgreSQL sink, if any, is written again.
+ * The week and month unique visitors of the following aggregated days of the window count the late traces too :
+ * they are counted again for the same groups (fused engine), or these days are aggregated again (other engines).
+ */
+public class LateEventReconciliationTask implements Handler<Long> {
+
+	private static final Logger log = LoggerFactory.getLogger(LateEventReconciliationTask.class);
+
+	private final MongoDb mongo = MongoDb.getInstance();
+	private final EventsHighWaterMark highWaterMark = new EventsHighWaterMark();
+	private final AggregationLease aggregationLease;
+	private final int dayDelta;
+	private final int lookBack;
+	private final String insertionField;
+	private final int batchSize;
+	private final boolean writeSketches;
+	private final CronAggregationTask dayAggregation;
+	private boolean running = false;
+	/** Whether the traces _id are ObjectIds, checked once when the insertion date is read from the _id. */
+	private Boolean objectIds = null;
+
+	/**
+	 * @param aggregationLease : Lease of the day taken while recomputing it, may be null.
+	 * @param lookBack : Number of days checked, ending at the day aggregated by the daily cron.
+	 * @param insertionField : Trace field holding the insertion date, _id for the ObjectId timestamp.
+	 * @param dayAggregation : Aggregation of a whole day if the engine is not the fused one, null otherwise.
+	 */
+	public LateEventReconciliationTask(AggregationLease aggregationLease, int dayDelta, int lookBack,
+			String insertionField, int batchSize, boolean writeSketches, CronAggregationTask dayAggregation) {
+		this.dayAggregation = dayAggregation;
+		this.aggregationLease = aggregationLease;
+		this.dayDelta = dayDelta;
+		this.lookBack = lookBack;
+		this.insertionField = insertionField;
+		this.batchSize = batchSize;
+		this.writeSketches = writeSketches;
+	}
+
+	@Override
+	public void handle(Long event) {
+		if (running) {
+			return;
+		}
+		if ("_id".equals(insertionField) && !Boolean.TRUE.equals(objectIds)) {
+			if (objectIds == null) {
+				checkObjectIds(event);
+			}
+			return;
+		}
+		running = true;
+		final List<Date> days = new ArrayList<>();
+		for (Date day : AggregationLease.lastDays(dayDelta, lookBack)) {
+			final Calendar calendarDay = Calendar.getInstance();
+			calendarDay.setTime(day);
+			days.add(AggregationTools.setToMidnight(calendarDay));
+		}
+		highWaterMark.load(days, loaded -> {
+			if (loaded.failed()) {
+				log.error("[Aggregation][Reconciliation] Error reading high-water marks : " + loaded.cause().getMessage());
+				running = false;
+				return;
+			}
+			findLateEvents(days, loaded.result());
+		});
+	}
+
+	/**
+	 * The insertion date can only be read from ObjectId _id (e.g. not from the UUID _id of the traces
+	 * written by some persistors) : the reconciliation is disabled otherwise.
+	 */
+	private void checkObjectIds(final Long event) {
+		mongo.findOne(COLLECTIONS.events.name(), new JsonObject(), new JsonObject().put("_id", 1), message -> {
+			final JsonObject trace = message.body().getJsonObject("result");
+			if (!"ok".equals(message.body().getString("status")) || trace == null) {
+				return;
+			}
+			final Object id = trace.getValue("_id");
+			objectIds = id instanceof JsonObject && ((JsonObject) id).containsKey("$oid");
+			if (objectIds) {
+				handle(event);
+			} else {
+				log.error("[Aggregation][Reconciliation] The traces _id are not ObjectIds, the insertion date can not be read from them : " +
+						"reconciliation disabled, set reconciliation-insertion-field to a trace insertion date field");
+			}
+		});
+	}
+
+	private Object insertedAfter(long date) {
+		if ("_id".equals(insertionField)) {
+			return new JsonObject().put("$oid", String.format("%08x", date / 1000L) + "0000000000000000");
+		}
+		return date;
+	}
+
+	private static boolean samePeriod(Date day, Date following) {
+		return DailyAggregationProcessing.weekStart(day).equals(DailyAggregationProcessing.weekStart(following)) ||
+				DailyAggregationProcessing.monthStart(day).equals(DailyAggregationProcessing.monthStart(following));
+	}
+
+	/**
+	 * Indexes of the late days and of the following aggregated days of their weeks and months, in order.
+	 */
+	private static List<Integer> withFollowingDays(List<Date> days, Map<String, JsonObject> marks, List<JsonObject> lateDays) {
+		final Set<Integer> indexes = new TreeSet<>();
+		for (JsonObject lateDay : lateDays) {
+			final Integer dayIndex = lateDay.getInteger("_id");
+			if (dayIndex == null || dayIndex < 0 || dayIndex >= days.size()) {
+				continue;
+			}
+			indexes.add(dayIndex);
+			for (int i = dayIndex + 1; i < days.size(); i++) {
+				if (marks.containsKey(EventsHighWaterMark.key(days.get(i))) && samePeriod(days.get(dayIndex), days.get(i))) {
+					indexes.add(i);
+				}
+			}
+		}
+		return new ArrayList<>(indexes);
+	}
+
+	private void findLateEvents(final List<Date> days, final Map<String, JsonObject> marks) {
+		final long[] boundaries = new long[days.size() + 1];
+		final JsonArray late = new JsonArray();
+		for (int i = 0; i < days.size(); i++) {
+			boundaries[i] = days.get(i).getTime();
+			final Calendar next = Calendar.getInstance();
+			next.setTime(days.get(i));
+			next.add(Calendar.DATE, 1);
+			boundaries[i + 1] = AggregationTools.setToMidnight(next).getTime();
+			final JsonObject mark = marks.get(EventsHighWaterMark.key(days.get(i)));
+			if (mark != null) {
+				late.add(new JsonObject()
+						.put(TRACE_FIELD_DATE, new JsonObject().put("$gte", boundaries[i]).put("$lt", boundaries[i + 1]))
+						.put(insertionField, new JsonObject().put("$gte", insertedAfter(mark.getLong("insertedBefore")))));
+			}
+		}
+		if (late.isEmpty()) {
+			running = false;
+			return;
+		}
+		final JsonArray pipeline = new JsonArray()
+				.add(new JsonObject().put("$match", new JsonObject().put("$or", late)))
+				.add(new JsonObject().put("$group", new JsonObject()
+						.put("_id", FusedAggregationEngine.hourExpression(boundaries))
+						.put("structures", new JsonObject().put("$addToSet", "$" + TRACE_FIELD_STRUCTURES))
+						.put("events", new JsonObject().put("$sum", 1))));
+		final List<JsonObject> lateDays = new ArrayList<>();
+		new AggregationCursor(mongo, COLLECTIONS.events.name(), pipeline, batchSize).readTraces().stream(batch -> {
+			for (Object o : batch) {
+				if (o instanceof JsonObject) {
+					lateDays.add((JsonObject) o);
+				}
+			}
+		}, read -> {
+			if (read.failed()) {
+				log.error("[Aggregation][Reconciliation] Error finding late traces", read.cause());
+				running = false;
+				return;
+			}
+			lateDays.sort((a, b) -> Integer.compare(a.getInteger("_id", -1), b.getInteger("_id", -1)));
+			if (dayAggregation != null) {
+				aggregate(days, withFollowingDays(days, marks, lateDays), 0);
+			} else {
+				reconcile(days, marks, lateDays, 0);
+			}
+		});
+	}
+
+	/**
+	 * Aggregates the days again one after the other (engines other than the fused one).
+	 */
+	private void aggregate(final List<Date> days, final List<Integer> indexes, final int index) {
+		if (index >= indexes.size()) {
+			running = false;
+			return;
+		}
+		final Date day = days.get(indexes.get(index));
+		log.info("[Aggregation][Reconciliation] Aggregating " + EventsHighWaterMark.key(day) + " again");
+		// The high-water mark and the PostgreSQL sink are written by the day aggregation
+		leased(day, over -> dayAggregation.aggregate(day, over), v -> aggregate(days, indexes, index + 1));
+	}
+
+	private void reconcile(final List<Date> days, final Map<String, JsonObject> marks, final List<JsonObject> lateDays,
+			final int index) {
+		if (index >= lateDays.size()) {
+			running = false;
+			return;
+		}
+		final JsonObject lateDay = lateDays.get(index);
+		final Integer dayIndex = lateDay.getInteger("_id");
+		if (dayIndex == null || dayIndex < 0 || dayIndex >= days.size()) {
+			reconcile(days, marks, lateDays, index + 1);
+			return;
+		}
+		final Date day = days.get(dayIndex);
+		final Set<String> structures = new HashSet<>();
+		for (Object array : lateDay.getJsonArray("structures", new JsonArray())) {
+			if (array instanceof JsonArray) {
+				for (Object structure : (JsonArray) array) {
+					if (structure instanceof String) {
+						structures.add((String) structure);
+					}
+				}
+			}
+		}
+		log.info("[Aggregation][Reconciliation] " + lateDay.getLong("events") + " late traces on " + EventsHighWaterMark.key(day) +
+				", recomputing " + structures.size() + " structures");
+		leased(day, over -> recompute(day, structures, over), v ->
+				following(days, marks, dayIndex, dayIndex + 1, structures, w -> reconcile(days, marks, lateDays, index + 1)));
+	}
+
+	/**
+	 * Runs the task under the lease of the day, if any.
+	 */
+	private void leased(final Date day, final Handler<Handler<Boolean>> recompute, final Handler<Void> next) {
+		final Handler<Handler<Boolean>> task = release -> recompute.handle(success -> {
+			if (release != null) {
+				release.handle(success);
+			}
+			next.handle(null);
+		});
+		if (aggregationLease != null) {
+			aggregationLease.execute(day, false, task);
+		} else {
+			task.handle(null);
+		}
+	}
+
+	/**
+	 * Counts again the week and month unique visitors of the scope of the late traces of the day
+	 * on the following aggregated days of the same week or month.
+	 */
+	private void following(final List<Date> days, final Map<String, JsonObject> marks, final int lateIndex, final int index,
+			final Set<String> structures, final Handler<Void> next) {
+		if (index >= days.size()) {
+			next.handle(null);
+			return;
+		}
+		final Date lateDay = days.get(lateIndex);
+		final Date day = days.get(index);
+		if (!marks.containsKey(EventsHighWaterMark.key(day)) || !samePeriod(lateDay, day)) {
+			following(days, marks, lateIndex, index + 1, structures, next);
+			return;
+		}
+		final List<FusedAggregationEngine> engines = new ArrayList<>();
+		if (!structures.isEmpty()) {
+			engines.add(new FusedAggregationEngine(day, day, batchSize).setShard(structures));
+		}
+		engines.add(new FusedAggregationEngine(day, day, batchSize).setGlobal());
+		final boolean week = DailyAggregationProcessing.weekStart(lateDay).equals(DailyAggregationProcessing.weekStart(day));
+		final boolean month = DailyAggregationProcessing.monthStart(lateDay).equals(DailyAggregationProcessing.monthStart(day));
+		leased(day, over -> periodVisitors(day, engines, week, month, 0, counted -> {
+			if (!counted) {
+				over.handle(false);
+				return;
+			}
+			final PgStatsSink sink = PgStatsSink.get();
+			if (sink == null) {
+				over.handle(true);
+				return;
+			}
+			sink.write(day, written -> {
+				if (written.failed()) {
+					log.error("[Aggregation][Reconciliation] Error writing " + day + " to PostgreSQL : " + written.cause().getMessage());
+				}
+				over.handle(written.succeeded());
+			});
+		}), v -> following(days, marks, lateIndex, index + 1, structures, next));
+	}
+
+	/**
+	 * Writes the week and month unique visitors of each engine scope to the stats documents of the day.
+	 * Late traces only add visitors : the documents are updated in place, without staging.
+	 */
+	private void periodVisitors(final Date day, final List<FusedAggregationEngine> engines, final boolean week,
+			final boolean month, final int index, final Handler<Boolean> counted) {
+		if (index >= engines.size()) {
+			counted.handle(true);
+			return;
+		}
+		final FusedAggregationEngine engine = engines.get(index);
+		final String key = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY;
+		final Handler<JsonObject> monthly = weekly -> {
+			if (failed(day, weekly)) {
+				counted.handle(false);
+			} else if (month) {
+				engine.executePeriodVisitors(DailyAggregationProcessing.monthStart(day), key + "_MONTH", result -> {
+					if (failed(day, result)) {
+						counted.handle(false);
+					} else {
+						periodVisitors(day, engines, week, month, index + 1, counted);
+					}
+				});
+			} else {
+				periodVisitors(day, engines, week, month, index + 1, counted);
+			}
+		};
+		if (week) {
+			engine.executePeriodVisitors(DailyAggregationProcessing.weekStart(day), key + "_WEEK", monthly);
+		} else {
+			monthly.handle(new JsonObject().put("status", "ok"));
+		}
+	}
+
+	private void recompute(final Date day, final Set<String> structures, final Handler<Boolean> over) {
+		final long insertedBefore = System.currentTimeMillis();
+		final StatsStaging staging = StatsStaging.create(day);
+		final List<FusedAggregationEngine> engines = new ArrayList<>();
+		final JsonObject withoutStructure = new JsonObject()
+				.put(TRACE_FIELD_STRUCTURES + "_id", new JsonObject().put("$exists", false));
+		final JsonObject scope;
+		if (structures.isEmpty()) {
+			scope = withoutStructure;
+		} else {
+			engines.add(new FusedAggregationEngine(day, day, batchSize).setShard(structures));
+			scope = new JsonObject().put("$or", new JsonArray().add(withoutStructure).add(new JsonObject()
+					.put(TRACE_FIELD_STRUCTURES + "_id", new JsonObject().put("$in", new JsonArray(new ArrayList<>(structures))))));
+		}
+		engines.add(new FusedAggregationEngine(day, day, batchSize).setGlobal());
+		stage(day, engines, staging, 0, staged -> {
+			if (!staged) {
+				staging.discard(discarded -> over.handle(false));
+				return;
+			}
+			// Groups of the scope which are not staged any more are removed
+			staging.publish(day, DailyAggregationProcessing.nextDay(day), scope, published -> {
+				if (published.failed()) {
+					log.error("[Aggregation][Reconciliation] Error publishing " + day + " : " + published.cause().getMessage());
+					over.handle(false);
+					return;
+				}
+				final Handler<Void> mark = v -> highWaterMark.mark(day, insertedBefore, marked -> over.handle(marked.succeeded()));
+				final PgStatsSink sink = PgStatsSink.get();
+				if (sink == null) {
+					mark.handle(null);
+					return;
+				}
+				sink.write(day, written -> {
+					if (written.failed()) {
+						log.error("[Aggregation][Reconciliation] Error writing " + day + " to PostgreSQL : " + written.cause().getMessage());
+						over.handle(false);
+						return;
+					}
+					mark.handle(null);
+				});
+			});
+		});
+	}
+
+	/**
+	 * Stages the day stats, then the week and month unique visitors, of each engine scope.
+	 */
+	private void stage(final Date day, final List<FusedAggregationEngine> engines, final StatsStaging staging,
+			final int index, final Handler<Boolean> staged) {
+		if (index >= engines.size()) {
+			staged.handle(true);
+			return;
+		}
+		final FusedAggregationEngine engine = engines.get(index).setWriteSketches(writeSketches)
+				.setStatsCollection(staging.getCollection());
+		final String key = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY;
+		final Handler<JsonObject> month = result -> {
+			if (failed(day, result)) {
+				staged.handle(false);
+				return;
+			}
+			stage(day, engines, staging, index + 1, staged);
+		};
+		final Handler<JsonObject> week = result -> {
+			if (failed(day, result)) {
+				staged.handle(false);
+				return;
+			}
+			engine.executePeriodVisitors(DailyAggregationProcessing.monthStart(day), key + "_MONTH", month);
+		};
+		engine.execute(result -> {
+			if (failed(day, result)) {
+				staged.handle(false);
+				return;
+			}
+			engine.executePeriodVisitors(DailyAggregationProcessing.weekStart(day), key + "_WEEK", week);
+		});
+	}
+
+	private boolean failed(Date day, JsonObject result) {
+		if (result != null && "ok".equals(result.getString("status"))) {
+			return false;
+		}
+		log.error("[Aggregation][Reconciliation] Error recomputing " + day + " : " + (result != null ? result.getString("message") : "no.result"));
+		return true;
+	}
+
+}
@@ -30,6 +30,8 @@ import io.vertx.core.logging.LoggerFactory;
 import io.vertx.pgclient.PgPool;
 import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Transaction;
 import io.vertx.sqlclient.Tuple;
 
 import com.opendigitaleducation.repository.SyncRepository;
@@ -38,6 +40,7 @@ public class DefaultJobsServiceImpl implements JobsService {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultJobsServiceImpl.class);
 
+    public static final String REPOSITORY_SYNCED_ADDRESS = "stats.repository.synced";
     private static final long NB_MONTHS = 13;
     private final Vertx vertx;
     private final Set<String> allowedTables;
@@ -46,6 +49,9 @@ public class DefaultJobsServiceImpl implements JobsService {
     private final List<String> allowedPartitions;
     private final List<String> allowedEntities;
     private SyncRepository syncRepository;
+    private MongoToPgStatsMigrator mongoStatsMigrator;
+    private int importChunkSize = 1000;
+    private long importTransactionSize = 0L;
 
     public DefaultJobsServiceImpl(Vertx vertx, String platformId, JsonObject allowedValuesConf) {
         this.vertx = vertx;
@@ -88,31 +94,130 @@ public class DefaultJobsServiceImpl implements JobsService {
             handler.handle(Future.failedFuture(new ValidationException("invalid.table.name")));
             return;
         }
-        CsvUtils.readCsv(vertx, importCsvTable, ar -> {
-            if (ar.succeeded()) {
-                final DataTable dataTable = ar.result();
-                final List<String> columnsNames = dataTable.getColumns();
-                 String query =
-                        "INSERT INTO " + tableName + columnsNames.stream().collect(Collectors.joining(",", "(", ")")) +
-                        " VALUES " + IntStream.rangeClosed(1, columnsNames.size()).boxed().map(i -> "$" + i).collect(Collectors.joining(",", "(", ")"));
-                if (importCsvTable.isOnConflictUpdate()) {
-                    query += " ON CONFLICT (id) DO UPDATE SET " + columnsNames.stream()
-                            .filter(c -> !"id".equals(c)).map(c -> c + " = EXCLUDED." + c)
-                            .collect(Collectors.joining(", "));
+        pgPool.getConnection(ar -> {
+            if (ar.failed()) {
+                log.error("Error when get connection to import table : " + tableName, ar.cause());
+                handler.handle(Future.failedFuture(ar.cause()));
+                return;
+            }
+            new CsvImport(ar.result(), importCsvTable, handler).start();
+        });
+    }
+
+    /**
+     * Inserts the csv file chunk by chunk on a single connection, in a single transaction
+     * or committing every importTransactionSize rows if it is set.
+     * Transactions already committed stay when a later one fails : re-running the import then needs onconflict=update.
+     */
+    private class CsvImport {
+
+        private final SqlConnection connection;
+        private final ImportCsvTable importCsvTable;
+        private final Handler<AsyncResult<Void>> handler;
+        private final long start = System.currentTimeMillis();
+        private Transaction transaction;
+        private String query;
+        private long inTransaction = 0L;
+        private long imported = 0L;
+
+        private CsvImport(SqlConnection connection, ImportCsvTable importCsvTable, Handler<AsyncResult<Void>> handler) {
+            this.connection = connection;
+            this.importCsvTable = importCsvTable;
+            this.handler = handler;
+        }
+
+        private void start() {
+            CsvUtils.readCsv(vertx, importCsvTable, importChunkSize, this::insert, ar -> {
+                if (ar.failed()) {
+                    log.error("Error when import csv in table : " + importCsvTable.getTableName(), ar.cause());
+                    end(ar.cause());
+                    return;
                 }
-                pgPool.preparedQuery(query).executeBatch(dataTable.getData(), ar2 -> {
-                    if (ar2.succeeded()) {
-                        handler.handle(Future.succeededFuture());
+                commit(committed -> end(committed.failed() ? committed.cause() : null));
+            });
+        }
+
+        private void insert(DataTable chunk, Handler<AsyncResult<Void>> done) {
+            if (chunk.getColumns() == null || chunk.getData().isEmpty()) {
+                done.handle(Future.succeededFuture());
+                return;
+            }
+            if (query == null) {
+                query = insertQuery(importCsvTable, chunk.getColumns());
+            }
+            if (transaction == null) {
+                connection.begin(ar -> {
+                    if (ar.succeeded()) {
+                        transaction = ar.result();
+                        insert(chunk, done);
                     } else {
-                        log.error("Error when insert data in table : " + tableName, ar2.cause());
-                        handler.handle(Future.failedFuture(ar2.cause()));
+                        done.handle(Future.failedFuture(ar.cause()));
                     }
                 });
+                return;
+            }
+            connection.preparedQuery(query).executeBatch(chunk.getData(), ar -> {
+                if (ar.failed()) {
+                    done.handle(Future.failedFuture(ar.cause()));
+                    return;
+                }
+                inTransaction += chunk.getData().size();
+                if (importTransactionSize > 0 && inTransaction >= importTransactionSize) {
+                    commit(done);
+                } else {
+                    done.handle(Future.succeededFuture());
+                }
+            });
+        }
+
+        private void commit(Handler<AsyncResult<Void>> done) {
+            if (transaction == null) {
+                done.handle(Future.succeededFuture());
+                return;
+            }
+            transaction.commit(ar -> {
+                transaction = null;
+                if (ar.succeeded()) {
+                    imported += inTransaction;
+                    inTransaction = 0L;
+                    log.info("Imported " + imported + " rows in table " + importCsvTable.getTableName() + " (" + rowsPerSecond() + " rows/s)");
+                }
+                done.handle(ar);
+            });
+        }
+
+        private long rowsPerSecond() {
+            return imported * 1000L / Math.max(1L, System.currentTimeMillis() - start);
+        }
+
+        private void end(Throwable cause) {
+            if (transaction != null) {
+                transaction.rollback();
+                transaction = null;
+            }
+            connection.close();
+            if (cause == null) {
+                log.info("End of import in table " + importCsvTable.getTableName() + " : " + imported + " rows in " +
+                        (System.currentTimeMillis() - start) + " ms (" + rowsPerSecond() + " rows/s)");
+                handler.handle(Future.succeededFuture());
             } else {
-                log.error("Error when read csv", ar.cause());
-                handler.handle(Future.failedFuture(ar.cause()));
+                log.error("Error when insert data in table : " + importCsvTable.getTableName() + " after " + imported + " rows", cause);
+                handler.handle(Future.failedFuture(cause));
             }
-        });
+        }
+
+    }
+
+    private static String insertQuery(ImportCsvTable importCsvTable, List<String> columnsNames) {
+        String query =
+                "INSERT INTO " + importCsvTable.getTableName() + columnsNames.stream().collect(Collectors.joining(",", "(", ")")) +
+                " VALUES " + IntStream.rangeClosed(1, columnsNames.size()).boxed().map(i -> "$" + i).collect(Collectors.joining(",", "(", ")"));
+        if (importCsvTable.isOnConflictUpdate()) {
+            query += " ON CONFLICT (id) DO UPDATE SET " + columnsNames.stream()
+                    .filter(c -> !"id".equals(c)).map(c -> c + " = EXCLUDED." + c)
+                    .collect(Collectors.joining(", "));
+        }
+        return query;
     }
 
     @Override
@@ -124,6 +229,15 @@ public class DefaultJobsServiceImpl implements JobsService {
         this.pgPool = pgPool;
     }
 
+    /**
+     * @param chunkSize : Lines parsed and inserted at once.
+     * @param transactionSize : Rows inserted in a transaction, rounded up to whole chunks, 0 for a single transaction.
+     */
+    public void setImportSizes(int chunkSize, long transactionSize) {
+        this.importChunkSize = chunkSize;
+        this.importTransactionSize = transactionSize;
+    }
+
     @Override
     public void exportReferential(String entity, String partition, String partitionValue, Handler<AsyncResult<RowSet<Row>>> handler) {
         if (!allowedEntities.contains(entity)) {
@@ -147,13 +261,41 @@ public class DefaultJobsServiceImpl implements JobsService {
     public void syncRepository(Handler<AsyncResult<Void>> handler) {
         syncRepository.setMasterPgPool(pgPool);
         syncRepository.setSlavePgPool(pgPool);
-        syncRepository.sync(handler);
+        syncRepository.sync(ar -> {
+            if (ar.succeeded()) {
+                vertx.eventBus().publish(REPOSITORY_SYNCED_ADDRESS, new JsonObject());
+            }
+            handler.handle(ar);
+        });
     }
 
     public void setSyncRepository(SyncRepository syncRepository) {
         this.syncRepository = syncRepository;
     }
 
+    public void setMongoStatsMigrator(MongoToPgStatsMigrator mongoStatsMigrator) {
+        this.mongoStatsMigrator = mongoStatsMigrator;
+    }
+
+    @Override
+    public void migrateMongoStats(boolean restart, Handler<AsyncResult<Void>> handler) {
+        if (mongoStatsMigrator == null) {
+            handler.handle(Future.failedFuture(new ValidationException("migration.not.configured")));
+            return;
+        }
+        mongoStatsMigrator.start(restart, handler);
+    }
+
+    @Override
+    public void getMongoStatsMigration(Handler<AsyncResult<JsonObject>> handler) {
+        if (mongoStatsMigrator == null) {
+            handler.handle(Future.failedFuture(new ValidationException("migration.not.configured")));
+            return;
+        }
+        mongoStatsMigrator.status(ar -> handler.handle(ar.succeeded() && ar.result() == null ?
+                Future.succeededFuture(new JsonObject().put("status", "none")) : ar));
+    }
+
     @Override
     public void getAllowedTablesWithLastUpdate(Handler<AsyncResult<List<StatsTable>>> handler) {
         final StringBuilder query = new StringBuilder();
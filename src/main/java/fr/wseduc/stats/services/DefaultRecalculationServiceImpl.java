@@ -0,0 +1,471 @@
+package fr.wseduc.stats.services;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.UUID;
+
+import org.entcore.common.aggregation.processing.AggregationProcessing;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.stats.cron.AggregationLease;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Recalculation jobs persisted in Mongo. The job records the days already processed and, for each implementation,
+ * the days it is over for, so a job interrupted by a restart resumes where it stopped.
+ * A node runs a job once it has claimed it (owner and claim token set by findAndModify) and renews its heartbeat
+ * while it runs : the pending jobs and the running ones whose heartbeat expired are claimed by any node.
+ */
+public class DefaultRecalculationServiceImpl implements RecalculationService {
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultRecalculationServiceImpl.class);
+
+    public static final String COLLECTION = "stats_recalculations";
+    public static final String PENDING = "pending";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String CANCELLED = "cancelled";
+    public static final String LOCKS_COLLECTION = "stats_recalculation_locks";
+    private static final String CREATE_LOCK = "create";
+    private static final String NODE_ID = UUID.randomUUID().toString();
+    private static final long HEARTBEAT_TTL = 60000L;
+    private static final long LOCK_TTL = 30000L;
+    /** Delay before the failed days of a job left pending are retried. */
+    private static final long RETRY_DELAY = 3600000L;
+
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final Set<String> running = new HashSet<>();
+    private final int maxConcurrency;
+    private final long dayDurationTarget;
+    private AggregationLease aggregationLease;
+
+    /**
+     * @param maxConcurrency : Maximum number of days of a job processed at the same time.
+     * @param dayDurationTarget : Processing duration of a day (ms) above which fewer days are processed at the same time.
+     */
+    public DefaultRecalculationServiceImpl(Vertx vertx, int maxConcurrency, long dayDurationTarget) {
+        this.vertx = vertx;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.dayDurationTarget = dayDurationTarget;
+    }
+
+    @Override
+    public void create(long from, long to, Handler<AsyncResult<JsonObject>> handler) {
+        // The overlap check and the save are done holding the creation lock, so two nodes never create overlapping jobs
+        lock(locked -> {
+            if (locked.failed()) {
+                handler.handle(Future.failedFuture(locked.cause()));
+                return;
+            }
+            final String lockToken = locked.result();
+            final Handler<AsyncResult<JsonObject>> unlock = ar -> mongo.delete(LOCKS_COLLECTION,
+                    new JsonObject().put("_id", CREATE_LOCK).put("token", lockToken), deleted -> handler.handle(ar));
+            final JsonObject overlap = new JsonObject()
+                    .put("status", new JsonObject().put("$in", new JsonArray().add(PENDING).add(RUNNING)))
+                    .put("from", new JsonObject().put("$lt", to))
+                    .put("to", new JsonObject().put("$gt", from));
+            mongo.count(COLLECTION, overlap, countMessage -> {
+                if (!"ok".equals(countMessage.body().getString("status"))) {
+                    unlock.handle(Future.failedFuture(countMessage.body().getString("message")));
+                    return;
+                }
+                if (countMessage.body().getInteger("count", 0) > 0) {
+                    unlock.handle(Future.failedFuture(RANGE_OVERLAP));
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                final JsonObject job = new JsonObject()
+                        .put("_id", UUID.randomUUID().toString())
+                        .put("from", from)
+                        .put("to", to)
+                        .put("status", PENDING)
+                        .put("doneDays", new JsonArray())
+                        .put("progress", new JsonObject())
+                        .put("processedDays", 0)
+                        .put("totalDays", countDays(from, to))
+                        .put("created", now)
+                        .put("modified", now);
+                mongo.save(COLLECTION, job, saveMessage -> {
+                    if (!"ok".equals(saveMessage.body().getString("status"))) {
+                        unlock.handle(Future.failedFuture(saveMessage.body().getString("message")));
+                        return;
+                    }
+                    claim(job.getString("_id"), claimed -> {
+                        if (claimed.succeeded() && claimed.result() != null) {
+                            start(claimed.result());
+                        }
+                    });
+                    unlock.handle(Future.succeededFuture(job));
+                });
+            });
+        });
+    }
+
+    /**
+     * Takes the creation lock, expired after LOCK_TTL if its holder dies.
+     * @param handler : Called with the lock token, failed with CREATE_BUSY if another creation holds it.
+     */
+    private void lock(Handler<AsyncResult<String>> handler) {
+        final String token = UUID.randomUUID().toString();
+        final long now = System.currentTimeMillis();
+        final JsonObject command = new JsonObject()
+                .put("findAndModify", LOCKS_COLLECTION)
+                .put("query", new JsonObject().put("_id", CREATE_LOCK).put("expiresAt", new JsonObject().put("$lt", now)))
+                .put("update", new JsonObject().put("$set", new JsonObject()
+                        .put("owner", NODE_ID).put("token", token).put("expiresAt", now + LOCK_TTL)))
+                .put("upsert", true)
+                .put("new", true);
+        mongo.command(command.encode(), message -> {
+            if ("ok".equals(message.body().getString("status"))) {
+                handler.handle(Future.succeededFuture(token));
+            } else {
+                // Duplicate key : the lock is held by another creation
+                handler.handle(Future.failedFuture(CREATE_BUSY));
+            }
+        });
+    }
+
+    /**
+     * Claims the job if it is pending (and its retry delay is over) or running with an expired heartbeat.
+     * @param handler : Called with the claimed job, null if it is not claimable.
+     */
+    private void claim(String id, Handler<AsyncResult<JsonObject>> handler) {
+        final long now = System.currentTimeMillis();
+        final JsonObject query = new JsonObject().put("_id", id).put("$or", new JsonArray()
+                .add(new JsonObject().put("status", PENDING)
+                        .put("retryAt", new JsonObject().put("$not", new JsonObject().put("$gt", now))))
+                .add(new JsonObject().put("status", RUNNING)
+                        .put("heartbeat", new JsonObject().put("$not", new JsonObject().put("$gte", now - HEARTBEAT_TTL)))));
+        final JsonObject command = new JsonObject()
+                .put("findAndModify", COLLECTION)
+                .put("query", query)
+                .put("update", new JsonObject().put("$set", new JsonObject()
+                        .put("status", RUNNING)
+                        .put("owner", NODE_ID)
+                        .put("claim", UUID.randomUUID().toString())
+                        .put("heartbeat", now)
+                        .put("modified", now)))
+                .put("new", true);
+        mongo.command(command.encode(), message -> {
+            final JsonObject result = message.body().getJsonObject("result");
+            if ("ok".equals(message.body().getString("status")) && result != null) {
+                handler.handle(Future.succeededFuture(result.getJsonObject("value")));
+            } else {
+                handler.handle(Future.failedFuture(message.body().getString("message")));
+            }
+        });
+    }
+
+    @Override
+    public void get(String id, Handler<AsyncResult<JsonObject>> handler) {
+        mongo.findOne(COLLECTION, new JsonObject().put("_id", id), message -> {
+            final JsonObject job = message.body().getJsonObject("result");
+            if (!"ok".equals(message.body().getString("status"))) {
+                handler.handle(Future.failedFuture(message.body().getString("message")));
+            } else if (job == null) {
+                handler.handle(Future.failedFuture("recalculation.not.found"));
+            } else {
+                handler.handle(Future.succeededFuture(job));
+            }
+        });
+    }
+
+    @Override
+    public void list(Handler<AsyncResult<JsonArray>> handler) {
+        mongo.find(COLLECTION, new JsonObject(), new JsonObject().put("created", -1), null, message -> {
+            if ("ok".equals(message.body().getString("status"))) {
+                handler.handle(Future.succeededFuture(message.body().getJsonArray("results", new JsonArray())));
+            } else {
+                handler.handle(Future.failedFuture(message.body().getString("message")));
+            }
+        });
+    }
+
+    @Override
+    public void cancel(String id, Handler<AsyncResult<Void>> handler) {
+        final JsonObject query = new JsonObject().put("_id", id)
+                .put("status", new JsonObject().put("$in", new JsonArray().add(PENDING).add(RUNNING)));
+        update(query, new JsonObject().put("status", CANCELLED), handler);
+    }
+
+    /**
+     * Claims and restarts the unfinished jobs from their last completed day, then looks every HEARTBEAT_TTL
+     * for the jobs of the dead nodes and the pending ones to take over.
+     */
+    @Override
+    public void resume(Handler<AsyncResult<Integer>> handler) {
+        resumeClaimable(handler);
+        vertx.setPeriodic(HEARTBEAT_TTL, t -> resumeClaimable(ar -> {
+            if (ar.failed()) {
+                log.error("[Aggregation][Recalculate] Error resuming jobs : " + ar.cause().getMessage());
+            }
+        }));
+    }
+
+    private void resumeClaimable(Handler<AsyncResult<Integer>> handler) {
+        final JsonObject unfinished = new JsonObject()
+                .put("status", new JsonObject().put("$in", new JsonArray().add(PENDING).add(RUNNING)));
+        mongo.find(COLLECTION, unfinished, new JsonObject().put("created", 1), null, message -> {
+            if (!"ok".equals(message.body().getString("status"))) {
+                handler.handle(Future.failedFuture(message.body().getString("message")));
+                return;
+            }
+            final JsonArray jobs = message.body().getJsonArray("results", new JsonArray());
+            for (Object o : jobs) {
+                if (!(o instanceof JsonObject)) {
+                    continue;
+                }
+                final String id = ((JsonObject) o).getString("_id");
+                synchronized (running) {
+                    if (running.contains(id)) {
+                        continue;
+                    }
+                }
+                claim(id, claimed -> {
+                    if (claimed.succeeded() && claimed.result() != null) {
+                        log.info("[Aggregation][Recalculate] Resuming job " + id + ", " +
+                                claimed.result().getInteger("processedDays", 0) + " days already processed");
+                        start(claimed.result());
+                    }
+                });
+            }
+            handler.handle(Future.succeededFuture(jobs.size()));
+        });
+    }
+
+    /**
+     * Runs a job claimed by this node.
+     */
+    private void start(JsonObject job) {
+        final String id = job.getString("_id");
+        synchronized (running) {
+            if (!running.add(id)) {
+                return;
+            }
+        }
+        log.info("[Aggregation][Recalculate] Starting job " + id + " (from " + new Date(job.getLong("from")) +
+                " / to " + new Date(job.getLong("to")) + ")");
+        final JsonArray doneDays = job.getJsonArray("doneDays", new JsonArray());
+        final List<Long> days = new ArrayList<>();
+        for (long day = job.getLong("from"); day < job.getLong("to"); day = nextDay(day)) {
+            if (!doneDays.contains(day)) {
+                days.add(day);
+            }
+        }
+        new Run(job, days).pump();
+    }
+
+    private void stop(String id) {
+        synchronized (running) {
+            running.remove(id);
+        }
+    }
+
+    /**
+     * Days of a job processed concurrently, each one with its own AggregationProcessing instances.
+     * The number of days in flight follows the processing duration of the days (the implementations run, the wait
+     * for the aggregation lease excluded) : halved when it exceeds the target, increased by one while it stays
+     * under half of it, the days slowing down as the database gets loaded.
+     */
+    private final class Run {
+        private final String id;
+        private final JsonObject job;
+        private final JsonObject owned;
+        private final long heartbeat;
+        private final List<Long> days;
+        private int next = 0;
+        private int inFlight = 0;
+        private int window = 1;
+        private double dayDuration = -1.0;
+        private boolean stopped = false;
+        private int failedDays = 0;
+
+        private Run(JsonObject job, List<Long> days) {
+            this.id = job.getString("_id");
+            this.job = job;
+            this.owned = new JsonObject().put("_id", id).put("claim", job.getString("claim"));
+            this.days = days;
+            this.heartbeat = vertx.setPeriodic(HEARTBEAT_TTL / 3, t -> mongo.update(COLLECTION, owned,
+                    new JsonObject().put("$set", new JsonObject().put("heartbeat", System.currentTimeMillis())), renewed -> {
+                        if (!"ok".equals(renewed.body().getString("status"))) {
+                            log.error("[Aggregation][Recalculate] Error renewing the heartbeat of job " + id + " : " +
+                                    renewed.body().getString("message"));
+                        }
+                    }));
+        }
+
+        private void end() {
+            vertx.cancelTimer(heartbeat);
+            stop(id);
+        }
+
+        private void pump() {
+            while (!stopped && inFlight < window && next < days.size()) {
+                final long day = days.get(next++);
+                inFlight++;
+                processDay(day, v -> {
+                    inFlight--;
+                    get(id, ar -> {
+                        if (ar.failed() || !RUNNING.equals(ar.result().getString("status")) ||
+                                !owned.getString("claim").equals(ar.result().getString("claim"))) {
+                            // cancelled, or taken over by another node after a missed heartbeat
+                            stopped = true;
+                        }
+                        pump();
+                    });
+                });
+            }
+            if (inFlight > 0) {
+                return;
+            }
+            if (stopped || next < days.size()) {
+                log.info("[Aggregation][Recalculate] Job " + id + " stopped");
+                end();
+                return;
+            }
+            if (failedDays > 0) {
+                // The failed days are not done : they are processed again when the job is resumed, after RETRY_DELAY
+                update(owned.copy(), new JsonObject().put("status", PENDING)
+                        .put("retryAt", System.currentTimeMillis() + RETRY_DELAY), pending -> {
+                    log.warn("[Aggregation][Recalculate] Job " + id + " over with " + failedDays + " failed days, left pending");
+                    end();
+                });
+                return;
+            }
+            update(owned.copy(), new JsonObject().put("status", DONE), done -> {
+                log.info("[Aggregation][Recalculate] Job " + id + " over");
+                end();
+            });
+        }
+
+        private void observe(long duration) {
+            dayDuration = dayDuration < 0 ? duration : 0.8 * dayDuration + 0.2 * duration;
+            if (dayDuration > dayDurationTarget && window > 1) {
+                window = Math.max(1, window / 2);
+                log.info("[Aggregation][Recalculate] Days processed in " + (long) dayDuration + " ms, job " + id +
+                        " throttled to " + window + " days");
+            } else if (dayDuration < dayDurationTarget / 2.0 && window < maxConcurrency) {
+                window++;
+            }
+        }
+
+        private void processDay(final long day, final Handler<Void> next) {
+            final List<AggregationProcessing> implementations = new ArrayList<>();
+            for (AggregationProcessing processor : ServiceLoader.load(AggregationProcessing.class)) {
+                implementations.add(processor);
+            }
+            final boolean[] success = {true};
+            final Handler<Handler<Boolean>> task = release -> {
+                log.info("[Aggregation][Processing] Date marker set at : {" + new Date(day) + "}");
+                final long start = System.currentTimeMillis();
+                processImplementations(day, implementations, 0, success, v -> {
+                    observe(System.currentTimeMillis() - start);
+                    release.handle(success[0]);
+                    if (!success[0]) {
+                        failedDays++;
+                        next.handle(null);
+                        return;
+                    }
+                    saveProgress(new JsonObject()
+                            .put("$addToSet", new JsonObject().put("doneDays", day))
+                            .put("$inc", new JsonObject().put("processedDays", 1))
+                            .put("$set", new JsonObject().put("modified", System.currentTimeMillis())), next);
+                });
+            };
+            if (aggregationLease != null) {
+                // waits for the scheduled aggregation of the same day, if any, to be over
+                aggregationLease.execute(new Date(day), false, task);
+            } else {
+                task.handle(done -> {});
+            }
+        }
+
+        private void processImplementations(final long day, final List<AggregationProcessing> implementations,
+                final int index, final boolean[] success, final Handler<Void> next) {
+            if (index >= implementations.size()) {
+                next.handle(null);
+                return;
+            }
+            final AggregationProcessing processor = implementations.get(index);
+            final String name = processor.getClass().getName();
+            final String progressKey = "progress." + name.replace('.', '_');
+            final JsonArray doneByImplementation = job.getJsonObject("progress", new JsonObject())
+                    .getJsonArray(name.replace('.', '_'), new JsonArray());
+            if (doneByImplementation.contains(day)) {
+                processImplementations(day, implementations, index + 1, success, next);
+                return;
+            }
+            final Date start = new Date();
+            log.info("[Aggregation][Processing] Launching implementation : " + name);
+            processor.process(new Date(day), result -> {
+                log.info("[Aggregation][Processing] Over, took [" + (new Date().getTime() - start.getTime()) + "] ms");
+                final JsonObject set = new JsonObject().put("modified", System.currentTimeMillis());
+                final JsonObject update = new JsonObject().put("$set", set);
+                if (result == null || "error".equals(result.getString("status"))) {
+                    success[0] = false;
+                    set.put("lastError", new JsonObject().put("day", day).put("implementation", name)
+                            .put("message", result != null ? result.getString("message") : "no.result"));
+                } else {
+                    update.put("$addToSet", new JsonObject().put(progressKey, day));
+                }
+                saveProgress(update, v -> processImplementations(day, implementations, index + 1, success, next));
+            });
+        }
+
+        private void saveProgress(JsonObject update, Handler<Void> next) {
+            mongo.update(COLLECTION, owned, update, message -> {
+                if (!"ok".equals(message.body().getString("status"))) {
+                    log.error("[Aggregation][Recalculate] Error saving progress of job " + id + " : " +
+                            message.body().getString("message"));
+                    stopped = true;
+                }
+                next.handle(null);
+            });
+        }
+    }
+
+    private void update(JsonObject query, JsonObject set, Handler<AsyncResult<Void>> handler) {
+        set.put("modified", System.currentTimeMillis());
+        mongo.update(COLLECTION, query, new JsonObject().put("$set", set), (Message<JsonObject> message) -> {
+            if ("ok".equals(message.body().getString("status"))) {
+                handler.handle(Future.succeededFuture());
+            } else {
+                handler.handle(Future.failedFuture(message.body().getString("message")));
+            }
+        });
+    }
+
+    public void setAggregationLease(AggregationLease aggregationLease) {
+        this.aggregationLease = aggregationLease;
+    }
+
+    private static long nextDay(long day) {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(day);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        return cal.getTimeInMillis();
+    }
+
+    private static int countDays(long from, long to) {
+        int days = 0;
+        for (long day = from; day < to; day = nextDay(day)) {
+            days++;
+        }
+        return days;
+    }
+
+}
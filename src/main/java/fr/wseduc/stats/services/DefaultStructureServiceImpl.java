@@ -0,0 +1,264 @@
+package fr.wseduc.stats.services;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.entcore.common.neo4j.Neo4j;
+import org.entcore.common.neo4j.Neo4jResult;
+
+import fr.wseduc.webutils.Either;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class DefaultStructureServiceImpl implements StructureService {
+    private final Neo4j neo4j = Neo4j.getInstance();
+    private StructureHierarchy structureHierarchy;
+    private StructureMetrics structureMetrics;
+
+    @Override
+    public void getStructuresForUser(String userId, boolean hierarchical,
+            Handler<Either<String, JsonArray>> handler) {
+        if (isHierarchyLoaded()) {
+            getUserMembership(userId, either -> {
+                if (either.isLeft()) {
+                    handler.handle(new Either.Left<>(either.left().getValue()));
+                    return;
+                }
+                if (!either.right().getValue().known) {
+                    queryStructuresForUser(userId, hierarchical, handler);
+                    return;
+                }
+                final JsonArray result = new JsonArray();
+                for (String structureId : either.right().getValue().structureIds) {
+                    final JsonArray parents = new JsonArray();
+                    for (String parentId : structureHierarchy.getParentIds(structureId)) {
+                        parents.add(new JsonObject().put("id", parentId).put("name", structureHierarchy.getStructureName(parentId)));
+                    }
+                    result.add(new JsonObject().put("id", structureId)
+                            .put("name", structureHierarchy.getStructureName(structureId)).put("parents", parents));
+                }
+                handler.handle(new Either.Right<>(sortByName(result)));
+            });
+            return;
+        }
+        queryStructuresForUser(userId, hierarchical, handler);
+    }
+
+    private void queryStructuresForUser(String userId, boolean hierarchical,
+            Handler<Either<String, JsonArray>> handler) {
+//        final String structPart = hierarchical ? "(s:Structure)<-[:HAS_ATTACHMENT*0..]-(s2:Structure)"
+//                : "(s2:Structure)";
+//        final String query = "match (u:User)-[IN]->(pg:ProfileGroup)-[DEPENDS]-> " + structPart
+//                + " where u.id = {userId} "
+//                + " return distinct s2.id as id, s2.name as name ";
+//        final JsonObject params = new JsonObject().put("userId", userId);
+//        neo4j.execute(query, params, Neo4jResult.validResultHandler(handler));
+
+        final String structPart = hierarchical ? "(s:Structure)<-[:HAS_ATTACHMENT*0..]-(s2:Structure)"
+                : "(s2:Structure)";
+        final String query = "MATCH (u:User {id: {userId}})-[:IN]->(pg)-[:DEPENDS]->(s:Structure)" +
+                " WHERE (pg:ProfileGroup OR pg:FunctionGroup) " +
+                " OPTIONAL MATCH (s)-[r:HAS_ATTACHMENT]->(ps:Structure)" +
+                " WITH s, COLLECT({id: ps.id, name: ps.name}) as parents" +
+                " return distinct s.id as id, s.name as name, parents as parents " +
+                " ORDER BY name ";
+        final JsonObject params = new JsonObject().put("userId", userId);
+        neo4j.execute(query, params, Neo4jResult.validResultHandler(handler));
+    }
+
+    @Override
+    public void getClassesForUser(String userId, Handler<Either<String, JsonArray>> handler) {
+        final String query = "match (u:User {id: {userId}})-[:IN]->(pg:ProfileGroup)-[:DEPENDS]->(c:Class)-[:BELONGS]->(s:Structure) "
+                + " where (pg:ProfileGroup OR pg:FunctionGroup) "
+                + " return distinct c.id as id, c.name as name " +
+                " ORDER BY name ";
+        final JsonObject params = new JsonObject().put("userId", userId);
+        neo4j.execute(query, params, Neo4jResult.validResultHandler(handler));
+    }
+
+    @Override
+    public void getStructuresHierarchyAndClasses(String userId, Handler<Either<String, JsonArray>> handler) {
+        if (isHierarchyLoaded()) {
+            getUserMembership(userId, either -> {
+                if (either.isLeft()) {
+                    handler.handle(new Either.Left<>(either.left().getValue()));
+                    return;
+                }
+                final Membership membership = either.right().getValue();
+                if (!membership.known) {
+                    queryStructuresHierarchyAndClasses(userId, handler);
+                    return;
+                }
+                final Set<String> userStructures = new HashSet<>(membership.structureIds);
+                final JsonArray roots = new JsonArray();
+                final JsonArray notRoots = new JsonArray();
+                for (String structureId : membership.structureIds) {
+                    final JsonArray parents = new JsonArray();
+                    for (String parentId : structureHierarchy.getParentIds(structureId)) {
+                        if (userStructures.contains(parentId)) {
+                            parents.add(new JsonObject().put("id", parentId).put("name", structureHierarchy.getStructureName(parentId)));
+                        }
+                    }
+                    final JsonArray classes = new JsonArray();
+                    for (String classId : membership.classIds) {
+                        if (structureId.equals(structureHierarchy.getClassStructure(classId))) {
+                            classes.add(new JsonObject().put("id", classId).put("name", structureHierarchy.getClassName(classId)));
+                        }
+                    }
+                    final boolean notRoot = !parents.isEmpty();
+                    final JsonObject structure = new JsonObject()
+                            .put("id", structureId)
+                            .put("name", structureHierarchy.getStructureName(structureId))
+                            .put("parents", notRoot ? parents : null)
+                            .put("classes", classes.isEmpty() ? null : classes)
+                            .put("notroot", notRoot);
+                    (notRoot ? notRoots : roots).add(structure);
+                }
+                handler.handle(new Either.Right<>(sortByName(roots).addAll(sortByName(notRoots))));
+            });
+            return;
+        }
+        queryStructuresHierarchyAndClasses(userId, handler);
+    }
+
+    private void queryStructuresHierarchyAndClasses(String userId, Handler<Either<String, JsonArray>> handler) {
+        final String query =
+                "MATCH (:User {id: {userId}})-[:IN]->(pg)-[:DEPENDS]->(s:Structure)" +
+                " WHERE (pg:ProfileGroup OR pg:FunctionGroup) " +
+                " OPTIONAL MATCH (s)-[:HAS_ATTACHMENT]->(ps:Structure)<-[:DEPENDS]-(g)<-[:IN]-(:User {id: {userId}})" +
+                " WHERE (g:ProfileGroup OR g:FunctionGroup) " +
+                " OPTIONAL MATCH (:User {id: {userId}})-[:IN]->(:ProfileGroup)-[:DEPENDS]->(c:Class)-[:BELONGS]->(s)" +
+                " WITH s, COLLECT(distinct {id: ps.id, name: ps.name}) as parents, COLLECT(distinct {id: c.id, name: c.name}) as classes" +
+                " WITH DISTINCT s, CASE WHEN any(p in parents where p <> {id: null, name: null}) THEN parents END as parents," +
+                " CASE WHEN any(c in classes where c <> {id: null, name: null}) THEN classes END as classes " +
+                " RETURN DISTINCT s.id as id, s.name as name, parents, classes, length(coalesce(parents,[])) > 0 as notroot " +
+                " ORDER BY notroot, name ";
+
+        final JsonObject params = new JsonObject().put("userId", userId);
+        neo4j.execute(query, params, Neo4jResult.validResultHandler(handler));
+    }
+
+    @Override
+    public void getSubStructures(String structureId, Handler<Either<String, JsonObject>> handler) {
+        if (isHierarchyLoaded() && structureHierarchy.containsStructure(structureId)) {
+            handler.handle(new Either.Right<>(new JsonObject()
+                    .put("ids", new JsonArray(structureHierarchy.getSubStructureIds(structureId)))));
+            return;
+        }
+        final String query =
+                "MATCH (:Structure {id: {structureId}})<-[:HAS_ATTACHMENT*0..]-(s:Structure) " +
+                "RETURN COLLECT(DISTINCT s.id) as ids ";
+        final JsonObject params = new JsonObject().put("structureId", structureId);
+        neo4j.execute(query, params, Neo4jResult.validUniqueResultHandler(handler));
+    }
+
+    @Override
+    public void getClassesForStructure(String structureId, Handler<Either<String, JsonObject>> handler) {
+        if (isHierarchyLoaded() && structureHierarchy.containsStructure(structureId)) {
+            handler.handle(new Either.Right<>(new JsonObject()
+                    .put("ids", new JsonArray(structureHierarchy.getClassIds(structureId)))));
+            return;
+        }
+        final String query =
+                "MATCH (c:Class)-[:BELONGS]->(s:Structure {id: {structureId}}) " +
+                        "RETURN COLLECT(DISTINCT c.id) as ids ";
+        final JsonObject params = new JsonObject().put("structureId", structureId);
+        neo4j.execute(query, params, Neo4jResult.validUniqueResultHandler(handler));
+    }
+
+    @Override
+    public void getUserClassesForStructure(String structureId, String userId, Handler<Either<String, JsonObject>> handler) {
+        final String query =
+                "MATCH (u:User {id: {userId}})-[:IN]->(:ProfileGroup)-[:DEPENDS]->(c:Class)-[:BELONGS]->(s:Structure {id: {structureId}}) " +
+                        "RETURN COLLECT(DISTINCT c.id) as ids ";
+        final JsonObject params = new JsonObject().put("structureId", structureId).put("userId", userId);
+        neo4j.execute(query, params, Neo4jResult.validUniqueResultHandler(handler));
+    }
+    
+    @Override
+    public void getStructureMetrics(String structureId, Handler<Either<String, JsonObject>> results){
+        if (structureMetrics != null && structureMetrics.isComputed()) {
+            results.handle(new Either.Right<>(structureMetrics.getMetrics(structureId)));
+            return;
+        }
+
+        String query = "MATCH (s:Structure) " +
+                        "WHERE s.id = {structureId} " +
+			"MATCH (u:User)-[:IN]->(pg:ProfileGroup)-[:DEPENDS]->(s)," +
+			"(pg)-[:HAS_PROFILE]->(p:Profile) " +
+			"WITH p, collect(distinct u) as allUsers " +
+			"WITH p, FILTER(u IN allUsers WHERE u.activationCode IS NULL) as active, " +
+			"FILTER(u IN allUsers WHERE NOT(u.activationCode IS NULL)) as inactive " +
+			"WITH p, length (active) as active, length(inactive) as inactive " +
+			"RETURN collect({profile: p.name, active: active, inactive: inactive}) as metrics";
+
+	    JsonObject params = new JsonObject().put("structureId", structureId);
+
+	    neo4j.execute(query.toString(), params,  Neo4jResult.validUniqueResultHandler(results));
+
+    }
+
+    private boolean isHierarchyLoaded() {
+        return structureHierarchy != null && structureHierarchy.isLoaded();
+    }
+
+    /**
+     * Only the user membership is read from Neo4j, names and relations come from the in-memory hierarchy.
+     * The membership is flagged as not known if a structure or class was created after the last snapshot,
+     * callers then fall back to the Neo4j queries.
+     */
+    private void getUserMembership(String userId, Handler<Either<String, Membership>> handler) {
+        final String query =
+                "MATCH (u:User {id: {userId}})-[:IN]->(pg)-[:DEPENDS]->(s:Structure) " +
+                "WHERE (pg:ProfileGroup OR pg:FunctionGroup) " +
+                "WITH u, COLLECT(DISTINCT s.id) as structureIds " +
+                "OPTIONAL MATCH (u)-[:IN]->(:ProfileGroup)-[:DEPENDS]->(c:Class) " +
+                "RETURN structureIds, COLLECT(DISTINCT c.id) as classIds ";
+        final JsonObject params = new JsonObject().put("userId", userId);
+        neo4j.execute(query, params, Neo4jResult.validUniqueResultHandler(either -> {
+            if (either.isLeft()) {
+                handler.handle(new Either.Left<>(either.left().getValue()));
+                return;
+            }
+            final Membership membership = new Membership();
+            for (Object id : either.right().getValue().getJsonArray("structureIds", new JsonArray())) {
+                membership.structureIds.add((String) id);
+                membership.known &= structureHierarchy.containsStructure((String) id);
+            }
+            for (Object id : either.right().getValue().getJsonArray("classIds", new JsonArray())) {
+                membership.classIds.add((String) id);
+                membership.known &= structureHierarchy.getClassStructure((String) id) != null;
+            }
+            handler.handle(new Either.Right<>(membership));
+        }));
+    }
+
+    private static JsonArray sortByName(JsonArray structures) {
+        final List<JsonObject> list = new ArrayList<>();
+        structures.forEach(o -> list.add((JsonObject) o));
+        list.sort((a, b) -> {
+            final String n1 = a.getString("name"), n2 = b.getString("name");
+            if (n1 == null) return (n2 == null) ? 0 : 1;
+            return (n2 == null) ? -1 : n1.compareTo(n2);
+        });
+        return new JsonArray(new ArrayList<>(list));
+    }
+
+    public void setStructureHierarchy(StructureHierarchy structureHierarchy) {
+        this.structureHierarchy = structureHierarchy;
+    }
+
+    public void setStructureMetrics(StructureMetrics structureMetrics) {
+        this.structureMetrics = structureMetrics;
+    }
+
+    private static final class Membership {
+        private final List<String> structureIds = new ArrayList<>();
+        private final List<String> classIds = new ArrayList<>();
+        private boolean known = true;
+    }
+
+}
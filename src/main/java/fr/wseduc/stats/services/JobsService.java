@@ -7,6 +7,7 @@ import fr.wseduc.stats.utils.ImportCsvTable;
 import fr.wseduc.stats.utils.StatsTable;
 import io.vertx.core.AsyncResult;
 import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
 import io.vertx.sqlclient.Row;
 import io.vertx.sqlclient.RowSet;
 
@@ -22,4 +23,8 @@ public interface JobsService {
 
     void getAllowedTablesWithLastUpdate(Handler<AsyncResult<List<StatsTable>>> handler);
 
+    void migrateMongoStats(boolean restart, Handler<AsyncResult<Void>> handler);
+
+    void getMongoStatsMigration(Handler<AsyncResult<JsonObject>> handler);
+
 }
@@ -0,0 +1,200 @@
+package fr.wseduc.stats.services;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Rolling 1 and 5 minutes counts of active users and logins per structure, class and for the whole platform,
+ * maintained in memory from the traces and pushed as Server-Sent Events.
+ * Active users are kept as last seen dates, logins in a ring of 10 seconds buckets.
+ * A snapshot is encoded once per tick and per watched scope, whatever the number of viewers.
+ * Confined to the verticle event loop : traces, subscriptions and ticks must all run on it.
+ */
+public class LiveActivityGauge {
+
+    public static final String PLATFORM = "platform";
+
+    private static final long BUCKET = 10000L;
+    private static final int BUCKETS = 30;
+    private static final long ONE_MINUTE = 60000L;
+    private static final long FIVE_MINUTES = BUCKET * BUCKETS;
+
+    private final Vertx vertx;
+    private final Map<String, Scope> scopes = new HashMap<>();
+    private final Map<String, Set<HttpServerResponse>> viewers = new HashMap<>();
+    private long timerId = -1L;
+
+    private static final class Scope {
+        private final Map<String, Long> lastSeen = new HashMap<>();
+        private final long[] logins = new long[BUCKETS];
+        private final long[] buckets = new long[BUCKETS];
+
+        private void seen(String userId, long now) {
+            if (userId != null) {
+                lastSeen.put(userId, now);
+            }
+        }
+
+        private void login(long now) {
+            final long bucket = now / BUCKET;
+            final int i = (int) (bucket % BUCKETS);
+            if (buckets[i] != bucket) {
+                buckets[i] = bucket;
+                logins[i] = 0L;
+            }
+            logins[i]++;
+        }
+
+        private long logins(long now, long window) {
+            final long from = now / BUCKET - window / BUCKET;
+            long count = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (buckets[i] > from) {
+                    count += logins[i];
+                }
+            }
+            return count;
+        }
+
+        private long activeUsers(long now, long window) {
+            long count = 0L;
+            for (long seen : lastSeen.values()) {
+                if (seen > now - window) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return true if the scope has no activity in the last 5 minutes.
+         */
+        private boolean prune(long now) {
+            lastSeen.values().removeIf(seen -> seen <= now - FIVE_MINUTES);
+            return lastSeen.isEmpty() && logins(now, FIVE_MINUTES) == 0L;
+        }
+    }
+
+    public LiveActivityGauge(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    public void start() {
+        timerId = vertx.setPeriodic(BUCKET, t -> tick());
+    }
+
+    public void stop() {
+        if (timerId >= 0) {
+            vertx.cancelTimer(timerId);
+        }
+        for (Set<HttpServerResponse> responses : viewers.values()) {
+            for (HttpServerResponse response : responses) {
+                response.end();
+            }
+        }
+        viewers.clear();
+    }
+
+    public void add(JsonObject trace) {
+        if (trace == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final String userId = trace.getString(TRACE_FIELD_USER);
+        final boolean login = TRACE_TYPE_CONNEXION.equals(trace.getString(TRACE_FIELD_TYPE));
+        for (String scopeKey : scopeKeys(trace)) {
+            final Scope scope = scopes.computeIfAbsent(scopeKey, k -> new Scope());
+            scope.seen(userId, now);
+            if (login) {
+                scope.login(now);
+            }
+        }
+    }
+
+    private static List<String> scopeKeys(JsonObject trace) {
+        final List<String> keys = new ArrayList<>();
+        keys.add(PLATFORM);
+        addScopeKeys(keys, "structure", trace.getValue(TRACE_FIELD_STRUCTURES));
+        addScopeKeys(keys, "class", trace.getValue(TRACE_FIELD_CLASSES));
+        return keys;
+    }
+
+    private static void addScopeKeys(List<String> keys, String level, Object ids) {
+        if (ids instanceof JsonArray) {
+            for (Object id : (JsonArray) ids) {
+                if (id != null) {
+                    keys.add(scopeKey(level, id.toString()));
+                }
+            }
+        } else if (ids instanceof String) {
+            keys.add(scopeKey(level, (String) ids));
+        }
+    }
+
+    private static String scopeKey(String level, String entity) {
+        return PLATFORM.equals(level) ? PLATFORM : level + ":" + entity;
+    }
+
+    /**
+     * Streams the gauge of the scope to the client until it disconnects.
+     * @param level : structure, class or platform.
+     */
+    public void subscribe(String level, String entity, HttpServerRequest request) {
+        final String scopeKey = scopeKey(level, entity);
+        final HttpServerResponse response = request.response();
+        response.setChunked(true)
+                .putHeader("Content-Type", "text/event-stream")
+                .putHeader("Cache-Control", "no-cache")
+                .putHeader("Connection", "keep-alive");
+        final Set<HttpServerResponse> responses = viewers.computeIfAbsent(scopeKey, k -> new HashSet<>());
+        responses.add(response);
+        response.closeHandler(v -> {
+            responses.remove(response);
+            if (responses.isEmpty()) {
+                viewers.remove(scopeKey);
+            }
+        });
+        response.write("retry: " + BUCKET + "\n" + event(scopeKey, System.currentTimeMillis()));
+    }
+
+    private String event(String scopeKey, long now) {
+        final Scope scope = scopes.get(scopeKey);
+        final JsonObject gauge = new JsonObject().put("date", now);
+        gauge.put("activeUsers1m", scope != null ? scope.activeUsers(now, ONE_MINUTE) : 0L)
+                .put("activeUsers5m", scope != null ? scope.activeUsers(now, FIVE_MINUTES) : 0L)
+                .put("logins1m", scope != null ? scope.logins(now, ONE_MINUTE) : 0L)
+                .put("logins5m", scope != null ? scope.logins(now, FIVE_MINUTES) : 0L);
+        return "data: " + gauge.encode() + "\n\n";
+    }
+
+    private void tick() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Set<HttpServerResponse>> watched : viewers.entrySet()) {
+            final String event = event(watched.getKey(), now);
+            for (HttpServerResponse response : watched.getValue()) {
+                if (!response.writeQueueFull()) {
+                    response.write(event);
+                }
+            }
+        }
+        for (Iterator<Scope> it = scopes.values().iterator(); it.hasNext(); ) {
+            if (it.next().prune(now)) {
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+package fr.wseduc.stats.services;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.entcore.common.aggregation.AggregationTools;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.stats.aggregation.engine.AggregationRunHistory;
+import fr.wseduc.stats.aggregation.engine.EventsHighWaterMark;
+import fr.wseduc.stats.aggregation.engine.IndicatorScheduler;
+import fr.wseduc.stats.aggregation.engine.UniqueVisitorSketches;
+
+/**
+ * Declares the indexes the stats reads and the aggregation reads rely on, reports the missing ones at startup
+ * (and creates them if enabled), and explains a sample of the queries to report the ones running as collection scans.
+ */
+public class MongoIndexManager {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoIndexManager.class);
+
+    private static final int MAX_SCANS = 100;
+    private static final String STATS_NATURAL_KEY = "stats_natural_key";
+
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final double sampleRate;
+    private final boolean create;
+    private final JsonArray declared = new JsonArray();
+    private final Map<String, JsonObject> collectionScans = new LinkedHashMap<>();
+
+    /**
+     * @param sampleRate : Share of the sampled queries explained, between 0 and 1.
+     * @param create : Creates the missing indexes, otherwise they are only reported
+     * (building an index on the large traces collection is left to the administrators).
+     */
+    public MongoIndexManager(double sampleRate, boolean create) {
+        this.sampleRate = sampleRate;
+        this.create = create;
+        final String groupedBy = STATS_FIELD_GROUPBY;
+        // Stats lists : global or grouped documents of a structure or class, sorted by date
+        declare(COLLECTIONS.stats.name(), new JsonObject().put(groupedBy, 1).put(STATS_FIELD_DATE, -1));
+        declare(COLLECTIONS.stats.name(), new JsonObject().put(groupedBy, 1).put(TRACE_FIELD_STRUCTURES + "_id", 1).put(STATS_FIELD_DATE, -1));
+        declare(COLLECTIONS.stats.name(), new JsonObject().put(groupedBy, 1).put(TRACE_FIELD_CLASSES + "_id", 1).put(STATS_FIELD_DATE, -1));
+        // Day cleanup and staged publication
+        declare(COLLECTIONS.stats.name(), new JsonObject().put(STATS_FIELD_DATE, 1));
+        // Natural key of the documents upserted by the indicators (ObjectId _id), the staged ones have it as _id :
+        // concurrent indicators upserting the same group can not insert it twice
+        declare(COLLECTIONS.stats.name(), new JsonObject().put(STATS_FIELD_DATE, 1).put(groupedBy, 1)
+                .put(TRACE_FIELD_STRUCTURES + "_id", 1).put(TRACE_FIELD_CLASSES + "_id", 1)
+                .put(TRACE_FIELD_PROFILE + "_id", 1).put(TRACE_FIELD_MODULE + "_id", 1),
+                new JsonObject().put("name", STATS_NATURAL_KEY).put("unique", true)
+                .put("partialFilterExpression", new JsonObject().put("_id", new JsonObject().put("$type", "objectId"))));
+        // Aggregation reads : traces of a day by type, structures of the day, late traces
+        declare(COLLECTIONS.events.name(), new JsonObject().put(TRACE_FIELD_TYPE, 1).put(TRACE_FIELD_DATE, 1));
+        declare(COLLECTIONS.events.name(), new JsonObject().put(TRACE_FIELD_DATE, 1));
+        declare(UniqueVisitorSketches.SKETCHES_COLLECTION, new JsonObject().put(groupedBy, 1).put(STATS_FIELD_DATE, 1));
+        declare(AggregationRunHistory.RUNS_COLLECTION, new JsonObject().put("started", -1));
+        declare(EventsHighWaterMark.COLLECTION, new JsonObject().put("modified", -1));
+    }
+
+    private void declare(String collection, JsonObject key) {
+        declare(collection, key, new JsonObject());
+    }
+
+    /**
+     * @param options : Index options (unique, partialFilterExpression…), name overrides the one derived from the key.
+     */
+    private void declare(String collection, JsonObject key, JsonObject options) {
+        final List<String> name = new ArrayList<>();
+        for (String field : key.fieldNames()) {
+            name.add(field.replace('.', '_') + "_" + key.getValue(field));
+        }
+        declared.add(new JsonObject()
+                .put("collection", collection)
+                .put("key", key)
+                .put("name", options.getString("name", String.join("_", name)))
+                .put("options", options.copy())
+                .put("status", "unknown"));
+    }
+
+    /**
+     * Reports or creates the missing declared indexes, then checks that the aggregation reads of the previous day use an index.
+     */
+    public void ensureIndexes() {
+        final Map<String, List<JsonObject>> byCollection = new LinkedHashMap<>();
+        for (Object o : declared) {
+            final JsonObject index = (JsonObject) o;
+            byCollection.computeIfAbsent(index.getString("collection"), c -> new ArrayList<>()).add(index);
+        }
+        final int[] remaining = {byCollection.size()};
+        for (Map.Entry<String, List<JsonObject>> entry : byCollection.entrySet()) {
+            ensureIndexes(entry.getKey(), entry.getValue(), v -> {
+                if (--remaining[0] == 0) {
+                    allowConcurrentIndicators();
+                    verifyAggregationReads();
+                }
+            });
+        }
+    }
+
+    private void ensureIndexes(final String collection, final List<JsonObject> indexes, final Handler<Void> next) {
+        mongo.command(new JsonObject().put("listIndexes", collection).encode(), message -> {
+            final JsonObject result = message.body().getJsonObject("result");
+            final JsonArray existing = result != null && result.getJsonObject("cursor") != null ?
+                    result.getJsonObject("cursor").getJsonArray("firstBatch", new JsonArray()) : new JsonArray();
+            final JsonArray missing = new JsonArray();
+            for (JsonObject index : indexes) {
+                boolean present = false;
+                final boolean unique = index.getJsonObject("options").getBoolean("unique", false);
+                for (Object e : existing) {
+                    present |= e instanceof JsonObject && sameKey(((JsonObject) e).getJsonObject("key"), index.getJsonObject("key")) &&
+                            (!unique || ((JsonObject) e).getBoolean("unique", false));
+                }
+                if (present) {
+                    index.put("status", "present");
+                } else {
+                    final JsonObject options = index.getJsonObject("options").copy();
+                    options.remove("name");
+                    missing.add(options.put("key", index.getJsonObject("key"))
+                            .put("name", index.getString("name")).put("background", true));
+                }
+            }
+            if (missing.isEmpty()) {
+                next.handle(null);
+                return;
+            }
+            if (!create) {
+                for (JsonObject index : indexes) {
+                    if (!"present".equals(index.getString("status"))) {
+                        index.put("status", "missing");
+                    }
+                }
+                log.warn("[Indexes] " + missing.size() + " missing indexes on " + collection + " : " + missing.encode());
+                next.handle(null);
+                return;
+            }
+            final JsonObject createIndexes = new JsonObject().put("createIndexes", collection).put("indexes", missing);
+            mongo.command(createIndexes.encode(), created -> {
+                final boolean ok = "ok".equals(created.body().getString("status"));
+                for (JsonObject index : indexes) {
+                    if (!"present".equals(index.getString("status"))) {
+                        index.put("status", ok ? "created" : "error");
+                        if (!ok) {
+                            index.put("message", created.body().getString("message"));
+                        }
+                    }
+                }
+                if (ok) {
+                    log.info("[Indexes] Created " + missing.size() + " indexes on " + collection);
+                } else {
+                    log.error("[Indexes] Error creating indexes on " + collection + " : " + created.body().getString("message"));
+                }
+                next.handle(null);
+            });
+        });
+    }
+
+    /**
+     * The indicators only run concurrently once the natural key of the stats documents is unique.
+     */
+    private void allowConcurrentIndicators() {
+        for (Object o : declared) {
+            final JsonObject index = (JsonObject) o;
+            if (STATS_NATURAL_KEY.equals(index.getString("name"))) {
+                final String status = index.getString("status");
+                IndicatorScheduler.setStatsKeyUnique("present".equals(status) || "created".equals(status));
+            }
+        }
+    }
+
+    private static boolean sameKey(JsonObject a, JsonObject b) {
+        if (a == null || b == null || a.size() != b.size()) {
+            return false;
+        }
+        final List<String> aFields = new ArrayList<>(a.fieldNames());
+        final List<String> bFields = new ArrayList<>(b.fieldNames());
+        for (int i = 0; i < aFields.size(); i++) {
+            final Object aValue = a.getValue(aFields.get(i));
+            final Object bValue = b.getValue(bFields.get(i));
+            if (!aFields.get(i).equals(bFields.get(i)) || !(aValue instanceof Number) || !(bValue instanceof Number) ||
+                    ((Number) aValue).intValue() != ((Number) bValue).intValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void verifyAggregationReads() {
+        final Calendar calendarDay = Calendar.getInstance();
+        calendarDay.add(Calendar.DATE, -1);
+        final long from = AggregationTools.setToMidnight(calendarDay).getTime();
+        calendarDay.add(Calendar.DATE, 1);
+        final long to = AggregationTools.setToMidnight(calendarDay).getTime();
+        final JsonObject dayFilter = new JsonObject()
+                .put(TRACE_FIELD_DATE, new JsonObject().put("$gte", from).put("$lt", to))
+                .put(TRACE_FIELD_TYPE, new JsonObject().put("$in", new JsonArray().add(TRACE_TYPE_CONNEXION).add(TRACE_TYPE_SVC_ACCESS)));
+        explain(COLLECTIONS.events.name(), dayFilter, null);
+    }
+
+    /**
+     * Explains the query with a probability of the sample rate.
+     */
+    public void sample(String collection, JsonObject filter, JsonObject sort) {
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            explain(collection, filter, sort);
+        }
+    }
+
+    private void explain(final String collection, final JsonObject filter, final JsonObject sort) {
+        final JsonObject find = new JsonObject().put("find", collection).put("filter", filter);
+        if (sort != null) {
+            find.put("sort", sort);
+        }
+        final JsonObject command = new JsonObject().put("explain", find).put("verbosity", "queryPlanner");
+        mongo.command(command.encode(), message -> {
+            final JsonObject result = message.body().getJsonObject("result");
+            if (!"ok".equals(message.body().getString("status")) || result == null) {
+                return;
+            }
+            if (hasCollectionScan(result)) {
+                recordScan(collection, filter, sort);
+            }
+        });
+    }
+
+    private static boolean hasCollectionScan(Object node) {
+        if (node instanceof JsonObject) {
+            final JsonObject object = (JsonObject) node;
+            if ("COLLSCAN".equals(object.getValue("stage"))) {
+                return true;
+            }
+            for (String field : object.fieldNames()) {
+                // Rejected plans are not run
+                if (!"rejectedPlans".equals(field) && hasCollectionScan(object.getValue(field))) {
+                    return true;
+                }
+            }
+        } else if (node instanceof JsonArray) {
+            for (Object item : (JsonArray) node) {
+                if (hasCollectionScan(item)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collection scans are reported by query shape : collection, filtered and sorted fields.
+     */
+    private synchronized void recordScan(String collection, JsonObject filter, JsonObject sort) {
+        final String shape = collection + " " + new JsonArray(new ArrayList<>(filter.fieldNames())).encode() +
+                (sort != null ? " sort " + new JsonArray(new ArrayList<>(sort.fieldNames())).encode() : "");
+        JsonObject scan = collectionScans.remove(shape);
+        if (scan == null) {
+            log.warn("[Indexes] Collection scan : " + shape);
+            scan = new JsonObject().put("collection", collection).put("shape", shape).put("count", 0L);
+        }
+        scan.put("count", scan.getLong("count") + 1).put("filter", filter).put("lastSeen", System.currentTimeMillis());
+        collectionScans.put(shape, scan);
+        if (collectionScans.size() > MAX_SCANS) {
+            collectionScans.remove(collectionScans.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * @return {indexes : declared indexes with their status, collectionScans : sampled queries run without index}.
+     */
+    public synchronized JsonObject report() {
+        return new JsonObject()
+                .put("indexes", declared.copy())
+                .put("sampleRate", sampleRate)
+                .put("collectionScans", new JsonArray(new ArrayList<>(collectionScans.values())).copy());
+    }
+
+}
@@ -0,0 +1,288 @@
+package fr.wseduc.stats.services;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.entcore.common.validation.ValidationException;
+
+import fr.wseduc.mongodb.MongoDb;
+import fr.wseduc.stats.aggregation.engine.AggregationCursor;
+import fr.wseduc.stats.aggregation.engine.PgStatsRows;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Copies the Mongo stats documents into the stats.&lt;indicator&gt;_&lt;level&gt;_&lt;frequency&gt;s tables.
+ * The stats collection is streamed by increasing _id, each batch is mapped to rows and upserted,
+ * up to parallelism batches being in flight and rowsPerSecond rows being written per second.
+ * The checkpoint (last _id of the written prefix of batches) is saved after each batch,
+ * so that a stopped or failed migration resumes where it was.
+ * The intraday provisional documents are not migrated.
+ * The checkpoint document is claimed with findAndModify and its heartbeat renewed while the migration runs,
+ * so a single node runs it at once and another one may take it over if that node dies.
+ */
+public class MongoToPgStatsMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoToPgStatsMigrator.class);
+
+    public static final String COLLECTION = "stats_migrations";
+    private static final String MIGRATION_ID = "mongo-to-pg";
+    private static final String RUNNING = "running";
+    private static final long HEARTBEAT_TTL = 60000L;
+
+    private final MongoDb mongo = MongoDb.getInstance();
+    private final Vertx vertx;
+    private final PgPool pgPool;
+    private final PgStatsRows rows;
+    private final int batchSize;
+    private final int parallelism;
+    private final long rowsPerSecond;
+
+    private boolean running = false;
+    private JsonObject owned;
+    private long heartbeat = -1L;
+    private long nextWrite = 0L;
+    private int inFlight = 0;
+    private Handler<Void> pendingRead = null;
+    private boolean readEnded = false;
+    private String failure = null;
+    private long migrated = 0L;
+    private long sequence = 0L;
+    /** Last _id of the batches in flight, by read order, and whether they are written. */
+    private final LinkedHashMap<Long, Object> batchesLastId = new LinkedHashMap<>();
+    private final Map<Long, Boolean> batchesWritten = new HashMap<>();
+
+    public MongoToPgStatsMigrator(Vertx vertx, PgPool pgPool, String platformId, Set<String> allowedTables,
+            int batchSize, int parallelism, long rowsPerSecond) {
+        this.vertx = vertx;
+        this.pgPool = pgPool;
+        this.rows = new PgStatsRows(platformId, allowedTables);
+        this.batchSize = batchSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    /**
+     * Starts the migration from the checkpoint, or from the first document if restart is set.
+     * @param handler : Called once the migration is started, it goes on in background.
+     */
+    public void start(boolean restart, Handler<AsyncResult<Void>> handler) {
+        if (running) {
+            handler.handle(Future.failedFuture(new ValidationException("migration.already.running")));
+            return;
+        }
+        running = true;
+        claim(ar -> {
+            if (ar.failed()) {
+                running = false;
+                handler.handle(Future.failedFuture(ar.cause()));
+                return;
+            }
+            final JsonObject checkpoint = !restart && ar.result() != null ? ar.result() : new JsonObject();
+            final Object lastId = checkpoint.getValue("lastId");
+            migrated = checkpoint.getLong("migrated", 0L);
+            nextWrite = 0L;
+            inFlight = 0;
+            pendingRead = null;
+            readEnded = false;
+            failure = null;
+            batchesLastId.clear();
+            batchesWritten.clear();
+            final long started = restart || lastId == null ? System.currentTimeMillis() : checkpoint.getLong("started", System.currentTimeMillis());
+            save(new JsonObject().put("status", RUNNING).put("started", started).put("lastId", lastId)
+                    .put("migrated", migrated).putNull("error"), saved -> {
+                log.info("[Migration] Mongo stats migration " + (lastId != null ? "resumed after " + lastId : "started"));
+                read(lastId);
+                handler.handle(Future.succeededFuture());
+            });
+        });
+    }
+
+    /**
+     * Takes the checkpoint document if the migration is not running, or if its heartbeat expired.
+     * @param handler : Called with the previous checkpoint, null if the migration has never run,
+     * failed with "migration.already.running" if another node runs it.
+     */
+    private void claim(Handler<AsyncResult<JsonObject>> handler) {
+        final String token = UUID.randomUUID().toString();
+        final long now = System.currentTimeMillis();
+        final JsonObject query = new JsonObject().put("_id", MIGRATION_ID).put("$or", new JsonArray()
+                .add(new JsonObject().put("status", new JsonObject().put("$ne", RUNNING)))
+                .add(new JsonObject().put("heartbeat", new JsonObject().put("$not", new JsonObject().put("$gte", now - HEARTBEAT_TTL)))));
+        final JsonObject command = new JsonObject()
+                .put("findAndModify", COLLECTION)
+                .put("query", query)
+                .put("update", new JsonObject().put("$set", new JsonObject()
+                        .put("status", RUNNING).put("token", token).put("heartbeat", now)))
+                .put("upsert", true)
+                .put("new", false);
+        mongo.command(command.encode(), message -> {
+            final JsonObject result = message.body().getJsonObject("result");
+            if (!"ok".equals(message.body().getString("status")) || result == null) {
+                // Duplicate key : the migration is running on another node
+                handler.handle(Future.failedFuture(new ValidationException("migration.already.running")));
+                return;
+            }
+            owned = new JsonObject().put("_id", MIGRATION_ID).put("token", token);
+            heartbeat = vertx.setPeriodic(HEARTBEAT_TTL / 3, t -> mongo.update(COLLECTION, owned,
+                    new JsonObject().put("$set", new JsonObject().put("heartbeat", System.currentTimeMillis())), renewed -> {
+                        if (!"ok".equals(renewed.body().getString("status"))) {
+                            log.error("[Migration] Error renewing the heartbeat : " + renewed.body().getString("message"));
+                        }
+                    }));
+            handler.handle(Future.succeededFuture(result.getJsonObject("value")));
+        });
+    }
+
+    /**
+     * @param handler : Called with the checkpoint document, null if the migration has never run.
+     */
+    public void status(Handler<AsyncResult<JsonObject>> handler) {
+        mongo.findOne(COLLECTION, new JsonObject().put("_id", MIGRATION_ID), message -> {
+            if ("ok".equals(message.body().getString("status"))) {
+                handler.handle(Future.succeededFuture(message.body().getJsonObject("result")));
+            } else {
+                handler.handle(Future.failedFuture(message.body().getString("message")));
+            }
+        });
+    }
+
+    private void save(JsonObject checkpoint, Handler<Void> next) {
+        checkpoint.put("modified", System.currentTimeMillis());
+        mongo.update(COLLECTION, owned, new JsonObject().put("$set", checkpoint),
+                message -> {
+                    if (!"ok".equals(message.body().getString("status"))) {
+                        log.error("[Migration] Error saving the checkpoint : " + message.body().getString("message"));
+                    }
+                    next.handle(null);
+                });
+    }
+
+    /**
+     * Documents written by the staged aggregation have their natural key as _id : strings, sorted before the ObjectIds.
+     */
+    private void read(Object lastId) {
+        final JsonObject match = new JsonObject().put("provisional", new JsonObject().put("$ne", true));
+        if (lastId instanceof String) {
+            match.put("$or", new JsonArray()
+                    .add(new JsonObject().put("_id", new JsonObject().put("$gt", lastId)))
+                    .add(new JsonObject().put("_id", new JsonObject().put("$type", "objectId"))));
+        } else if (lastId != null) {
+            match.put("_id", new JsonObject().put("$gt", lastId));
+        }
+        final JsonArray pipeline = new JsonArray().add(new JsonObject().put("$match", match));
+        pipeline.add(new JsonObject().put("$sort", new JsonObject().put("_id", 1)));
+        new AggregationCursor(mongo, COLLECTIONS.stats.name(), pipeline, batchSize).stream((batch, next) -> {
+            if (failure != null) {
+                // The cursor is left to the server timeout
+                end();
+                return;
+            }
+            if (batch.isEmpty()) {
+                next.handle(null);
+                return;
+            }
+            final long batchSequence = sequence++;
+            batchesLastId.put(batchSequence, batch.getJsonObject(batch.size() - 1).getValue("_id"));
+            final Map<String, List<Tuple>> statements = rows.statements(batch);
+            final int rowCount = statements.values().stream().mapToInt(List::size).sum();
+            inFlight++;
+            throttle(rowCount, v -> {
+                PgStatsRows.write(pgPool, statements, written -> written(batchSequence, batch.size(), written));
+                if (inFlight < parallelism || failure != null) {
+                    next.handle(null);
+                } else {
+                    pendingRead = next;
+                }
+            });
+        }, ended -> {
+            readEnded = true;
+            if (ended.failed()) {
+                failure = ended.cause().getMessage();
+            }
+            end();
+        });
+    }
+
+    private void throttle(int rows, Handler<Void> next) {
+        if (rowsPerSecond <= 0) {
+            next.handle(null);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long delay = nextWrite - now;
+        nextWrite = Math.max(nextWrite, now) + rows * 1000L / rowsPerSecond;
+        if (delay > 0) {
+            vertx.setTimer(delay, t -> next.handle(null));
+        } else {
+            next.handle(null);
+        }
+    }
+
+    private void written(long batchSequence, int documents, AsyncResult<Void> written) {
+        inFlight--;
+        if (written.failed()) {
+            if (failure == null) {
+                failure = written.cause().getMessage();
+            }
+        } else {
+            batchesWritten.put(batchSequence, true);
+            migrated += documents;
+        }
+        // The checkpoint only moves over the batches written without gap
+        Object checkpoint = null;
+        while (!batchesLastId.isEmpty()) {
+            final Long first = batchesLastId.keySet().iterator().next();
+            if (!Boolean.TRUE.equals(batchesWritten.remove(first))) {
+                break;
+            }
+            checkpoint = batchesLastId.remove(first);
+        }
+        final Handler<Void> next = failure == null ? pendingRead : null;
+        pendingRead = null;
+        if (checkpoint != null) {
+            save(new JsonObject().put("lastId", checkpoint).put("migrated", migrated), v -> {
+                if (next != null) {
+                    next.handle(null);
+                }
+                end();
+            });
+        } else {
+            if (next != null) {
+                next.handle(null);
+            }
+            end();
+        }
+    }
+
+    private void end() {
+        if (!running || (!readEnded && failure == null) || inFlight > 0) {
+            return;
+        }
+        running = false;
+        vertx.cancelTimer(heartbeat);
+        final JsonObject status = new JsonObject().put("status", failure == null ? "done" : "error")
+                .put("migrated", migrated).put("error", failure);
+        if (failure == null) {
+            log.info("[Migration] Mongo stats migration done : " + migrated + " documents");
+        } else {
+            log.error("[Migration] Mongo stats migration stopped : " + failure);
+        }
+        save(status, v -> {});
+    }
+
+}
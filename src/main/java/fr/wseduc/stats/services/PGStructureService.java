@@ -0,0 +1,155 @@
+package fr.wseduc.stats.services;
+
+import java.util.List;
+
+import fr.wseduc.webutils.Either;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Structures and classes lookups answered from the repository tables synced by SyncRepository,
+ * to keep stats traffic off the shared Neo4j cluster.
+ * The hierarchy is read from the parents array of repository.structures (a GIN index on parents is expected),
+ * the membership from repository.users_structures and repository.users_classes.
+ * Activation metrics are not part of the repository, they are delegated to the graph implementation.
+ */
+public class PGStructureService implements StructureService {
+
+    private static final Logger log = LoggerFactory.getLogger(PGStructureService.class);
+
+    private static final String USER_STRUCTURES =
+            "SELECT structure_id FROM repository.users_structures WHERE user_id = $1";
+
+    private PgPool readPgPool;
+    private final StructureService graphStructureService;
+
+    public PGStructureService(StructureService graphStructureService) {
+        this.graphStructureService = graphStructureService;
+    }
+
+    @Override
+    public void getStructuresForUser(String userId, boolean hierarchical, Handler<Either<String, JsonArray>> handler) {
+        final String query =
+                "SELECT s.id as id, s.name as name, " +
+                "COALESCE((SELECT json_agg(json_build_object('id', p.id, 'name', p.name)) " +
+                "FROM repository.structures p WHERE s.parents @> ARRAY[p.id]), '[]'::json) as parents " +
+                "FROM repository.structures s " +
+                "WHERE s.id IN (" + USER_STRUCTURES + ") " +
+                "ORDER BY name ";
+        readPgPool.preparedQuery(query).execute(Tuple.of(userId), pgRowsToEither(handler));
+    }
+
+    @Override
+    public void getClassesForUser(String userId, Handler<Either<String, JsonArray>> handler) {
+        final String query =
+                "SELECT DISTINCT c.id as id, c.name as name " +
+                "FROM repository.users_classes uc " +
+                "JOIN repository.classes c ON uc.class_id = c.id " +
+                "WHERE uc.user_id = $1 " +
+                "ORDER BY name ";
+        readPgPool.preparedQuery(query).execute(Tuple.of(userId), pgRowsToEither(handler));
+    }
+
+    @Override
+    public void getStructuresHierarchyAndClasses(String userId, Handler<Either<String, JsonArray>> handler) {
+        final String query =
+                "WITH us AS (" + USER_STRUCTURES + "), " +
+                "uc AS (SELECT c.id, c.name, c.structure_id FROM repository.users_classes ucl " +
+                "JOIN repository.classes c ON ucl.class_id = c.id WHERE ucl.user_id = $1) " +
+                "SELECT t.*, t.parents IS NOT NULL as notroot FROM (" +
+                "SELECT s.id as id, s.name as name, " +
+                "(SELECT json_agg(json_build_object('id', p.id, 'name', p.name)) FROM repository.structures p " +
+                "WHERE s.parents @> ARRAY[p.id] AND p.id IN (SELECT structure_id FROM us)) as parents, " +
+                "(SELECT json_agg(json_build_object('id', c.id, 'name', c.name)) FROM (SELECT DISTINCT id, name " +
+                "FROM uc WHERE uc.structure_id = s.id) c) as classes " +
+                "FROM repository.structures s " +
+                "WHERE s.id IN (SELECT structure_id FROM us)) t " +
+                "ORDER BY notroot, name ";
+        readPgPool.preparedQuery(query).execute(Tuple.of(userId), pgRowsToEither(handler));
+    }
+
+    @Override
+    public void getSubStructures(String structureId, Handler<Either<String, JsonObject>> handler) {
+        final String query =
+                "WITH RECURSIVE sub AS (" +
+                "SELECT id FROM repository.structures WHERE id = $1 " +
+                "UNION " +
+                "SELECT s.id FROM repository.structures s JOIN sub ON s.parents @> ARRAY[sub.id]" +
+                ") SELECT id FROM sub ";
+        readPgPool.preparedQuery(query).execute(Tuple.of(structureId), idsToEither(handler));
+    }
+
+    @Override
+    public void getClassesForStructure(String structureId, Handler<Either<String, JsonObject>> handler) {
+        final String query = "SELECT DISTINCT id FROM repository.classes WHERE structure_id = $1";
+        readPgPool.preparedQuery(query).execute(Tuple.of(structureId), idsToEither(handler));
+    }
+
+    @Override
+    public void getUserClassesForStructure(String structureId, String userId, Handler<Either<String, JsonObject>> handler) {
+        final String query =
+                "SELECT DISTINCT c.id as id " +
+                "FROM repository.users_classes uc " +
+                "JOIN repository.classes c ON uc.class_id = c.id " +
+                "WHERE c.structure_id = $1 AND uc.user_id = $2";
+        readPgPool.preparedQuery(query).execute(Tuple.of(structureId, userId), idsToEither(handler));
+    }
+
+    @Override
+    public void getStructureMetrics(String structureId, Handler<Either<String, JsonObject>> handler) {
+        graphStructureService.getStructureMetrics(structureId, handler);
+    }
+
+    private Handler<AsyncResult<RowSet<Row>>> pgRowsToEither(Handler<Either<String, JsonArray>> handler) {
+        return ar -> {
+            if (ar.succeeded()) {
+                final List<String> columns = ar.result().columnsNames();
+                final JsonArray res = new JsonArray();
+                for (Row row : ar.result()) {
+                    final JsonObject j = new JsonObject();
+                    for (int i = 0; i < columns.size(); i++) {
+                        final Object o = row.getValue(i);
+                        if (o != null) {
+                            j.put(columns.get(i), o);
+                        } else {
+                            j.putNull(columns.get(i));
+                        }
+                    }
+                    res.add(j);
+                }
+                handler.handle(new Either.Right<>(res));
+            } else {
+                log.error("Error querying repository ", ar.cause());
+                handler.handle(new Either.Left<>(ar.cause().getMessage()));
+            }
+        };
+    }
+
+    private Handler<AsyncResult<RowSet<Row>>> idsToEither(Handler<Either<String, JsonObject>> handler) {
+        return ar -> {
+            if (ar.succeeded()) {
+                final JsonArray ids = new JsonArray();
+                for (Row row : ar.result()) {
+                    ids.add(row.getString("id"));
+                }
+                handler.handle(new Either.Right<>(new JsonObject().put("ids", ids)));
+            } else {
+                log.error("Error querying repository ", ar.cause());
+                handler.handle(new Either.Left<>(ar.cause().getMessage()));
+            }
+        };
+    }
+
+    public void setReadPgPool(PgPool readPgPool) {
+        this.readPgPool = readPgPool;
+    }
+
+}
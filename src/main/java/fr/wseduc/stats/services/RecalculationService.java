@@ -0,0 +1,34 @@
+package fr.wseduc.stats.services;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public interface RecalculationService {
+
+    String RANGE_OVERLAP = "recalculation.range.overlap";
+    String CREATE_BUSY = "recalculation.create.busy";
+
+    /**
+     * Persists a recalculation job of the days in [from, to[ and starts it.
+     * Fails with RANGE_OVERLAP if an unfinished job overlaps the range,
+     * with CREATE_BUSY if another job is being created at the same time.
+     */
+    void create(long from, long to, Handler<AsyncResult<JsonObject>> handler);
+
+    void get(String id, Handler<AsyncResult<JsonObject>> handler);
+
+    void list(Handler<AsyncResult<JsonArray>> handler);
+
+    /**
+     * Cancels the job, the days being processed are completed first.
+     */
+    void cancel(String id, Handler<AsyncResult<Void>> handler);
+
+    /**
+     * Restarts the unfinished jobs from their last completed day, unless another node runs them.
+     */
+    void resume(Handler<AsyncResult<Integer>> handler);
+
+}
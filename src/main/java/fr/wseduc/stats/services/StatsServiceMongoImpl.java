@@ -24,10 +24,18 @@ package fr.wseduc.stats.services;
 
 import static org.entcore.common.aggregation.MongoConstants.*;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.bson.conversions.Bson;
 import org.entcore.common.mongodb.MongoDbResult;
@@ -40,6 +48,8 @@ import io.vertx.core.json.JsonObject;
 
 import fr.wseduc.mongodb.MongoDb;
 import fr.wseduc.mongodb.MongoQueryBuilder;
+import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+import fr.wseduc.stats.aggregation.engine.AggregationCursor;
 import fr.wseduc.webutils.Either;
 import static com.mongodb.client.model.Filters.*;
 
@@ -49,8 +59,24 @@ import static com.mongodb.client.model.Filters.*;
  */
 public class StatsServiceMongoImpl extends MongoDbCrudService implements StatsService{
 
+	private static final String INDICATORS_PARAM = "indicators";
+	private static final List<String> TIME_SERIES_PARAMS = Arrays.asList(INDICATORS_PARAM, "from", "to");
+	private static final int TIME_SERIES_BATCH_SIZE = 1000;
+	/** Indicator keys of the stats documents, the only ones a time series may project. */
+	private static final Set<String> TIME_SERIES_INDICATORS = new HashSet<>(Arrays.asList(
+			TRACE_TYPE_CONNEXION, TRACE_TYPE_CREATE_USER, TRACE_TYPE_DELETE_USER, TRACE_TYPE_ACTIVATION, TRACE_TYPE_SVC_ACCESS,
+			UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_DAY",
+			UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_WEEK",
+			UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_MONTH"));
+	static {
+		for (int h = 0; h < 24; h++) {
+			TIME_SERIES_INDICATORS.add(TRACE_TYPE_CONNEXION + "_H" + h);
+		}
+	}
+
 	private final String collection;
 	private final MongoDb mongo;
+	private MongoIndexManager indexManager;
 
 	public StatsServiceMongoImpl(final String collection) {
 		super(collection);
@@ -59,8 +85,37 @@ public class StatsServiceMongoImpl extends MongoDbCrudService implements StatsSe
 	}
 
 	public void listStats(MultiMap d, Handler<Either<String, JsonArray>> handler){
+		if (d != null && d.contains(INDICATORS_PARAM)) {
+			listTimeSeries(d, handler);
+			return;
+		}
+		final List<Bson> filters = new ArrayList<>();
+		final String groupedBy = groupFilters(d, filters);
+		if (groupedBy == null) {
+			filters.add(exists(STATS_FIELD_GROUPBY, false));
+		} else {
+			filters.add(eq(STATS_FIELD_GROUPBY, groupedBy));
+		}
+
+		//Stats from September the 1st
+		filters.add(gte(STATS_FIELD_DATE, MongoDb.formatDate(defaultFrom())));
+
+		//Sort by date - ascending
+		JsonObject sortObject = new JsonObject().put("date", -1);
+
+		final JsonObject query = MongoQueryBuilder.build(and(filters));
+		if (indexManager != null) {
+			indexManager.sample(collection, query, sortObject);
+		}
+		mongo.find(collection, query, sortObject, new JsonObject(), MongoDbResult.validResultsHandler(handler));
+	}
+
+	/**
+	 * Adds the structure, class and other group filters of the request parameters.
+	 * @return The groupedBy value of the requested documents, null for the global ones.
+	 */
+	private String groupFilters(MultiMap d, List<Bson> filters){
 		final List<Entry<String, String>> data = (d != null) ? d.entries() : new ArrayList<>();
-		List<Bson> filters = new ArrayList<>();
 
 		//Gets rid of the annoying jQuery underscore query parameter
 		int i = 0;
@@ -72,35 +127,36 @@ public class StatsServiceMongoImpl extends MongoDbCrudService implements StatsSe
 			i++;
 		}
 
-		if(!data.isEmpty()){
-			String groupedByModifier = "";
-			boolean structuresCheck = false;
-			boolean classesCheck = false;
+		String groupedByModifier = "";
+		boolean filtered = false;
+		boolean structuresCheck = false;
+		boolean classesCheck = false;
 
-			for(Entry<String, String> entry : data){
-				if(entry.getKey().equals("groupedBy")){
-					groupedByModifier = entry.getValue();
-					continue;
-				}
-				else if(entry.getKey().equals("structures"))
-					structuresCheck = true;
-				else if(entry.getKey().equals("classes"))
-					classesCheck = true;
-
-				filters.add(eq(entry.getKey()+"_id", entry.getValue()));
+		for(Entry<String, String> entry : data){
+			if(TIME_SERIES_PARAMS.contains(entry.getKey()))
+				continue;
+			filtered = true;
+			if(entry.getKey().equals("groupedBy")){
+				groupedByModifier = entry.getValue();
+				continue;
 			}
+			else if(entry.getKey().equals("structures"))
+				structuresCheck = true;
+			else if(entry.getKey().equals("classes"))
+				classesCheck = true;
 
-			String groupedBy = classesCheck ? "structures/classes" : structuresCheck ? "structures" : "";
-			if(groupedByModifier.length() > 0)
-				groupedBy = groupedBy.length() == 0 ? groupedByModifier : groupedBy + "/" + groupedByModifier;
-
-			filters.add(eq(STATS_FIELD_GROUPBY, groupedBy));
-		} else {
-			filters.add(exists(STATS_FIELD_GROUPBY, false));
+			filters.add(eq(entry.getKey()+"_id", entry.getValue()));
 		}
+		if(!filtered)
+			return null;
 
+		String groupedBy = classesCheck ? "structures/classes" : structuresCheck ? "structures" : "";
+		if(groupedByModifier.length() > 0)
+			groupedBy = groupedBy.length() == 0 ? groupedByModifier : groupedBy + "/" + groupedByModifier;
+		return groupedBy;
+	}
 
-		//Stats from September the 1st
+	private static Date defaultFrom(){
 		Calendar cal = Calendar.getInstance();
 		cal.add(Calendar.MONTH, -12);
 		cal.set(Calendar.DAY_OF_MONTH, 1);
@@ -108,13 +164,105 @@ public class StatsServiceMongoImpl extends MongoDbCrudService implements StatsSe
 		cal.set(Calendar.MINUTE, 0);
 		cal.set(Calendar.SECOND, 0);
 		cal.set(Calendar.MILLISECOND, 0);
+		return cal.getTime();
+	}
 
-		filters.add(gte(STATS_FIELD_DATE, MongoDb.formatDate(cal.getTime())));
+	private static Date parseDay(String day) throws ParseException {
+		return new SimpleDateFormat("yyyy-MM-dd").parse(day);
+	}
 
-		//Sort by date - ascending
-		JsonObject sortObject = new JsonObject().put("date", -1);
+	/**
+	 * Time series mode, when the indicators parameter is set (repeated or comma separated keys) :
+	 * only the requested indicators (known indicator keys, invalid.indicator otherwise) of the documents between from (default 12 months ago) and to (excluded) are read,
+	 * streamed by batches in date order, and returned as one series per indicator and group :
+	 * [{indicator, group : {field_id : value}, dates : [...], values : [...]}].
+	 */
+	private void listTimeSeries(MultiMap d, final Handler<Either<String, JsonArray>> handler){
+		final List<String> indicators = new ArrayList<>();
+		for (String value : d.getAll(INDICATORS_PARAM)) {
+			for (String indicator : value.split(",")) {
+				if (indicator.trim().isEmpty()) {
+					continue;
+				}
+				if (!TIME_SERIES_INDICATORS.contains(indicator.trim())) {
+					handler.handle(new Either.Left<>("invalid.indicator"));
+					return;
+				}
+				indicators.add(indicator.trim());
+			}
+		}
+		final List<Bson> filters = new ArrayList<>();
+		final String groupedBy = groupFilters(d, filters);
+		if (groupedBy == null) {
+			filters.add(exists(STATS_FIELD_GROUPBY, false));
+		} else {
+			filters.add(eq(STATS_FIELD_GROUPBY, groupedBy));
+		}
+		try {
+			filters.add(gte(STATS_FIELD_DATE, MongoDb.formatDate(d.contains("from") ? parseDay(d.get("from")) : defaultFrom())));
+			if (d.contains("to")) {
+				filters.add(lt(STATS_FIELD_DATE, MongoDb.formatDate(parseDay(d.get("to")))));
+			}
+		} catch (ParseException e) {
+			handler.handle(new Either.Left<>("invalid.date"));
+			return;
+		}
+
+		final List<String> groupFields = new ArrayList<>();
+		if (groupedBy != null && !groupedBy.isEmpty()) {
+			for (String field : groupedBy.split("/")) {
+				groupFields.add(field + "_id");
+			}
+		}
+		final JsonObject projection = new JsonObject().put("_id", 0).put(STATS_FIELD_DATE, 1);
+		for (String field : groupFields) {
+			projection.put(field, 1);
+		}
+		for (String indicator : indicators) {
+			projection.put(indicator, 1);
+		}
+		final JsonObject query = MongoQueryBuilder.build(and(filters));
+		final JsonObject sort = new JsonObject().put(STATS_FIELD_DATE, 1);
+		if (indexManager != null) {
+			indexManager.sample(collection, query, sort);
+		}
+		final JsonArray pipeline = new JsonArray()
+				.add(new JsonObject().put("$match", query))
+				.add(new JsonObject().put("$sort", sort))
+				.add(new JsonObject().put("$project", projection));
+
+		final Map<String, JsonObject> series = new LinkedHashMap<>();
+		new AggregationCursor(mongo, collection, pipeline, TIME_SERIES_BATCH_SIZE).stream(batch -> {
+			for (Object o : batch) {
+				if (!(o instanceof JsonObject)) continue;
+				final JsonObject document = (JsonObject) o;
+				final JsonObject group = new JsonObject();
+				for (String field : groupFields) {
+					group.put(field, document.getValue(field));
+				}
+				for (String indicator : indicators) {
+					final Object value = document.getValue(indicator);
+					if (value == null) continue;
+					final JsonObject serie = series.computeIfAbsent(indicator + group.encode(), k -> new JsonObject()
+							.put("indicator", indicator)
+							.put("group", group)
+							.put("dates", new JsonArray())
+							.put("values", new JsonArray()));
+					serie.getJsonArray("dates").add(document.getValue(STATS_FIELD_DATE));
+					serie.getJsonArray("values").add(value);
+				}
+			}
+		}, read -> {
+			if (read.succeeded()) {
+				handler.handle(new Either.Right<>(new JsonArray(new ArrayList<>(series.values()))));
+			} else {
+				handler.handle(new Either.Left<>(read.cause().getMessage()));
+			}
+		});
+	}
 
-		mongo.find(collection, MongoQueryBuilder.build(and(filters)), sortObject, new JsonObject(), MongoDbResult.validResultsHandler(handler));
+	public void setIndexManager(MongoIndexManager indexManager) {
+		this.indexManager = indexManager;
 	}
 
 	@Override
@@ -0,0 +1,376 @@
+package fr.wseduc.stats.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.entcore.common.neo4j.Neo4j;
+import org.entcore.common.neo4j.Neo4jResult;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * In-memory copy of the structures hierarchy (structure -> children, structure -> parents, structure -> classes).
+ * Ids are mapped to int indexes and relations are stored as compact adjacency arrays,
+ * so hierarchy expansions are plain memory walks instead of variable-length Cypher traversals.
+ * Each load builds a new immutable snapshot which is swapped atomically, readers never see a partial state.
+ */
+public class StructureHierarchy {
+
+    private static final Logger log = LoggerFactory.getLogger(StructureHierarchy.class);
+
+    private static final String STRUCTURES_QUERY =
+            "MATCH (s:Structure) " +
+            "OPTIONAL MATCH (s)-[:HAS_ATTACHMENT]->(ps:Structure) " +
+            "RETURN s.id as id, s.name as name, COLLECT(DISTINCT ps.id) as parents ";
+    private static final String CLASSES_QUERY =
+            "MATCH (c:Class)-[:BELONGS]->(s:Structure) " +
+            "RETURN c.id as id, c.name as name, s.id as structureId ";
+
+    private final Neo4j neo4j = Neo4j.getInstance();
+    private final Dictionary structureDictionary = new Dictionary();
+    private final Dictionary classDictionary = new Dictionary();
+    private volatile Snapshot snapshot;
+    private boolean loading = false;
+
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public long getLoadedAt() {
+        final Snapshot s = snapshot;
+        return s != null ? s.loadedAt : -1L;
+    }
+
+    public boolean containsStructure(String structureId) {
+        final Snapshot s = snapshot;
+        return s != null && s.structureIndex(structureId) >= 0;
+    }
+
+    public String getStructureName(String structureId) {
+        final Snapshot s = snapshot;
+        if (s == null) {
+            return null;
+        }
+        final int idx = s.structureIndex(structureId);
+        return idx >= 0 ? s.structureNames[idx] : null;
+    }
+
+    public String getClassName(String classId) {
+        final Snapshot s = snapshot;
+        if (s == null) {
+            return null;
+        }
+        final int idx = s.classIndex(classId);
+        return idx >= 0 ? s.classNames[idx] : null;
+    }
+
+    /**
+     * Returns the structure of a class, or null if the class is unknown.
+     */
+    public String getClassStructure(String classId) {
+        final Snapshot s = snapshot;
+        if (s == null) {
+            return null;
+        }
+        final int idx = s.classIndex(classId);
+        return idx >= 0 ? s.structureIds[s.classStructure[idx]] : null;
+    }
+
+    /**
+     * Returns the structure and all its descendants (HAS_ATTACHMENT*0..).
+     */
+    public List<String> getSubStructureIds(String structureId) {
+        final Snapshot s = snapshot;
+        final List<String> ids = new ArrayList<>();
+        if (s == null) {
+            return ids;
+        }
+        final int root = s.structureIndex(structureId);
+        if (root < 0) {
+            return ids;
+        }
+        final boolean[] visited = new boolean[s.structureIds.length];
+        final int[] queue = new int[s.structureIds.length];
+        int head = 0, tail = 0;
+        queue[tail++] = root;
+        visited[root] = true;
+        while (head < tail) {
+            final int current = queue[head++];
+            ids.add(s.structureIds[current]);
+            for (int i = s.children.offsets[current]; i < s.children.offsets[current + 1]; i++) {
+                final int child = s.children.targets[i];
+                if (!visited[child]) {
+                    visited[child] = true;
+                    queue[tail++] = child;
+                }
+            }
+        }
+        return ids;
+    }
+
+    public List<String> getClassIds(String structureId) {
+        final Snapshot s = snapshot;
+        final List<String> ids = new ArrayList<>();
+        if (s == null) {
+            return ids;
+        }
+        final int idx = s.structureIndex(structureId);
+        if (idx < 0) {
+            return ids;
+        }
+        for (int i = s.classes.offsets[idx]; i < s.classes.offsets[idx + 1]; i++) {
+            ids.add(s.classIds[s.classes.targets[i]]);
+        }
+        return ids;
+    }
+
+    public List<String> getParentIds(String structureId) {
+        final Snapshot s = snapshot;
+        final List<String> ids = new ArrayList<>();
+        if (s == null) {
+            return ids;
+        }
+        final int idx = s.structureIndex(structureId);
+        if (idx < 0) {
+            return ids;
+        }
+        for (int i = s.parents.offsets[idx]; i < s.parents.offsets[idx + 1]; i++) {
+            ids.add(s.structureIds[s.parents.targets[i]]);
+        }
+        return ids;
+    }
+
+    /**
+     * Bulk loads the hierarchy from Neo4j and swaps the current snapshot.
+     * Known ids keep their index between loads, only new ids are appended to the dictionaries.
+     */
+    public void load(Handler<AsyncResult<Void>> handler) {
+        synchronized (this) {
+            if (loading) {
+                handler.handle(Future.failedFuture("structure.hierarchy.already.loading"));
+                return;
+            }
+            loading = true;
+        }
+        final long start = System.currentTimeMillis();
+        neo4j.execute(STRUCTURES_QUERY, new JsonObject(), Neo4jResult.validResultHandler(structures -> {
+            if (structures.isLeft()) {
+                endLoading(handler, Future.failedFuture(structures.left().getValue()));
+                return;
+            }
+            neo4j.execute(CLASSES_QUERY, new JsonObject(), Neo4jResult.validResultHandler(classes -> {
+                if (classes.isLeft()) {
+                    endLoading(handler, Future.failedFuture(classes.left().getValue()));
+                    return;
+                }
+                try {
+                    snapshot = build(structures.right().getValue(), classes.right().getValue());
+                    log.info("[StructureHierarchy] Loaded " + snapshot.structureIds.length + " structures and " +
+                            snapshot.classIds.length + " classes in " + (System.currentTimeMillis() - start) + " ms");
+                    endLoading(handler, Future.succeededFuture());
+                } catch (RuntimeException e) {
+                    log.error("[StructureHierarchy] Error building hierarchy", e);
+                    endLoading(handler, Future.failedFuture(e));
+                }
+            }));
+        }));
+    }
+
+    private void endLoading(Handler<AsyncResult<Void>> handler, AsyncResult<Void> result) {
+        synchronized (this) {
+            loading = false;
+        }
+        handler.handle(result);
+    }
+
+    private Snapshot build(JsonArray structures, JsonArray classes) {
+        final int nbStructures = structureDictionary.size() + structures.size();
+        final String[] structureNames = new String[nbStructures];
+        final boolean[] present = new boolean[nbStructures];
+        final IntPairs parentLinks = new IntPairs();
+        for (Object o : structures) {
+            if (!(o instanceof JsonObject)) continue;
+            final JsonObject structure = (JsonObject) o;
+            final int idx = structureDictionary.index(structure.getString("id"));
+            structureNames[idx] = structure.getString("name");
+            present[idx] = true;
+        }
+        for (Object o : structures) {
+            if (!(o instanceof JsonObject)) continue;
+            final JsonObject structure = (JsonObject) o;
+            final int idx = structureDictionary.get(structure.getString("id"));
+            for (Object parentId : structure.getJsonArray("parents", new JsonArray())) {
+                final int parent = (parentId instanceof String) ? structureDictionary.get((String) parentId) : -1;
+                if (parent >= 0 && present[parent]) {
+                    parentLinks.add(idx, parent);
+                }
+            }
+        }
+
+        final String[] classNames = new String[classDictionary.size() + classes.size()];
+        final IntPairs classLinks = new IntPairs();
+        for (Object o : classes) {
+            if (!(o instanceof JsonObject)) continue;
+            final JsonObject clazz = (JsonObject) o;
+            final int structure = structureDictionary.get(clazz.getString("structureId"));
+            if (structure < 0 || !present[structure]) continue;
+            final int idx = classDictionary.index(clazz.getString("id"));
+            classNames[idx] = clazz.getString("name");
+            classLinks.add(structure, idx);
+        }
+
+        final int nbClasses = classDictionary.size();
+        final int[] classStructure = new int[nbClasses];
+        Arrays.fill(classStructure, -1);
+        for (int i = 0; i < classLinks.size; i++) {
+            classStructure[classLinks.second[i]] = classLinks.first[i];
+        }
+
+        final int n = structureDictionary.size();
+        return new Snapshot(
+                structureDictionary.copy(), classDictionary.copy(),
+                Arrays.copyOf(structureNames, n), Arrays.copyOf(classNames, nbClasses),
+                Arrays.copyOf(present, n),
+                Adjacency.of(n, parentLinks.first, parentLinks.second, parentLinks.size),
+                Adjacency.of(n, parentLinks.second, parentLinks.first, parentLinks.size),
+                Adjacency.of(n, classLinks.first, classLinks.second, classLinks.size),
+                classStructure);
+    }
+
+    /**
+     * Append-only id -> index dictionary. Only mutated by the loader, snapshots get a frozen copy.
+     */
+    private static final class Dictionary {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> ids = new ArrayList<>();
+
+        int index(String id) {
+            final Integer idx = indexes.get(id);
+            if (idx != null) {
+                return idx;
+            }
+            indexes.put(id, ids.size());
+            ids.add(id);
+            return ids.size() - 1;
+        }
+
+        int get(String id) {
+            final Integer idx = (id != null) ? indexes.get(id) : null;
+            return idx != null ? idx : -1;
+        }
+
+        int size() {
+            return ids.size();
+        }
+
+        Dictionary copy() {
+            final Dictionary d = new Dictionary();
+            d.indexes.putAll(indexes);
+            d.ids.addAll(ids);
+            return d;
+        }
+    }
+
+    /**
+     * Growable (from, to) int pairs buffer.
+     */
+    private static final class IntPairs {
+        private int[] first = new int[1024];
+        private int[] second = new int[1024];
+        private int size = 0;
+
+        void add(int a, int b) {
+            if (size == first.length) {
+                first = Arrays.copyOf(first, size * 2);
+                second = Arrays.copyOf(second, size * 2);
+            }
+            first[size] = a;
+            second[size] = b;
+            size++;
+        }
+    }
+
+    /**
+     * Compressed adjacency lists : neighbours of node i are targets[offsets[i]..offsets[i + 1]].
+     */
+    private static final class Adjacency {
+        private final int[] offsets;
+        private final int[] targets;
+
+        private Adjacency(int[] offsets, int[] targets) {
+            this.offsets = offsets;
+            this.targets = targets;
+        }
+
+        static Adjacency of(int n, int[] from, int[] to, int size) {
+            final int[] offsets = new int[n + 1];
+            for (int i = 0; i < size; i++) {
+                offsets[from[i] + 1]++;
+            }
+            for (int i = 0; i < n; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            final int[] targets = new int[size];
+            final int[] cursor = Arrays.copyOf(offsets, n);
+            for (int i = 0; i < size; i++) {
+                targets[cursor[from[i]]++] = to[i];
+            }
+            return new Adjacency(offsets, targets);
+        }
+    }
+
+    private static final class Snapshot {
+        private final Map<String, Integer> structureIndexes;
+        private final Map<String, Integer> classIndexes;
+        private final String[] structureIds;
+        private final String[] classIds;
+        private final String[] structureNames;
+        private final String[] classNames;
+        private final boolean[] present;
+        private final Adjacency parents;
+        private final Adjacency children;
+        private final Adjacency classes;
+        private final int[] classStructure;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Snapshot(Dictionary structures, Dictionary classes, String[] structureNames, String[] classNames,
+                boolean[] present, Adjacency parents, Adjacency children, Adjacency structureClasses, int[] classStructure) {
+            this.structureIndexes = structures.indexes;
+            this.classIndexes = classes.indexes;
+            this.structureIds = toArray(structures.ids);
+            this.classIds = toArray(classes.ids);
+            this.structureNames = structureNames;
+            this.classNames = classNames;
+            this.present = present;
+            this.parents = parents;
+            this.children = children;
+            this.classes = structureClasses;
+            this.classStructure = classStructure;
+        }
+
+        private static String[] toArray(Collection<String> ids) {
+            return ids.toArray(new String[0]);
+        }
+
+        int structureIndex(String id) {
+            final Integer idx = (id != null) ? structureIndexes.get(id) : null;
+            return (idx != null && present[idx]) ? idx : -1;
+        }
+
+        int classIndex(String id) {
+            final Integer idx = (id != null) ? classIndexes.get(id) : null;
+            return (idx != null && classStructure[idx] >= 0) ? idx : -1;
+        }
+    }
+
+}
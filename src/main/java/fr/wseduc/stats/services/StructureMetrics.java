@@ -0,0 +1,94 @@
+package fr.wseduc.stats.services;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.entcore.common.neo4j.Neo4j;
+import org.entcore.common.neo4j.Neo4jResult;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+/**
+ * Materialized per profile active/inactive accounts counts of every structure.
+ * Counts are computed in bulk (on schedule or after a repository sync) and served as a keyed lookup.
+ */
+public class StructureMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(StructureMetrics.class);
+
+    private static final String METRICS_QUERY =
+            "MATCH (s:Structure)<-[:DEPENDS]-(pg:ProfileGroup)-[:HAS_PROFILE]->(p:Profile), (pg)<-[:IN]-(u:User) " +
+            "WITH DISTINCT s.id as structureId, p.name as profile, u " +
+            "RETURN structureId, profile, " +
+            "SUM(CASE WHEN u.activationCode IS NULL THEN 1 ELSE 0 END) as active, " +
+            "SUM(CASE WHEN u.activationCode IS NULL THEN 0 ELSE 1 END) as inactive ";
+
+    private final Neo4j neo4j = Neo4j.getInstance();
+    private volatile Map<String, JsonArray> metrics;
+    private volatile long computedAt = -1L;
+    private boolean computing = false;
+
+    public boolean isComputed() {
+        return metrics != null;
+    }
+
+    /**
+     * Returns the metrics of the structure in the same format as the live query, with the computation date.
+     */
+    public JsonObject getMetrics(String structureId) {
+        final Map<String, JsonArray> m = metrics;
+        if (m == null) {
+            return null;
+        }
+        final JsonArray structureMetrics = m.get(structureId);
+        return new JsonObject()
+                .put("metrics", structureMetrics != null ? structureMetrics.copy() : new JsonArray())
+                .put("computedAt", Instant.ofEpochMilli(computedAt).toString());
+    }
+
+    public void compute(Handler<AsyncResult<Void>> handler) {
+        synchronized (this) {
+            if (computing) {
+                handler.handle(Future.failedFuture("structure.metrics.already.computing"));
+                return;
+            }
+            computing = true;
+        }
+        final long start = System.currentTimeMillis();
+        neo4j.execute(METRICS_QUERY, new JsonObject(), Neo4jResult.validResultHandler(either -> {
+            if (either.isLeft()) {
+                endComputing(handler, Future.failedFuture(either.left().getValue()));
+                return;
+            }
+            final Map<String, JsonArray> m = new HashMap<>();
+            for (Object o : either.right().getValue()) {
+                if (!(o instanceof JsonObject)) continue;
+                final JsonObject row = (JsonObject) o;
+                m.computeIfAbsent(row.getString("structureId"), k -> new JsonArray()).add(new JsonObject()
+                        .put("profile", row.getString("profile"))
+                        .put("active", row.getInteger("active", 0))
+                        .put("inactive", row.getInteger("inactive", 0)));
+            }
+            computedAt = start;
+            metrics = m;
+            log.info("[StructureMetrics] Computed metrics of " + m.size() + " structures in " +
+                    (System.currentTimeMillis() - start) + " ms");
+            endComputing(handler, Future.succeededFuture());
+        }));
+    }
+
+    private void endComputing(Handler<AsyncResult<Void>> handler, AsyncResult<Void> result) {
+        synchronized (this) {
+            computing = false;
+        }
+        handler.handle(result);
+    }
+
+}
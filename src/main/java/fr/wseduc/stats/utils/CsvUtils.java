@@ -15,6 +15,7 @@ import java.util.stream.Collectors;
 import fr.wseduc.stats.exceptions.ImportException;
 import fr.wseduc.webutils.Utils;
 import io.vertx.core.Vertx;
+import io.vertx.core.file.AsyncFile;
 import io.vertx.core.file.OpenOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.AsyncResult;
@@ -84,37 +85,95 @@ public final class CsvUtils {
 		});
 	}
 
-	public static void readCsv(Vertx vertx, ImportCsvTable importCsvTable, Handler<AsyncResult<DataTable>> handler) {
+	/**
+	 * Chunk of parsed lines, the parser is paused until done is called.
+	 */
+	public interface ChunkHandler {
+		void handle(DataTable chunk, Handler<AsyncResult<Void>> done);
+	}
+
+	/**
+	 * Parses the csv file by chunks of chunkSize lines, reading the file only while no chunk is being handled.
+	 * @param endHandler : Called with the number of lines read once the last chunk is done, or with the first error.
+	 */
+	public static void readCsv(Vertx vertx, ImportCsvTable importCsvTable, int chunkSize, ChunkHandler chunkHandler,
+			Handler<AsyncResult<Long>> endHandler) {
 		log.info("Start parsing csv file : " + importCsvTable.getFile());
 		vertx.fileSystem().open(importCsvTable.getFile(), new OpenOptions().setRead(true), ar -> {
 			if (ar.succeeded()) {
-				final DataTable dataTable = new DataTable();
-				RecordParser.newDelimited("\n", ar.result())
-					.exceptionHandler(e -> {
+				final AsyncFile file = ar.result();
+				final DataTable chunk = new DataTable();
+				final long[] lines = {0L};
+				final boolean[] failed = {false};
+				final RecordParser parser = RecordParser.newDelimited("\n", file);
+				final Handler<Throwable> fail = e -> {
+					if (!failed[0]) {
+						failed[0] = true;
+						file.close();
+						endHandler.handle(Future.failedFuture(e));
+					}
+				};
+				parser.exceptionHandler(e -> {
 						log.error("Error reading csv file", e);
-						handler.handle(Future.failedFuture(e));
+						fail.handle(e);
 					}).handler(buffer -> {
 						final String line = buffer.toString();
-						if (dataTable.getColumns() == null) {
-							dataTable.setColumns(Arrays.asList(line.split(importCsvTable.getSeparator())));
-							dataTable.setData(new ArrayList<>());
-						} else {
-							final Tuple tuple = Tuple.tuple();
-							Arrays.stream(line.split(importCsvTable.getSeparator())).forEach(x -> tuple.addValue(stringToObject(x)));
-							dataTable.getData().add(tuple);
+						if (failed[0] || line.isEmpty()) {
+							return;
+						}
+						if (chunk.getColumns() == null) {
+							chunk.setColumns(Arrays.asList(line.split(importCsvTable.getSeparator())));
+							chunk.setData(new ArrayList<>());
+							return;
+						}
+						final Tuple tuple = Tuple.tuple();
+						Arrays.stream(line.split(importCsvTable.getSeparator())).forEach(x -> tuple.addValue(stringToObject(x)));
+						chunk.getData().add(tuple);
+						lines[0]++;
+						if (chunk.getData().size() >= chunkSize) {
+							parser.pause();
+							final DataTable full = drain(chunk);
+							chunkHandler.handle(full, done -> {
+								if (done.succeeded()) {
+									parser.resume();
+								} else {
+									fail.handle(done.cause());
+								}
+							});
 						}
 					}).endHandler(v -> {
-						ar.result().close();
 						log.info("endHandler parsing csv file : " + importCsvTable.getFile());
-						handler.handle(Future.succeededFuture(dataTable));
+						if (failed[0]) {
+							return;
+						}
+						final DataTable last = drain(chunk);
+						chunkHandler.handle(last, done -> {
+							if (done.succeeded()) {
+								file.close();
+								endHandler.handle(Future.succeededFuture(lines[0]));
+							} else {
+								fail.handle(done.cause());
+							}
+						});
 					});
 			} else {
 				log.error("Error reading file", ar.cause());
-				handler.handle(Future.failedFuture(ar.cause()));
+				endHandler.handle(Future.failedFuture(ar.cause()));
 			}
 		});
 	}
 
+	/**
+	 * @return A chunk with the lines of the given one, which is reset for the next lines.
+	 */
+	private static DataTable drain(DataTable chunk) {
+		final DataTable copy = new DataTable();
+		copy.setColumns(chunk.getColumns());
+		copy.setData(chunk.getData() != null ? chunk.getData() : new ArrayList<>());
+		chunk.setData(new ArrayList<>());
+		return copy;
+	}
+
     private static Object stringToObject(String x) {
 		try {
 			return LocalDateTime.parse(x, DATE_TIME_FORMATTER);
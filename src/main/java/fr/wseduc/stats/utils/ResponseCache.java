@@ -0,0 +1,61 @@
+package fr.wseduc.stats.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.vertx.core.json.JsonArray;
+
+/**
+ * Bounded cache of JSON responses, rendered with the usual renderJson helpers : cached arrays must not be modified.
+ * Entries expire after the ttl and the least recently used ones are evicted when the max size is reached.
+ */
+public class ResponseCache {
+
+    private final long ttl;
+    private final Map<String, Entry> entries;
+
+    public ResponseCache(long ttl, final int maxSize) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized JsonArray get(String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(String key, JsonArray value) {
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    private static final class Entry {
+        private final JsonArray value;
+        private final long expireAt;
+
+        private Entry(JsonArray value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.TRACE_FIELD_DATE;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.entcore.common.aggregation.AggregationTools;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The hour index computed in the pipeline must match the former per hour date filters,
+ * daylight saving days included (23 and 25 hours).
+ */
+public class HourExpressionTest {
+
+	private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+	private TimeZone defaultTimeZone;
+
+	@Before
+	public void setTimeZone() {
+		defaultTimeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Paris"));
+	}
+
+	@After
+	public void resetTimeZone() {
+		TimeZone.setDefault(defaultTimeZone);
+	}
+
+	private static Date day(int year, int month, int dayOfMonth) {
+		final Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month, dayOfMonth);
+		return calendar.getTime();
+	}
+
+	/**
+	 * Former hour peak filter of the hour : lower <= date < higher, the same calendar being moved from one hour to the next.
+	 */
+	private static int perHourFilters(Date day, long date) {
+		int matched = -1;
+		for (int h = 0; h < 24; h++) {
+			final Calendar calendarDay = Calendar.getInstance();
+			calendarDay.setTime(day);
+			final Date lowerHour = AggregationTools.setHourTo(calendarDay, h);
+			final Date higherHour = AggregationTools.setHourTo(calendarDay, h + 1);
+			if (lowerHour.getTime() <= date && date < higherHour.getTime()) {
+				assertEquals("date matched by two hours", -1, matched);
+				matched = h;
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Evaluates the $subtract, $size, $filter and $lte operators of the expression against a trace date.
+	 */
+	private static Object evaluate(Object expression, long date, Map<String, Object> variables) {
+		if (expression instanceof Number) {
+			return ((Number) expression).longValue();
+		} else if (expression instanceof String) {
+			final String path = (String) expression;
+			if (path.startsWith("$$")) {
+				return variables.get(path.substring(2));
+			}
+			assertEquals("$" + TRACE_FIELD_DATE, path);
+			return date;
+		} else if (expression instanceof JsonArray) {
+			final List<Object> values = new ArrayList<>();
+			for (Object o : (JsonArray) expression) {
+				values.add(evaluate(o, date, variables));
+			}
+			return values;
+		}
+		final JsonObject operator = (JsonObject) expression;
+		assertEquals(1, operator.size());
+		if (operator.containsKey("$subtract")) {
+			final List<?> operands = (List<?>) evaluate(operator.getJsonArray("$subtract"), date, variables);
+			return (Long) operands.get(0) - (Long) operands.get(1);
+		} else if (operator.containsKey("$size")) {
+			return (long) ((List<?>) evaluate(operator.getValue("$size"), date, variables)).size();
+		} else if (operator.containsKey("$lte")) {
+			final List<?> operands = (List<?>) evaluate(operator.getJsonArray("$lte"), date, variables);
+			return (Long) operands.get(0) <= (Long) operands.get(1);
+		} else if (operator.containsKey("$filter")) {
+			final JsonObject filter = operator.getJsonObject("$filter");
+			final List<Object> filtered = new ArrayList<>();
+			for (Object element : (List<?>) evaluate(filter.getValue("input"), date, variables)) {
+				final Map<String, Object> scope = new HashMap<>(variables);
+				scope.put(filter.getString("as"), element);
+				if (Boolean.TRUE.equals(evaluate(filter.getValue("cond"), date, scope))) {
+					filtered.add(element);
+				}
+			}
+			return filtered;
+		}
+		fail("Unexpected operator " + operator.encode());
+		return null;
+	}
+
+	private static void assertMatchesPerHourFilters(Date day, long expectedLength) {
+		final long[] boundaries = FusedAggregationEngine.hourBoundaries(day);
+		assertEquals(25, boundaries.length);
+		assertEquals(day.getTime(), boundaries[0]);
+		assertEquals(expectedLength, boundaries[24] - boundaries[0]);
+		final JsonObject expression = FusedAggregationEngine.hourExpression(boundaries);
+		int counted = 0;
+		for (long date = boundaries[0] - HOUR; date <= boundaries[24] + HOUR; date += TimeUnit.MINUTES.toMillis(15)) {
+			final int expected = perHourFilters(day, date);
+			final long hour = (Long) evaluate(expression, date, new HashMap<>());
+			if (expected < 0) {
+				assertTrue("date out of the day counted in hour " + hour, hour < 0 || hour > 23);
+			} else {
+				assertEquals("hour of " + new Date(date), expected, hour);
+				counted++;
+			}
+		}
+		assertEquals(expectedLength / TimeUnit.MINUTES.toMillis(15), counted);
+	}
+
+	@Test
+	public void hourIndexMatchesPerHourFilters() {
+		assertMatchesPerHourFilters(day(2026, Calendar.JUNE, 15), 24 * HOUR);
+	}
+
+	@Test
+	public void hourIndexMatchesPerHourFiltersOnShortDay() {
+		assertMatchesPerHourFilters(day(2026, Calendar.MARCH, 29), 23 * HOUR);
+	}
+
+	@Test
+	public void hourIndexMatchesPerHourFiltersOnLongDay() {
+		assertMatchesPerHourFilters(day(2026, Calendar.OCTOBER, 25), 25 * HOUR);
+	}
+
+	@Test
+	public void boundaryBelongsToTheFollowingHour() {
+		final long[] boundaries = FusedAggregationEngine.hourBoundaries(day(2026, Calendar.JUNE, 15));
+		final JsonObject expression = FusedAggregationEngine.hourExpression(boundaries);
+		assertEquals(-1L, evaluate(expression, boundaries[0] - 1, new HashMap<>()));
+		assertEquals(0L, evaluate(expression, boundaries[0], new HashMap<>()));
+		assertEquals(0L, evaluate(expression, boundaries[1] - 1, new HashMap<>()));
+		assertEquals(1L, evaluate(expression, boundaries[1], new HashMap<>()));
+		assertEquals(23L, evaluate(expression, boundaries[24] - 1, new HashMap<>()));
+		assertEquals(24L, evaluate(expression, boundaries[24], new HashMap<>()));
+	}
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Hour peaks rolled up in memory must count like the former per group aggregations,
+ * arrays being unwound and each hour counted in its own LOGIN_H key.
+ */
+public class HourPeakAggregationTest {
+
+	private static JsonObject row(Integer hour, String profile, JsonArray structures, JsonArray classes, long count) {
+		final JsonObject group = new JsonObject().put("hour", hour).put(TRACE_FIELD_PROFILE, profile);
+		if (structures != null) {
+			group.put(TRACE_FIELD_STRUCTURES, structures);
+		}
+		if (classes != null) {
+			group.put(TRACE_FIELD_CLASSES, classes);
+		}
+		return new JsonObject().put("_id", group).put("count", count);
+	}
+
+	private static JsonArray rows() {
+		return new JsonArray()
+				.add(row(8, "Teacher", new JsonArray().add("s1").add("s2"), new JsonArray().add("c1"), 3L))
+				.add(row(8, "Student", new JsonArray().add("s1"), new JsonArray().add("c1").add("c2"), 5L))
+				.add(row(9, "Teacher", new JsonArray().add("s2"), null, 2L))
+				.add(row(23, "Relative", null, null, 1L))
+				.add(row(24, "Teacher", new JsonArray().add("s1"), null, 100L))
+				.add(row(null, "Teacher", new JsonArray().add("s1"), null, 100L));
+	}
+
+	private static Map<String, JsonObject> accumulate(JsonArray... batches) {
+		final List<String> hourKeys = HourPeakAggregation.hourKeys();
+		final RollupAccumulator accumulator = new RollupAccumulator(hourKeys);
+		for (JsonArray batch : batches) {
+			HourPeakAggregation.accumulate(accumulator, hourKeys, batch);
+		}
+		final Map<String, JsonObject> documents = new HashMap<>();
+		for (JsonObject document : accumulator.toDocuments(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY)) {
+			assertNull("duplicate group", documents.put(document.getJsonObject("criteria").encode(), document.getJsonObject("values")));
+		}
+		return documents;
+	}
+
+	/**
+	 * Reference counts : each row unwound on its structures and classes arrays, then counted in every grouping.
+	 */
+	private static Map<String, JsonObject> reference(JsonArray rows) {
+		final Map<String, JsonObject> documents = new HashMap<>();
+		for (Object o : rows) {
+			final JsonObject group = ((JsonObject) o).getJsonObject("_id");
+			final Integer hour = group.getInteger("hour");
+			if (hour == null || hour < 0 || hour > 23) {
+				continue;
+			}
+			final String key = TRACE_TYPE_CONNEXION + "_H" + hour;
+			for (Grouping grouping : FusedAggregationEngine.DEFAULT_GROUPINGS) {
+				final List<String[]> unwound = new ArrayList<>();
+				unwound.add(new String[grouping.size()]);
+				for (int i = 0; i < grouping.size(); i++) {
+					final String field = grouping.getFields()[i];
+					final List<String[]> next = new ArrayList<>();
+					final Object value = group.getValue(field);
+					final List<String> values = new ArrayList<>();
+					if (value instanceof JsonArray) {
+						for (Object v : (JsonArray) value) {
+							values.add((String) v);
+						}
+					} else if (value != null || !TRACE_FIELD_STRUCTURES.equals(field) && !TRACE_FIELD_CLASSES.equals(field)) {
+						values.add((String) value);
+					}
+					for (String[] u : unwound) {
+						for (String v : values) {
+							final String[] copy = u.clone();
+							copy[i] = v;
+							next.add(copy);
+						}
+					}
+					unwound.clear();
+					unwound.addAll(next);
+				}
+				for (String[] values : unwound) {
+					final JsonObject document = documents.computeIfAbsent(grouping.criteria(values).encode(), k -> new JsonObject());
+					document.put(key, document.getLong(key, 0L) + ((JsonObject) o).getLong("count"));
+				}
+			}
+		}
+		return documents;
+	}
+
+	private static String criteria(String[] fields, String... values) {
+		return Grouping.of(fields).criteria(values).encode();
+	}
+
+	@Test
+	public void countsMatchPerGroupAggregations() {
+		assertEquals(reference(rows()), accumulate(rows()));
+	}
+
+	@Test
+	public void rowsAreRolledUpIntoEachGroup() {
+		final Map<String, JsonObject> documents = accumulate(rows());
+		final JsonObject global = documents.get(criteria(new String[0]));
+		assertEquals(8L, (long) global.getLong("LOGIN_H8"));
+		assertEquals(2L, (long) global.getLong("LOGIN_H9"));
+		assertEquals(1L, (long) global.getLong("LOGIN_H23"));
+		assertEquals(3, global.size());
+		assertEquals(8L, (long) documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES}, "s1")).getLong("LOGIN_H8"));
+		assertEquals(3L, (long) documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES}, "s2")).getLong("LOGIN_H8"));
+		assertEquals(2L, (long) documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES}, "s2")).getLong("LOGIN_H9"));
+		assertEquals(8L, (long) documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES}, "s1", "c1")).getLong("LOGIN_H8"));
+		assertEquals(5L, (long) documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE},
+				"s1", "c2", "Student")).getLong("LOGIN_H8"));
+		final JsonObject teachers = documents.get(criteria(new String[]{TRACE_FIELD_PROFILE}, "Teacher"));
+		assertEquals(3L, (long) teachers.getLong("LOGIN_H8"));
+		assertEquals(2L, (long) teachers.getLong("LOGIN_H9"));
+		// Rows without structures nor classes only count in the global and profile groups
+		assertEquals(1L, (long) documents.get(criteria(new String[]{TRACE_FIELD_PROFILE}, "Relative")).getLong("LOGIN_H23"));
+		assertNull(documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES}, "s2", null)));
+	}
+
+	@Test
+	public void batchesAccumulate() {
+		final JsonArray rows = rows();
+		final JsonArray first = new JsonArray();
+		final JsonArray second = new JsonArray();
+		for (int i = 0; i < rows.size(); i++) {
+			(i % 2 == 0 ? first : second).add(rows.getValue(i));
+		}
+		assertEquals(accumulate(rows), accumulate(first, second));
+	}
+
+}
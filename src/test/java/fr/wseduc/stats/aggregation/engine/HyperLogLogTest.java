@@ -0,0 +1,123 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.Base64;
+
+import org.junit.Test;
+
+/**
+ * Sketches must survive their sparse and dense encodings, merge like a sketch of the union
+ * and estimate within a few standard errors (~1.6%) of the exact count.
+ */
+public class HyperLogLogTest {
+
+	private static HyperLogLog sketch(int from, int to) {
+		final HyperLogLog sketch = new HyperLogLog();
+		for (int i = from; i < to; i++) {
+			sketch.add("user-" + i);
+		}
+		return sketch;
+	}
+
+	private static void assertEstimate(long expected, HyperLogLog sketch, double tolerance) {
+		final long estimate = sketch.estimate();
+		assertTrue(expected + " estimated " + estimate, Math.abs(estimate - expected) <= expected * tolerance);
+	}
+
+	@Test
+	public void emptySketch() {
+		assertEquals(0L, new HyperLogLog().estimate());
+		assertEquals(0L, HyperLogLog.decode(null).estimate());
+		assertEquals(0L, HyperLogLog.decode("").estimate());
+		assertEquals(0L, HyperLogLog.decode(new HyperLogLog().encode()).estimate());
+	}
+
+	@Test
+	public void duplicatesAreCountedOnce() {
+		final HyperLogLog sketch = sketch(0, 10);
+		for (int i = 0; i < 10; i++) {
+			sketch.add("user-" + i);
+		}
+		assertEquals(10L, sketch.estimate());
+	}
+
+	@Test
+	public void smallSketchesAreSparse() {
+		final HyperLogLog sketch = sketch(0, 100);
+		final String encoded = sketch.encode();
+		assertEquals('s', encoded.charAt(0));
+		final HyperLogLog decoded = HyperLogLog.decode(encoded);
+		assertEquals(encoded, decoded.encode());
+		assertEquals(sketch.estimate(), decoded.estimate());
+	}
+
+	@Test
+	public void largeSketchesAreDense() {
+		final HyperLogLog sketch = sketch(0, 10000);
+		final String encoded = sketch.encode();
+		assertEquals('d', encoded.charAt(0));
+		final HyperLogLog decoded = HyperLogLog.decode(encoded);
+		assertEquals(encoded, decoded.encode());
+		assertEquals(sketch.estimate(), decoded.estimate());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownEncodingIsRejected() {
+		HyperLogLog.decode("x" + new HyperLogLog().encode().substring(1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedDenseSketchIsRejected() {
+		HyperLogLog.decode("d" + Base64.getEncoder().encodeToString(new byte[16]));
+	}
+
+	@Test
+	public void mergeIsTheSketchOfTheUnion() {
+		final HyperLogLog merged = sketch(0, 50000);
+		merged.merge(sketch(25000, 75000));
+		assertEquals(sketch(0, 75000).encode(), merged.encode());
+		assertEstimate(75000L, merged, 0.05);
+	}
+
+	@Test
+	public void mergeOfSparseSketchesMayBecomeDense() {
+		final HyperLogLog merged = HyperLogLog.decode(sketch(0, 1000).encode());
+		merged.merge(HyperLogLog.decode(sketch(1000, 2000).encode()));
+		merged.merge(HyperLogLog.decode(sketch(2000, 3000).encode()));
+		assertEquals('d', merged.encode().charAt(0));
+		assertEquals(sketch(0, 3000).encode(), merged.encode());
+	}
+
+	@Test
+	public void estimatesStayWithinErrorBounds() {
+		assertEquals(1L, sketch(0, 1).estimate());
+		assertEstimate(100L, sketch(0, 100), 0.02);
+		for (int count : new int[] {1000, 10000, 100000, 1000000}) {
+			assertEstimate(count, sketch(0, count), 0.05);
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * Stats documents are mapped to upserts with ids derived from the row key,
+ * the period and tree sums being run after the rows they read.
+ */
+public class PgStatsRowsTest {
+
+	private static final String PLATFORM = "platform";
+	private static final Set<String> TABLES = new HashSet<>();
+	static {
+		for (String indicator : Arrays.asList("accounts", "access")) {
+			for (String level : Arrays.asList("platform", "structure", "class")) {
+				for (String frequency : Arrays.asList("hour", "day", "week", "month")) {
+					TABLES.add("stats." + indicator + "_" + level + "_" + frequency + "s");
+				}
+			}
+		}
+	}
+
+	private static JsonObject structureAccounts(String date, String structure, long logins) {
+		return new JsonObject().put(STATS_FIELD_DATE, date + " 00:00.00.000")
+				.put(STATS_FIELD_GROUPBY, TRACE_FIELD_STRUCTURES + "/" + TRACE_FIELD_PROFILE)
+				.put(TRACE_FIELD_STRUCTURES + "_id", structure).put(TRACE_FIELD_PROFILE + "_id", "Teacher")
+				.put(TRACE_TYPE_CONNEXION, logins).put(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY, 2L);
+	}
+
+	private static JsonObject structureAccess(String date, String structure, String module, long access) {
+		return new JsonObject().put(STATS_FIELD_DATE, date + " 00:00.00.000")
+				.put(STATS_FIELD_GROUPBY, TRACE_FIELD_STRUCTURES + "/" + TRACE_FIELD_PROFILE + "/" + TRACE_FIELD_MODULE)
+				.put(TRACE_FIELD_STRUCTURES + "_id", structure).put(TRACE_FIELD_PROFILE + "_id", "Teacher")
+				.put(TRACE_FIELD_MODULE + "_id", module).put(TRACE_TYPE_SVC_ACCESS, access);
+	}
+
+	private static Map.Entry<String, List<Tuple>> statement(Map<String, List<Tuple>> statements, String prefix) {
+		Map.Entry<String, List<Tuple>> found = null;
+		for (Map.Entry<String, List<Tuple>> statement : statements.entrySet()) {
+			if (statement.getKey().startsWith(prefix)) {
+				assertNull("several statements start with " + prefix, found);
+				found = statement;
+			}
+		}
+		assertNotNull("no statement starts with " + prefix, found);
+		return found;
+	}
+
+	private static int index(Map<String, List<Tuple>> statements, String prefix) {
+		return new ArrayList<>(statements.keySet()).indexOf(statement(statements, prefix).getKey());
+	}
+
+	/**
+	 * @return The query accumulating the rows of the table over the sub-structures.
+	 */
+	private static String tree(Map<String, List<Tuple>> statements, String table) {
+		for (String query : statements.keySet()) {
+			if (query.startsWith("WITH RECURSIVE") && query.contains("UPDATE " + table + " r ")) {
+				return query;
+			}
+		}
+		fail("no tree sum of " + table);
+		return null;
+	}
+
+	@Test
+	public void idsAreDerivedFromTheRowKey() {
+		final PgStatsRows rows = new PgStatsRows(PLATFORM, TABLES);
+		final List<Tuple> first = statement(rows.statements(new JsonArray().add(structureAccounts("2026-10-19", "s1", 5L))),
+				"INSERT INTO stats.accounts_structure_days(").getValue();
+		final List<Tuple> again = statement(rows.statements(new JsonArray().add(structureAccounts("2026-10-19", "s1", 7L))),
+				"INSERT INTO stats.accounts_structure_days(").getValue();
+		final List<Tuple> other = statement(rows.statements(new JsonArray().add(structureAccounts("2026-10-19", "s2", 5L))),
+				"INSERT INTO stats.accounts_structure_days(").getValue();
+		assertEquals(first.get(0).getLong(0), again.get(0).getLong(0));
+		assertNotEquals(first.get(0).getLong(0), other.get(0).getLong(0));
+		assertTrue(first.get(0).getLong(0) >= 0L);
+		assertNotEquals(first.get(0).getLong(0), new PgStatsRows("other", TABLES)
+				.statements(new JsonArray().add(structureAccounts("2026-10-19", "s1", 5L))).values().iterator().next().get(0).getLong(0));
+	}
+
+	@Test
+	public void structureCountsAreWrittenWithoutTreeAccumulation() {
+		final Map<String, List<Tuple>> statements = new PgStatsRows(PLATFORM, TABLES)
+				.statements(new JsonArray().add(structureAccounts("2026-10-19", "s1", 5L)));
+		final Map.Entry<String, List<Tuple>> day = statement(statements, "INSERT INTO stats.accounts_structure_days(");
+		assertTrue(day.getKey(), day.getKey().startsWith("INSERT INTO stats.accounts_structure_days(id,platform_id,date,structure_id,profile," +
+				"authentications,unique_visitors,authentications_wta,unique_visitors_wta) VALUES ($1,$2,$3,$4,$5,$6,$7,$8,$9)"));
+		final Tuple tuple = day.getValue().get(0);
+		assertEquals(PLATFORM, tuple.getString(1));
+		assertEquals("s1", tuple.getString(3));
+		assertEquals("Teacher", tuple.getString(4));
+		assertEquals(5L, (long) tuple.getLong(5));
+		assertEquals(2L, (long) tuple.getLong(6));
+		assertEquals(5L, (long) tuple.getLong(7));
+		assertEquals(2L, (long) tuple.getLong(8));
+		final String tree = tree(statements, "stats.accounts_structure_days");
+		assertTrue(tree, tree.startsWith("WITH RECURSIVE ancestors(id) AS (SELECT $3::varchar"));
+		assertTrue(tree, tree.contains("COALESCE(SUM(d.authentications_wta), 0) AS authentications"));
+		assertTrue(tree, tree.contains("UPDATE stats.accounts_structure_days r SET authentications = sums.authentications, " +
+				"unique_visitors = sums.unique_visitors"));
+		assertEquals("s1", statements.get(tree).get(0).getString(2));
+	}
+
+	@Test
+	public void platformRowsHaveNoEntityNorTreeSum() {
+		final JsonObject document = new JsonObject().put(STATS_FIELD_DATE, "2026-10-19 00:00.00.000")
+				.put(STATS_FIELD_GROUPBY, TRACE_FIELD_PROFILE).put(TRACE_FIELD_PROFILE + "_id", "Student")
+				.put(TRACE_TYPE_CONNEXION, 3L);
+		final Map<String, List<Tuple>> statements = new PgStatsRows(PLATFORM, TABLES).statements(new JsonArray().add(document));
+		final Map.Entry<String, List<Tuple>> day = statement(statements, "INSERT INTO stats.accounts_platform_days(");
+		assertTrue(day.getKey(), day.getKey().startsWith("INSERT INTO stats.accounts_platform_days(id,platform_id,date,profile,authentications) "));
+		assertEquals(5, day.getValue().get(0).size());
+		for (String query : statements.keySet()) {
+			assertFalse(query, query.startsWith("WITH RECURSIVE"));
+		}
+	}
+
+	@Test
+	public void periodRowsAreSummedOncePerPeriod() {
+		final Map<String, List<Tuple>> statements = new PgStatsRows(PLATFORM, TABLES).statements(new JsonArray()
+				.add(structureAccess("2026-10-19", "s1", "blog", 4L))
+				.add(structureAccess("2026-10-20", "s1", "blog", 6L))
+				.add(structureAccess("2026-10-20", "s1", "wiki", 1L)));
+		assertEquals(3, statement(statements, "INSERT INTO stats.access_structure_days(").getValue().size());
+		final Map.Entry<String, List<Tuple>> weeks = statement(statements, "INSERT INTO stats.access_structure_weeks(");
+		assertTrue(weeks.getKey(), weeks.getKey().contains("COALESCE(SUM(access), 0), COALESCE(SUM(access_wta), 0) " +
+				"FROM stats.access_structure_days WHERE"));
+		assertTrue(weeks.getKey(), weeks.getKey().contains(" AND module = $7"));
+		// One row per module of the week
+		assertEquals(2, weeks.getValue().size());
+		assertEquals(2, statement(statements, "INSERT INTO stats.access_structure_months(").getValue().size());
+		// Sums are run once the rows they read are written
+		final int days = index(statements, "INSERT INTO stats.access_structure_days(");
+		final List<String> queries = new ArrayList<>(statements.keySet());
+		final int dayTree = queries.indexOf(tree(statements, "stats.access_structure_days"));
+		final int weekTree = queries.indexOf(tree(statements, "stats.access_structure_weeks"));
+		assertTrue(tree(statements, "stats.access_structure_days").contains(" AND r.module = $5"));
+		assertTrue(days < dayTree);
+		assertTrue(dayTree < index(statements, "INSERT INTO stats.access_structure_weeks("));
+		assertTrue(index(statements, "INSERT INTO stats.access_structure_weeks(") < weekTree);
+	}
+
+	@Test
+	public void rowsOfOtherTablesAreDropped() {
+		final Map<String, List<Tuple>> statements = new PgStatsRows(PLATFORM,
+				Collections.singleton("stats.accounts_structure_days"))
+				.statements(new JsonArray().add(structureAccounts("2026-10-19", "s1", 5L)));
+		// The day row and its tree sum, without the period rows
+		assertEquals(2, statements.size());
+		final List<String> queries = new ArrayList<>(statements.keySet());
+		assertTrue(queries.get(0).startsWith("INSERT INTO stats.accounts_structure_days("));
+		assertEquals(tree(statements, "stats.accounts_structure_days"), queries.get(1));
+	}
+
+	@Test
+	public void invalidDocumentsAreSkipped() {
+		final Map<String, List<Tuple>> statements = new PgStatsRows(PLATFORM, TABLES).statements(new JsonArray()
+				.add("not a document")
+				.add(structureAccounts("2026-10-19", "s1", 5L).put(STATS_FIELD_DATE, "invalid"))
+				.add(structureAccounts("2026-10-19", "s1", 5L).put(STATS_FIELD_GROUPBY, TRACE_FIELD_MODULE)));
+		assertTrue(statements.isEmpty());
+	}
+
+}
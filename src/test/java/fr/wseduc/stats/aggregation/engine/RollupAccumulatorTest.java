@@ -0,0 +1,113 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Connexion and service access rows of a day share one accumulator, as in the fused engine :
+ * their groupings must be registered once per groupedBy, whatever the list they come from.
+ */
+public class RollupAccumulatorTest {
+
+	private static JsonObject group(String profile, String module, String... structures) {
+		final JsonObject group = new JsonObject().put(TRACE_FIELD_PROFILE, profile)
+				.put(TRACE_FIELD_STRUCTURES, new JsonArray(Arrays.asList((Object[]) structures)))
+				.put(TRACE_FIELD_CLASSES, new JsonArray().add("c1"));
+		if (module != null) {
+			group.put(TRACE_FIELD_MODULE, module);
+		}
+		return group;
+	}
+
+	private static Map<String, JsonObject> documents(RollupAccumulator accumulator) {
+		final Map<String, JsonObject> documents = new HashMap<>();
+		for (JsonObject document : accumulator.toDocuments(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY)) {
+			assertNull("duplicate group", documents.put(document.getJsonObject("criteria").encode(), document.getJsonObject("values")));
+		}
+		return documents;
+	}
+
+	private static String criteria(String[] fields, String... values) {
+		return Grouping.of(fields).criteria(values).encode();
+	}
+
+	@Test
+	public void groupingsAreEqualByGroupedBy() {
+		assertEquals(Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE), Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE));
+		assertEquals(Grouping.of().hashCode(), Grouping.of().hashCode());
+		assertNotEquals(Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE), Grouping.of(TRACE_FIELD_PROFILE, TRACE_FIELD_STRUCTURES));
+		assertTrue(FusedAggregationEngine.ACCESS_GROUPINGS.containsAll(FusedAggregationEngine.DEFAULT_GROUPINGS));
+	}
+
+	@Test
+	public void connexionAndAccessRowsShareTheGroups() {
+		final List<String> keys = Arrays.asList(TRACE_TYPE_CONNEXION, TRACE_TYPE_SVC_ACCESS);
+		final RollupAccumulator accumulator = new RollupAccumulator(keys);
+		for (int i = 0; i < 2; i++) {
+			accumulator.add(FusedAggregationEngine.DEFAULT_GROUPINGS, group("Teacher", null, "s1", "s2"), TRACE_TYPE_CONNEXION, 2L);
+			accumulator.add(FusedAggregationEngine.ACCESS_GROUPINGS, group("Teacher", "blog", "s1"), TRACE_TYPE_SVC_ACCESS, 3L);
+			accumulator.add(FusedAggregationEngine.ACCESS_GROUPINGS, group("Student", "wiki", "s2"), TRACE_TYPE_SVC_ACCESS, 1L);
+		}
+		accumulator.addVisitor(FusedAggregationEngine.DEFAULT_GROUPINGS, group("Teacher", null, "s1"), "u1");
+		final Map<String, JsonObject> documents = documents(accumulator);
+
+		final JsonObject global = documents.get(criteria(new String[0]));
+		assertEquals(4L, (long) global.getLong(TRACE_TYPE_CONNEXION));
+		assertEquals(8L, (long) global.getLong(TRACE_TYPE_SVC_ACCESS));
+		assertEquals(1, (int) global.getInteger(FusedAggregationEngine.UNIQUE_VISITORS_DAY_KEY));
+
+		final JsonObject s1Teachers = documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE}, "s1", "Teacher"));
+		assertEquals(4L, (long) s1Teachers.getLong(TRACE_TYPE_CONNEXION));
+		assertEquals(6L, (long) s1Teachers.getLong(TRACE_TYPE_SVC_ACCESS));
+		final JsonObject s2 = documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES}, "s2"));
+		assertEquals(4L, (long) s2.getLong(TRACE_TYPE_CONNEXION));
+		assertEquals(2L, (long) s2.getLong(TRACE_TYPE_SVC_ACCESS));
+
+		final JsonObject blog = documents.get(criteria(new String[]{TRACE_FIELD_MODULE}, "blog"));
+		assertEquals(6L, (long) blog.getLong(TRACE_TYPE_SVC_ACCESS));
+		assertNull(blog.getLong(TRACE_TYPE_CONNEXION));
+		assertEquals(2L, (long) documents.get(criteria(new String[]{TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES, TRACE_FIELD_PROFILE, TRACE_FIELD_MODULE},
+				"s2", "c1", "Student", "wiki")).getLong(TRACE_TYPE_SVC_ACCESS));
+	}
+
+	@Test
+	public void defaultGroupingsReuseTheAccessOnes() {
+		final RollupAccumulator accumulator = new RollupAccumulator(Arrays.asList(TRACE_TYPE_CONNEXION));
+		accumulator.add(FusedAggregationEngine.ACCESS_GROUPINGS, group("Teacher", "blog", "s1"), TRACE_TYPE_CONNEXION, 1L);
+		accumulator.add(FusedAggregationEngine.DEFAULT_GROUPINGS, group("Teacher", null, "s1"), TRACE_TYPE_CONNEXION, 1L);
+		assertEquals(2L, (long) documents(accumulator).get(criteria(new String[0])).getLong(TRACE_TYPE_CONNEXION));
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The natural key _id of a stats document only depends on its date and group values,
+ * so that a staged run replaces the documents of the previous one.
+ */
+public class StatsWriterTest {
+
+	private static final String DATE = "2026-10-19 00:00.00.000";
+
+	@Test
+	public void globalGroupHasTheDateAndAnEmptyGroupedBy() {
+		final JsonObject criteria = Grouping.of().criteria(new String[0]);
+		assertEquals(DATE + "|" + STATS_FIELD_GROUPBY + "=", StatsWriter.documentId(criteria, DATE));
+	}
+
+	@Test
+	public void criteriaAreSortedByField() {
+		final JsonObject criteria = Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_PROFILE)
+				.criteria(new String[] {"s1", "Teacher"});
+		final JsonObject reversed = new JsonObject()
+				.put(TRACE_FIELD_PROFILE + "_id", "Teacher")
+				.put(TRACE_FIELD_STRUCTURES + "_id", "s1")
+				.put(STATS_FIELD_GROUPBY, TRACE_FIELD_STRUCTURES + "/" + TRACE_FIELD_PROFILE);
+		assertEquals(StatsWriter.documentId(criteria, DATE), StatsWriter.documentId(reversed, DATE));
+		assertEquals(DATE + "|" + STATS_FIELD_GROUPBY + "=" + TRACE_FIELD_STRUCTURES + "/" + TRACE_FIELD_PROFILE +
+				"|" + TRACE_FIELD_PROFILE + "_id=Teacher|" + TRACE_FIELD_STRUCTURES + "_id=s1",
+				StatsWriter.documentId(criteria, DATE));
+	}
+
+	@Test
+	public void nullValuesAreEmpty() {
+		final JsonObject criteria = Grouping.of(TRACE_FIELD_STRUCTURES, TRACE_FIELD_CLASSES).criteria(new String[] {"s1", null});
+		assertEquals(DATE + "|" + TRACE_FIELD_CLASSES + "_id=|" + STATS_FIELD_GROUPBY + "=" + TRACE_FIELD_STRUCTURES + "/" +
+				TRACE_FIELD_CLASSES + "|" + TRACE_FIELD_STRUCTURES + "_id=s1", StatsWriter.documentId(criteria, DATE));
+	}
+
+	@Test
+	public void groupsAndDatesHaveDistinctIds() {
+		final Grouping structures = Grouping.of(TRACE_FIELD_STRUCTURES);
+		final String id = StatsWriter.documentId(structures.criteria(new String[] {"s1"}), DATE);
+		assertNotEquals(id, StatsWriter.documentId(structures.criteria(new String[] {"s2"}), DATE));
+		assertNotEquals(id, StatsWriter.documentId(structures.criteria(new String[] {"s1"}), "2026-10-20 00:00.00.000"));
+		assertNotEquals(id, StatsWriter.documentId(Grouping.of(TRACE_FIELD_CLASSES).criteria(new String[] {"s1"}), DATE));
+	}
+
+}
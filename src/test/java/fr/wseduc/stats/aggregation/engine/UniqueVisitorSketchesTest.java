@@ -0,0 +1,122 @@
+/*
+ * Copyright © "Open Digital Education" (SAS “WebServices pour l’Education”), 2026
+ *
+ * This program is published by "Open Digital Education" (SAS “WebServices pour l’Education”).
+ * You must indicate the name of the software and the company in any production /contribution
+ * using the software and indicate on the home page of the software industry in question,
+ * "powered by Open Digital Education" with a reference to the website: https: //opendigitaleducation.com/.
+ *
+ * This program is free software, licensed under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * You can redistribute this application and/or modify it since you respect the terms of the GNU Affero General Public License.
+ * If you modify the source code and then use this modified source code in your creation, you must make available the source code of your modifications.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with the software.
+ * If not, please see : <http://www.gnu.org/licenses/>. Full compliance requires reading the terms of this license and following its directives.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package fr.wseduc.stats.aggregation.engine;
+
+import static org.entcore.common.aggregation.MongoConstants.*;
+import static org.junit.Assert.*;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import fr.wseduc.stats.aggregation.Indicators.UniqueVisitorIndicator;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Daily sketches read sorted by group are merged per group : each group gets the estimate of the union of its days.
+ */
+public class UniqueVisitorSketchesTest {
+
+	private static final String KEY = UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY + "_WEEK";
+
+	private static JsonObject sketch(String structure, int from, int to) {
+		final HyperLogLog sketch = new HyperLogLog();
+		for (int i = from; i < to; i++) {
+			sketch.add("user-" + i);
+		}
+		final JsonObject document = new JsonObject().put(UniqueVisitorIndicator.STATS_UNIQUEVISITORS_KEY, sketch.encode());
+		if (structure != null) {
+			document.put(STATS_FIELD_GROUPBY, TRACE_FIELD_STRUCTURES).put(TRACE_FIELD_STRUCTURES + "_id", structure);
+		}
+		return document;
+	}
+
+	private static long estimate(JsonObject document) {
+		return document.getJsonObject("values").getLong(KEY);
+	}
+
+	@Test
+	public void daysOfAGroupAreMerged() {
+		final UniqueVisitorSketches.GroupMerge merge = new UniqueVisitorSketches.GroupMerge(KEY);
+		merge.add(sketch(null, 0, 10));
+		merge.add(sketch(null, 5, 20));
+		merge.add(sketch("s1", 0, 3));
+		merge.add(sketch("s1", 0, 3));
+		merge.add(sketch("s2", 100, 104));
+		merge.end();
+		final List<JsonObject> documents = merge.drain();
+		assertEquals(3, documents.size());
+		assertEquals(Grouping.of().criteria(new String[0]), documents.get(0).getJsonObject("criteria"));
+		assertEquals(20L, estimate(documents.get(0)));
+		assertEquals(Grouping.of(TRACE_FIELD_STRUCTURES).criteria(new String[] {"s1"}), documents.get(1).getJsonObject("criteria"));
+		assertEquals(3L, estimate(documents.get(1)));
+		assertEquals(4L, estimate(documents.get(2)));
+		assertEquals(0, merge.size());
+	}
+
+	@Test
+	public void groupIsEmittedOnceTheNextOneStarts() {
+		final UniqueVisitorSketches.GroupMerge merge = new UniqueVisitorSketches.GroupMerge(KEY);
+		merge.add(sketch("s1", 0, 3));
+		assertEquals(0, merge.size());
+		merge.add(sketch("s2", 0, 3));
+		assertEquals(1, merge.size());
+		assertEquals(1, merge.drain().size());
+		merge.end();
+		assertEquals(Grouping.of(TRACE_FIELD_STRUCTURES).criteria(new String[] {"s2"}), merge.drain().get(0).getJsonObject("criteria"));
+		merge.end();
+		assertTrue(merge.drain().isEmpty());
+	}
+
+	@Test
+	public void groupsWithoutVisitorsAreNotWritten() {
+		final UniqueVisitorSketches.GroupMerge merge = new UniqueVisitorSketches.GroupMerge(KEY);
+		merge.add(sketch("s1", 0, 0));
+		merge.add(new JsonObject().put(STATS_FIELD_GROUPBY, TRACE_FIELD_STRUCTURES).put(TRACE_FIELD_STRUCTURES + "_id", "s2"));
+		merge.end();
+		assertTrue(merge.drain().isEmpty());
+	}
+
+	@Test
+	public void daysOfThePeriodAreCountedAcrossDaylightSaving() {
+		final TimeZone defaultTimeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Paris"));
+		try {
+			final Calendar lower = Calendar.getInstance();
+			lower.clear();
+			lower.set(2026, Calendar.OCTOBER, 19);
+			final Calendar higher = (Calendar) lower.clone();
+			higher.add(Calendar.DATE, 7);
+			assertEquals(7, UniqueVisitorSketches.countDays(lower.getTime(), higher.getTime()));
+			lower.set(2026, Calendar.MARCH, 1);
+			higher.setTime(lower.getTime());
+			higher.add(Calendar.MONTH, 1);
+			assertEquals(31, UniqueVisitorSketches.countDays(lower.getTime(), higher.getTime()));
+		} finally {
+			TimeZone.setDefault(defaultTimeZone);
+		}
+	}
+
+}
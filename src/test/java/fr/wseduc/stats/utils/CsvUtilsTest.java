@@ -0,0 +1,147 @@
+package fr.wseduc.stats.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.sqlclient.Tuple;
+
+/**
+ * The csv file is read by chunks, the next chunk being parsed only once the previous one is done.
+ */
+public class CsvUtilsTest {
+
+	private Vertx vertx;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		vertx = Vertx.vertx();
+		file = File.createTempFile("stats", ".csv");
+		final StringBuilder csv = new StringBuilder("id;date;label\n");
+		for (int i = 0; i < 25; i++) {
+			csv.append(i).append(";2026-10-19 08:00:00;line ").append(i).append('\n');
+		}
+		Files.write(file.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After
+	public void tearDown() {
+		vertx.close();
+		file.delete();
+	}
+
+	private ImportCsvTable importCsvTable() {
+		final ImportCsvTable importCsvTable = new ImportCsvTable();
+		importCsvTable.setFile(file.getAbsolutePath());
+		importCsvTable.setSeparator(";");
+		return importCsvTable;
+	}
+
+	private static AsyncResult<Long> await(CountDownLatch over, AtomicReference<AsyncResult<Long>> result) throws InterruptedException {
+		assertTrue("csv not read", over.await(10, TimeUnit.SECONDS));
+		return result.get();
+	}
+
+	@Test
+	public void linesAreReadByChunks() throws InterruptedException {
+		final List<DataTable> chunks = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch over = new CountDownLatch(1);
+		final AtomicReference<AsyncResult<Long>> result = new AtomicReference<>();
+		CsvUtils.readCsv(vertx, importCsvTable(), 10, (chunk, done) -> {
+			chunks.add(chunk);
+			done.handle(Future.succeededFuture());
+		}, ar -> {
+			result.set(ar);
+			over.countDown();
+		});
+		final AsyncResult<Long> read = await(over, result);
+		assertTrue(read.succeeded());
+		assertEquals(25L, (long) read.result());
+		assertEquals(3, chunks.size());
+		assertEquals(10, chunks.get(0).getData().size());
+		assertEquals(10, chunks.get(1).getData().size());
+		assertEquals(5, chunks.get(2).getData().size());
+		for (DataTable chunk : chunks) {
+			assertEquals(Arrays.asList("id", "date", "label"), chunk.getColumns());
+		}
+		final Tuple first = chunks.get(0).getData().get(0);
+		assertEquals(0L, first.getValue(0));
+		assertEquals(LocalDateTime.of(2026, 10, 19, 8, 0), first.getValue(1));
+		assertEquals("line 0", first.getValue(2));
+		assertEquals(24L, chunks.get(2).getData().get(4).getValue(0));
+	}
+
+	@Test
+	public void nextChunkWaitsForThePreviousOne() throws InterruptedException {
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final List<Object> firstValues = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch over = new CountDownLatch(1);
+		final AtomicReference<AsyncResult<Long>> result = new AtomicReference<>();
+		CsvUtils.readCsv(vertx, importCsvTable(), 4, (chunk, done) -> {
+			if (pending.incrementAndGet() > 1) {
+				overlaps.incrementAndGet();
+			}
+			for (Tuple tuple : chunk.getData()) {
+				firstValues.add(tuple.getValue(0));
+			}
+			// The chunk is written asynchronously, the parser must stay paused meanwhile
+			vertx.setTimer(20L, t -> {
+				pending.decrementAndGet();
+				done.handle(Future.succeededFuture());
+			});
+		}, ar -> {
+			result.set(ar);
+			over.countDown();
+		});
+		final AsyncResult<Long> read = await(over, result);
+		assertTrue(read.succeeded());
+		assertEquals(0, overlaps.get());
+		assertEquals(25, firstValues.size());
+		for (int i = 0; i < 25; i++) {
+			assertEquals((long) i, firstValues.get(i));
+		}
+	}
+
+	@Test
+	public void failedChunkStopsTheReading() throws InterruptedException {
+		final AtomicInteger chunks = new AtomicInteger();
+		final CountDownLatch over = new CountDownLatch(1);
+		final AtomicReference<AsyncResult<Long>> result = new AtomicReference<>();
+		CsvUtils.readCsv(vertx, importCsvTable(), 10, (chunk, done) -> {
+			if (chunks.incrementAndGet() == 2) {
+				done.handle(Future.failedFuture("insert.error"));
+			} else {
+				done.handle(Future.succeededFuture());
+			}
+		}, ar -> {
+			result.set(ar);
+			over.countDown();
+		});
+		final AsyncResult<Long> read = await(over, result);
+		assertTrue(read.failed());
+		assertEquals("insert.error", read.cause().getMessage());
+		assertEquals(2, chunks.get());
+	}
+
+}